@@ -9,7 +9,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Button;
 import android.widget.Toast;
@@ -17,11 +20,17 @@ import android.widget.Toast;
 import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.evans.qontrol.adapters.DeviceAdapter;
+import com.evans.qontrol.discovery.DeviceRegistry;
+import com.evans.qontrol.discovery.MacAddress;
+import com.evans.qontrol.hosts.HostRecord;
+import com.evans.qontrol.hosts.HostStore;
+import com.evans.qontrol.link.LinkExecutor;
+import com.evans.qontrol.models.Device;
+import com.evans.qontrol.services.QBluetoothService;
+import com.evans.qontrol.transport.Transport;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import butterknife.BindString;
@@ -41,15 +50,29 @@ public class ConnectionActivity extends AppCompatActivity {
     String mDiscoverDevices;
     @BindString(R.string.dialog_cancel_connection_text)
     String mCancelConnection;
+    @BindString(R.string.dialog_recent_hosts_title)
+    String mRecentHostsTitle;
+    @BindString(R.string.text_connecting_recent_host)
+    String mConnectingRecentHost;
 
     public final static String EXTRA_DEVICE_NAME = "com.evans.qontrol.DEVICE_NAME";
     public final static String EXTRA_DEVICE_ADDRESS = "com.evans.qontrol.DEVICE_ADDRESS";
+    // addresses of several devices to race, the first connecting wins
+    public final static String EXTRA_DEVICE_ADDRESSES = "com.evans.qontrol.DEVICE_ADDRESSES";
 
     private static final int REQUEST_ENABLE_BT = 1;
+    // discovery reports arriving within this time are shown together
+    private static final long DISCOVERY_BATCH_DELAY_MS = 100;
+    // a recent host this reliable is connected to without asking
+    private static final int AUTO_CONNECT_MIN_ATTEMPTS = 3;
+    private static final double AUTO_CONNECT_MIN_SUCCESS_RATE = 0.8;
 
     private BluetoothAdapter mBluetoothAdapter;
-    private List<Map<String, String>> mDiscoveredDevicesList = new ArrayList<>();
+    private List<Device> mDiscoveredDevicesList = new ArrayList<>();
+    private final DeviceRegistry mDiscoveredDevices = new DeviceRegistry(mDiscoveredDevicesList);
     private final DeviceAdapter mDiscoveredDevicesAdapter = new DeviceAdapter(mDiscoveredDevicesList);
+    private final Handler mHandler = new Handler();
+    private HostStore mHostStore;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,6 +84,12 @@ public class ConnectionActivity extends AppCompatActivity {
         this.registerReceiver(mReceiver, filter);
         filter = new IntentFilter(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         this.registerReceiver(mReceiver, filter);
+
+        // offer the hosts used before, without waiting for a discovery
+        mHostStore = QBluetoothService.getHostStore(this);
+        if (savedInstanceState == null) {
+            new LoadHostsTask().execute();
+        }
     }
 
     @Override
@@ -70,6 +99,7 @@ public class ConnectionActivity extends AppCompatActivity {
             mBluetoothAdapter.cancelDiscovery();
         }
         this.unregisterReceiver(mReceiver);
+        mHandler.removeCallbacks(mDispatchDiscoveredDevices);
     }
 
     // listens for discovered devices
@@ -80,21 +110,44 @@ public class ConnectionActivity extends AppCompatActivity {
 
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                String deviceName = device.getName();
-                String deviceMACAddress = device.getAddress();
-
-                Map<String, String> map = new HashMap<>();
-                map.put("device_name", deviceName);
-                map.put("device_address", deviceMACAddress);
-                mDiscoveredDevicesList.add(map);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
 
-                mDiscoveredDevicesAdapter.notifyItemInserted(0);
+                // the same device is reported many times; merge the reports into one row
+                boolean scheduled = mDiscoveredDevices.hasPendingUpdates();
+                if (mDiscoveredDevices.upsert(toDevice(device, rssi)) && !scheduled) {
+                    mHandler.postDelayed(mDispatchDiscoveredDevices, DISCOVERY_BATCH_DELAY_MS);
+                }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 Log.d("DISCOVERY", "Discovery finished");
             }
         }
     };
 
+    // shows the merged discovery reports in the dialog
+    private final Runnable mDispatchDiscoveredDevices = new Runnable() {
+        @Override
+        public void run() {
+            mDiscoveredDevices.dispatchUpdates(mDiscoveredDevicesUpdates);
+        }
+    };
+
+    private final DeviceRegistry.Callback mDiscoveredDevicesUpdates = new DeviceRegistry.Callback() {
+        @Override
+        public void onInserted(int position, int count) {
+            mDiscoveredDevicesAdapter.notifyItemRangeInserted(position, count);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            mDiscoveredDevicesAdapter.notifyItemRangeChanged(position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mDiscoveredDevicesAdapter.notifyItemMoved(fromPosition, toPosition);
+        }
+    };
+
     @OnClick(R.id.button_connection)
     public void startBTSetup() {
         bluetoothSetup();
@@ -121,6 +174,94 @@ public class ConnectionActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Reads the host store off the main thread.
+     */
+    private class LoadHostsTask extends AsyncTask<Void, Void, List<HostRecord>> {
+        @Override
+        protected List<HostRecord> doInBackground(Void... params) {
+            mHostStore.load();
+            return mHostStore.getHosts(System.currentTimeMillis());
+        }
+
+        @Override
+        protected void onPostExecute(List<HostRecord> hosts) {
+            if (!isFinishing()) {
+                offerRecentHosts(hosts);
+            }
+        }
+    }
+
+    /**
+     * Connect straight to the reliable recent hosts, racing them if there are several,
+     * otherwise let the user pick one of the recent hosts.
+     * @param hosts The recent hosts, best candidate first.
+     */
+    private void offerRecentHosts(List<HostRecord> hosts) {
+        // only bluetooth hosts can be connected to from here
+        HostRecord best = null;
+        List<HostRecord> reliableHosts = new ArrayList<>();
+        final List<Device> recentDevices = new ArrayList<>(hosts.size());
+        for (HostRecord host : hosts) {
+            if (host.getTransportType() != Transport.TYPE_RFCOMM) {
+                continue;
+            }
+            if (best == null) {
+                best = host;
+            }
+            if (host.getAttempts() >= AUTO_CONNECT_MIN_ATTEMPTS
+                    && host.getSuccessRate() >= AUTO_CONNECT_MIN_SUCCESS_RATE
+                    && reliableHosts.size() < LinkExecutor.MAX_RACE_THREADS) {
+                reliableHosts.add(host);
+            }
+            recentDevices.add(new Device(MacAddress.parse(host.getAddress()), host.getName(),
+                    Device.RSSI_UNKNOWN, BluetoothDevice.BOND_BONDED, 0));
+        }
+        if (best == null) {
+            return;
+        }
+
+        // without bluetooth, wait for the user to start the setup
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
+            return;
+        }
+
+        if (!reliableHosts.isEmpty()) {
+            // the best reliable host, which need not be the best host overall
+            HostRecord first = reliableHosts.get(0);
+            String name = first.getName() != null ? first.getName() : first.getAddress();
+            Toast.makeText(this, String.format(mConnectingRecentHost, name),
+                    Toast.LENGTH_SHORT).show();
+            String[] raceAddresses = null;
+            if (reliableHosts.size() > 1) {
+                raceAddresses = new String[reliableHosts.size()];
+                for (int i = 0; i < raceAddresses.length; i++) {
+                    raceAddresses[i] = reliableHosts.get(i).getAddress();
+                }
+            }
+            startConnection(first.getName(), first.getAddress(), raceAddresses);
+            return;
+        }
+
+        DeviceAdapter recentDevicesAdapter = new DeviceAdapter(recentDevices);
+        recentDevicesAdapter.setCallback(new DeviceAdapter.Callback() {
+            @Override
+            public void onItemClicked(int index) {
+                Device device = recentDevices.get(index);
+                startConnection(device.getName(), device.getAddress());
+            }
+
+            @Override
+            public void onButtonClicked(int index) {
+                Device device = recentDevices.get(index);
+                startConnection(device.getName(), device.getAddress());
+            }
+        });
+
+        displayDevicesDialog(mRecentHostsTitle, recentDevicesAdapter, false);
+    }
+
     /**
      * Get devices already paired to this device.
      */
@@ -128,31 +269,24 @@ public class ConnectionActivity extends AppCompatActivity {
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
 
         if (pairedDevices.size() > 0) {
-            final List<Map<String, String>> pairedDevicesList = new ArrayList<>();
+            final List<Device> pairedDevicesList = new ArrayList<>(pairedDevices.size());
 
             for (BluetoothDevice btDevice : pairedDevices) {
-                String deviceName = btDevice.getName();
-                String deviceMACAddress = btDevice.getAddress();
-
-                Map<String, String> map = new HashMap<>();
-                map.put("device_name", deviceName);
-                map.put("device_address", deviceMACAddress);
-
-                pairedDevicesList.add(map);
+                pairedDevicesList.add(toDevice(btDevice, Device.RSSI_UNKNOWN));
             }
 
             final DeviceAdapter pairedDevicesAdapter = new DeviceAdapter(pairedDevicesList);
             pairedDevicesAdapter.setCallback(new DeviceAdapter.Callback() {
                 @Override
                 public void onItemClicked(int index) {
-                    Map<String, String> map = pairedDevicesList.get(index);
-                    startConnection(map.get("device_name"), map.get("device_address"));
+                    Device device = pairedDevicesList.get(index);
+                    startConnection(device.getName(), device.getAddress());
                 }
 
                 @Override
                 public void onButtonClicked(int index) {
-                    Map<String, String> map = pairedDevicesList.get(index);
-                    startConnection(map.get("device_name"), map.get("device_address"));
+                    Device device = pairedDevicesList.get(index);
+                    startConnection(device.getName(), device.getAddress());
                 }
             });
 
@@ -167,8 +301,10 @@ public class ConnectionActivity extends AppCompatActivity {
      * Start discovery of nearby devices. If found, add them to adapter.
      */
     private void doDiscovery() {
-        if (mDiscoveredDevicesList.size() > 0) {
-            mDiscoveredDevicesList.clear();
+        if (mDiscoveredDevices.size() > 0 || mDiscoveredDevices.hasPendingUpdates()) {
+            mHandler.removeCallbacks(mDispatchDiscoveredDevices);
+            mDiscoveredDevices.clear();
+            mDiscoveredDevicesAdapter.notifyDataSetChanged();
         }
         if (mBluetoothAdapter.isDiscovering()) {
             mBluetoothAdapter.cancelDiscovery();
@@ -178,20 +314,29 @@ public class ConnectionActivity extends AppCompatActivity {
         mDiscoveredDevicesAdapter.setCallback(new DeviceAdapter.Callback() {
             @Override
             public void onItemClicked(int index) {
-                Map<String, String> map = mDiscoveredDevicesList.get(index);
-                startConnection(map.get("device_name"), map.get("device_address"));
+                Device device = mDiscoveredDevicesList.get(index);
+                startConnection(device.getName(), device.getAddress());
             }
 
             @Override
             public void onButtonClicked(int index) {
-                Map<String, String> map = mDiscoveredDevicesList.get(index);
-                startConnection(map.get("device_name"), map.get("device_address"));
+                Device device = mDiscoveredDevicesList.get(index);
+                startConnection(device.getName(), device.getAddress());
             }
         });
 
         displayDevicesDialog(mDiscoveredDevicesTitle, mDiscoveredDevicesAdapter, true);
     }
 
+    /**
+     * @param device The BluetoothDevice to describe.
+     * @param rssi The signal strength it was found with, or Device.RSSI_UNKNOWN.
+     */
+    private static Device toDevice(BluetoothDevice device, int rssi) {
+        return new Device(MacAddress.parse(device.getAddress()), device.getName(), rssi,
+                device.getBondState(), SystemClock.elapsedRealtime());
+    }
+
     /**
      * Display dialog showing either the paired devices or discovered devices.
      * @param title The String to be used as the title of the dialog.
@@ -242,6 +387,16 @@ public class ConnectionActivity extends AppCompatActivity {
      * @param deviceAddress The String of the address of the device to connect with.
      */
     private void startConnection(String deviceName, String deviceAddress) {
+        startConnection(deviceName, deviceAddress, null);
+    }
+
+    /**
+     * Initiate connection with whichever of the devices answers first.
+     * @param deviceName The String of the name to show while connecting.
+     * @param deviceAddress The String of the address to show while connecting.
+     * @param raceAddresses The addresses of the devices to race, or null for just deviceAddress.
+     */
+    private void startConnection(String deviceName, String deviceAddress, String[] raceAddresses) {
         if (mBluetoothAdapter.isDiscovering()) {
             mBluetoothAdapter.cancelDiscovery();
         }
@@ -251,6 +406,9 @@ public class ConnectionActivity extends AppCompatActivity {
         Intent intent = new Intent(this, DeviceActivity.class);
         intent.putExtra(EXTRA_DEVICE_NAME, deviceName);
         intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
+        if (raceAddresses != null && raceAddresses.length > 1) {
+            intent.putExtra(EXTRA_DEVICE_ADDRESSES, raceAddresses);
+        }
         startActivity(intent);
     }
 
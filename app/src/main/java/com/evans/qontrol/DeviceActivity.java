@@ -2,23 +2,34 @@ package com.evans.qontrol;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.ParcelFileDescriptor;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
-import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
 import android.widget.TextView;
-import android.widget.Toast;
 
+import com.evans.qontrol.link.LatencyHistogram;
+import com.evans.qontrol.link.LinkListener;
+import com.evans.qontrol.link.Transfer;
+import com.evans.qontrol.protocol.Opcodes;
 import com.evans.qontrol.services.QBluetoothService;
+import com.evans.qontrol.transfer.FileSource;
 import com.wang.avi.AVLoadingIndicatorView;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import butterknife.BindString;
 import butterknife.BindView;
 import butterknife.ButterKnife;
@@ -33,22 +44,35 @@ public class DeviceActivity extends AppCompatActivity {
     String mDeviceConnecting;
     @BindString(R.string.text_device_connected)
     String mDeviceConnected;
+    @BindString(R.string.text_device_reconnecting)
+    String mDeviceReconnecting;
     @BindView(R.id.avi_connecting)
     AVLoadingIndicatorView mAVIConnecting;
+    @BindView(R.id.text_link_stats)
+    TextView mLinkStats;
+    @BindString(R.string.text_link_stats)
+    String mLinkStatsFormat;
+    @BindView(R.id.text_device_transfer)
+    TextView mTransferStatus;
+    @BindString(R.string.text_transfer_clipboard)
+    String mTransferClipboard;
+    @BindString(R.string.text_transfer_progress)
+    String mTransferProgressFormat;
+    @BindString(R.string.text_transfer_done)
+    String mTransferDoneFormat;
+    @BindString(R.string.text_transfer_failed)
+    String mTransferFailedFormat;
 
-    // Message types sent from QBluetoothService Handler
-    public static final int MSG_CONNECTION_STATUS = 1;
-
-    // Key names received from QBluetoothService Handler
-    public static final String CONNECTION_STATUS = "connection_status";
-
-    // Connection statuses
-    public static final String CONN_SUCCESSFUL = "success";
-    public static final String CONN_FAILED = "failed";
-    public static final String CONN_LOST = "lost";
+    // refresh rate of the link stats overlay
+    private static final long STATS_REFRESH_MS = 1000;
+    private static final int REQUEST_PICK_FILE = 1;
 
     private BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
     private QBluetoothService mQBluetoothService = null;
+    private final Handler mHandler = new Handler();
+    // the transfer shown in the status line
+    private Transfer mTransfer;
+    private String mTransferName;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -68,40 +92,232 @@ public class DeviceActivity extends AppCompatActivity {
         mDeviceStatus.setText(mDeviceConnecting);
         mAVIConnecting.smoothToShow();
 
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
-        mQBluetoothService = new QBluetoothService(this);
-        mQBluetoothService.connect(device);
+        mQBluetoothService = new QBluetoothService(QBluetoothService.getHostStore(this));
+        String[] raceAddresses =
+                intent.getStringArrayExtra(ConnectionActivity.EXTRA_DEVICE_ADDRESSES);
+        if (raceAddresses != null) {
+            // several computers may be in reach; whichever answers first is used
+            List<BluetoothDevice> devices = new ArrayList<>(raceAddresses.length);
+            for (String address : raceAddresses) {
+                devices.add(mBluetoothAdapter.getRemoteDevice(address));
+            }
+            mQBluetoothService.connect(devices);
+        } else {
+            BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddress);
+            mQBluetoothService.connect(device);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // the service would otherwise keep reconnecting in the background
+        mQBluetoothService.stop();
+        new ShutdownTask(mQBluetoothService)
+                .executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        super.onDestroy();
+    }
+
+    /**
+     * Releases the service's threads off the main thread; a connect that ignores close() can
+     * hold the shutdown up for a second.
+     */
+    private static class ShutdownTask extends AsyncTask<Void, Void, Void> {
+        private final QBluetoothService mmService;
+
+        ShutdownTask(QBluetoothService service) {
+            mmService = service;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            mmService.shutdown();
+            return null;
+        }
     }
 
     @Override
     protected void onPause() {
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mQBluetoothService.removeListener(mLinkListener);
+        mHandler.removeCallbacks(mStatsUpdater);
         super.onPause();
     }
 
     @Override
     protected void onResume() {
-        LocalBroadcastManager.getInstance(this).registerReceiver(
-                mBroadcastReceiver, new IntentFilter("QEvents"));
+        mQBluetoothService.addListener(mLinkListener);
+        if (mLinkStats.getVisibility() == View.VISIBLE) {
+            mHandler.post(mStatsUpdater);
+        }
         super.onResume();
     }
 
-    private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_device, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_show_stats:
+                boolean show = !item.isChecked();
+                item.setChecked(show);
+                showLinkStats(show);
+                return true;
+            case R.id.action_send_clipboard:
+                sendClipboard();
+                return true;
+            case R.id.action_send_file:
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.setType("*/*");
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                startActivityForResult(intent, REQUEST_PICK_FILE);
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_PICK_FILE && resultCode == RESULT_OK && data != null) {
+            sendFile(data.getData());
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    private void sendClipboard() {
+        ClipboardManager clipboard = (ClipboardManager) getSystemService(CLIPBOARD_SERVICE);
+        ClipData clip = clipboard.getPrimaryClip();
+        if (clip == null || clip.getItemCount() == 0) {
+            return;
+        }
+        CharSequence text = clip.getItemAt(0).coerceToText(this);
+        showTransfer(mQBluetoothService.sendClipboard(text.toString()), mTransferClipboard);
+    }
+
+    /**
+     * Stream the picked file to the computer. Only the descriptor is opened here; the data is
+     * read chunk by chunk on the writer thread.
+     */
+    private void sendFile(Uri uri) {
+        String name = uri.getLastPathSegment();
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = getContentResolver().openFileDescriptor(uri, "r");
+        } catch (IOException e) {
+            mTransferStatus.setVisibility(View.VISIBLE);
+            mTransferStatus.setText(String.format(mTransferFailedFormat, name));
+            return;
+        }
+        long size = descriptor.getStatSize();
+        if (size < 0) {
+            // not a plain file, so the size is not known up front
+            try {
+                descriptor.close();
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+            mTransferStatus.setVisibility(View.VISIBLE);
+            mTransferStatus.setText(String.format(mTransferFailedFormat, name));
+            return;
+        }
+        FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+        FileSource source = new FileSource(in.getChannel(), size, descriptor);
+        showTransfer(mQBluetoothService.startTransfer(Opcodes.TRANSFER_FILE, name, source), name);
+    }
+
+    private void showTransfer(Transfer transfer, String name) {
+        mTransfer = transfer;
+        mTransferName = name;
+        mTransferStatus.setVisibility(View.VISIBLE);
+        if (transfer.isFinished()) {
+            showTransferFinished(transfer.getState());
+        } else {
+            showTransferProgress(transfer.getBytesAcked());
+        }
+    }
+
+    private void showTransferProgress(long bytesAcked) {
+        long size = mTransfer.getSize();
+        int percent = size > 0 ? (int) (bytesAcked * 100 / size) : 0;
+        mTransferStatus.setText(String.format(mTransferProgressFormat, mTransferName, percent));
+    }
+
+    private void showTransferFinished(int state) {
+        mTransferStatus.setText(String.format(state == Transfer.STATE_DONE
+                ? mTransferDoneFormat : mTransferFailedFormat, mTransferName));
+    }
+
+    /**
+     * Show or hide the overlay with round-trip times of the connection.
+     * @param show The Boolean to check whether the overlay should be visible.
+     */
+    private void showLinkStats(boolean show) {
+        mHandler.removeCallbacks(mStatsUpdater);
+        if (show) {
+            mLinkStats.setVisibility(View.VISIBLE);
+            mHandler.post(mStatsUpdater);
+        } else {
+            mLinkStats.setVisibility(View.GONE);
+        }
+    }
+
+    private final Runnable mStatsUpdater = new Runnable() {
+        @Override
+        public void run() {
+            LatencyHistogram latency = mQBluetoothService.getLatencyHistogram();
+            mLinkStats.setText(String.format(mLinkStatsFormat,
+                    latency.getPercentile(50) / 1e6,
+                    latency.getPercentile(90) / 1e6,
+                    latency.getPercentile(99) / 1e6,
+                    latency.getMax() / 1e6,
+                    latency.getCount()));
+            mHandler.postDelayed(this, STATS_REFRESH_MS);
+        }
+    };
+
+    private final LinkListener mLinkListener = new LinkListener() {
+        @Override
+        public void onConnected(int transportType) {
+            // a race may have been won by another device than the one shown
+            BluetoothDevice device = mQBluetoothService.getConnectedDevice();
+            if (device != null && getSupportActionBar() != null) {
+                getSupportActionBar().setTitle(device.getName());
+            }
+            mDeviceStatus.setText(mDeviceConnected);
+            mAVIConnecting.smoothToHide();
+        }
+
+        @Override
+        public void onConnectionFailed() {
+            mDeviceStatus.setText("Connection failed.");
+            mAVIConnecting.smoothToHide();
+        }
+
+        @Override
+        public void onConnectionLost() {
+            mDeviceStatus.setText("Connection lost.");
+            mAVIConnecting.smoothToHide();
+        }
+
+        @Override
+        public void onReconnecting(int attempt, long delayMillis) {
+            mDeviceStatus.setText(mDeviceReconnecting);
+            mAVIConnecting.smoothToShow();
+        }
+
+        @Override
+        public void onTransferProgress(int transferId, long bytesAcked) {
+            if (mTransfer != null && mTransfer.getId() == transferId) {
+                showTransferProgress(bytesAcked);
+            }
+        }
+
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String message = intent.getStringExtra(CONNECTION_STATUS);
-
-            Log.d("QSERVICE", "Message: " + message);
-
-            if (CONN_SUCCESSFUL.equals(message)) {
-                mDeviceStatus.setText(mDeviceConnected);
-                mAVIConnecting.smoothToHide();
-            } else if (CONN_FAILED.equals(message)) {
-                mDeviceStatus.setText("Connection failed.");
-                mAVIConnecting.smoothToHide();
-            } else if (CONN_LOST.equals(message)) {
-                mDeviceStatus.setText("Connection lost.");
-                mAVIConnecting.smoothToHide();
+        public void onTransferFinished(int transferId, int state) {
+            if (mTransfer != null && mTransfer.getId() == transferId) {
+                showTransferFinished(state);
             }
         }
     };
@@ -9,14 +9,15 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import com.evans.qontrol.R;
+import com.evans.qontrol.models.Device;
 
 import java.util.List;
-import java.util.Map;
 
 /**
  * Created by evans on 12/27/16.
  *
- * Adapter for devices (paired or discovered) in the dialog.
+ * Adapter for devices (paired or discovered) in the dialog. Rows have stable ids (the packed
+ * MAC address), so RecyclerView can keep a row's views when it only moves.
  */
 
 public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceVH> {
@@ -27,11 +28,12 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceVH>
         void onButtonClicked(int index);
     }
 
-    private final List<Map<String, String>> mPairedDevices;
+    private final List<Device> mPairedDevices;
     private Callback mCallback;
 
-    public DeviceAdapter(List<Map<String, String>> pairedDevices) {
+    public DeviceAdapter(List<Device> pairedDevices) {
         this.mPairedDevices = pairedDevices;
+        setHasStableIds(true);
     }
 
     public void setCallback(Callback mCallback) {
@@ -48,11 +50,17 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceVH>
 
     @Override
     public void onBindViewHolder(DeviceVH holder, int position) {
-        holder.deviceName.setText(mPairedDevices.get(position).get("device_name"));
-        holder.deviceAddress.setText(mPairedDevices.get(position).get("device_address"));
+        Device device = mPairedDevices.get(position);
+        holder.deviceName.setText(device.getName());
+        holder.deviceAddress.setText(device.getAddress());
         holder.connectBtn.setTag(position);
     }
 
+    @Override
+    public long getItemId(int position) {
+        return mPairedDevices.get(position).getMac();
+    }
+
     @Override
     public int getItemCount() {
         return mPairedDevices.size();
@@ -0,0 +1,259 @@
+package com.evans.qontrol.discovery;
+
+import com.evans.qontrol.models.Device;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by evans on 3/18/17.
+ *
+ * Devices seen during discovery, one row per device however often it is reported. Rows are
+ * ordered by signal strength, strongest first. Reports are merged into pending updates in
+ * O(1) by packed MAC address; {@link #dispatchUpdates(Callback)} then applies them to the
+ * rows and reports the minimal inserts, changes and moves, merged into ranges where possible.
+ */
+
+public class DeviceRegistry {
+
+    public interface Callback {
+        void onInserted(int position, int count);
+
+        void onChanged(int position, int count);
+
+        void onMoved(int fromPosition, int toPosition);
+    }
+
+    // what a report changed about a device since the last dispatch
+    private static final int DIRTY_NEW = 1;
+    private static final int DIRTY_NAME = 2;
+    private static final int DIRTY_RSSI = 4;
+    private static final int DIRTY_CHANGED = 8;
+
+    // kinds of batched notifications
+    private static final int BATCH_NONE = 0;
+    private static final int BATCH_INSERTED = 1;
+    private static final int BATCH_CHANGED = 2;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final List<Device> mRows;
+    private final MacIndex mIndex = new MacIndex(INITIAL_CAPACITY);
+
+    // per device, by the slot the index maps its address to
+    private Device[] mDevices = new Device[INITIAL_CAPACITY];
+    private int[] mDirty = new int[INITIAL_CAPACITY];
+    private int[] mPositions = new int[INITIAL_CAPACITY];
+    private int mSlots;
+
+    // slots by row position
+    private int[] mOrder = new int[INITIAL_CAPACITY];
+    private int[] mPending = new int[INITIAL_CAPACITY];
+    private int mPendingCount;
+
+    private int mBatchType;
+    private int mBatchStart;
+    private int mBatchCount;
+
+    /**
+     * @param rows The list to keep the rows in, e.g. the one a DeviceAdapter shows. It is only
+     * modified from {@link #dispatchUpdates(Callback)} and {@link #clear()}.
+     */
+    public DeviceRegistry(List<Device> rows) {
+        mRows = rows;
+        mRows.clear();
+    }
+
+    /**
+     * Record a report of a device, merged with what is known about it by
+     * {@link Device#merge(Device)}. Nothing is shown until the next dispatch.
+     * @return true if the report added or changed anything.
+     */
+    public boolean upsert(Device report) {
+        int slot = mIndex.get(report.getMac());
+        int dirty = 0;
+        if (slot == MacIndex.MISSING) {
+            slot = newSlot(report);
+            dirty = DIRTY_NEW;
+        } else {
+            Device known = mDevices[slot];
+            Device merged = known.merge(report);
+            if (merged == known) {
+                return false;
+            }
+            mDevices[slot] = merged;
+            // names are interned
+            if (merged.getName() != known.getName()) {
+                dirty |= DIRTY_NAME;
+            }
+            if (merged.getRssi() != known.getRssi()) {
+                dirty |= DIRTY_RSSI;
+            }
+            if (dirty == 0) {
+                // nothing shown changed; the row picks the update up with the next one
+                dirty = DIRTY_CHANGED;
+            }
+        }
+
+        if (mDirty[slot] == 0) {
+            mPending = grow(mPending, mPendingCount + 1);
+            mPending[mPendingCount++] = slot;
+        }
+        mDirty[slot] |= dirty;
+        return true;
+    }
+
+    public boolean hasPendingUpdates() {
+        return mPendingCount > 0;
+    }
+
+    /**
+     * @return The number of rows, not counting devices still pending.
+     */
+    public int size() {
+        return mRows.size();
+    }
+
+    /**
+     * Apply the pending reports to the rows.
+     * @param callback Told about every row inserted, changed or moved, in order.
+     */
+    public void dispatchUpdates(Callback callback) {
+        for (int i = 0; i < mPendingCount; i++) {
+            int slot = mPending[i];
+            int dirty = mDirty[slot];
+            mDirty[slot] = 0;
+
+            Device device = mDevices[slot];
+            if ((dirty & DIRTY_NEW) != 0) {
+                int position = insertionPoint(device.getRssi(), mRows.size());
+                insert(slot, position, device);
+                batch(callback, BATCH_INSERTED, position);
+                continue;
+            }
+
+            int position = mPositions[slot];
+            if ((dirty & DIRTY_RSSI) != 0) {
+                remove(position);
+                int to = insertionPoint(device.getRssi(), mRows.size());
+                insert(slot, to, device);
+                if (to != position) {
+                    flushBatch(callback);
+                    callback.onMoved(position, to);
+                    position = to;
+                }
+            } else {
+                mRows.set(position, device);
+            }
+            if ((dirty & DIRTY_NAME) != 0) {
+                batch(callback, BATCH_CHANGED, position);
+            }
+        }
+        mPendingCount = 0;
+        flushBatch(callback);
+    }
+
+    /**
+     * Forget every device. The caller must refresh whatever shows the rows.
+     */
+    public void clear() {
+        mRows.clear();
+        mIndex.clear();
+        Arrays.fill(mDirty, 0, mSlots, 0);
+        Arrays.fill(mDevices, 0, mSlots, null);
+        mSlots = 0;
+        mPendingCount = 0;
+    }
+
+    private int newSlot(Device device) {
+        int slot = mSlots++;
+        if (slot == mDevices.length) {
+            int capacity = slot * 2;
+            mDevices = Arrays.copyOf(mDevices, capacity);
+            mDirty = Arrays.copyOf(mDirty, capacity);
+            mPositions = Arrays.copyOf(mPositions, capacity);
+        }
+        mDevices[slot] = device;
+        mIndex.put(device.getMac(), slot);
+        return slot;
+    }
+
+    /**
+     * @return The position before the first row with a weaker signal, so equal signals keep
+     * the order they were found in.
+     */
+    private int insertionPoint(int rssi, int size) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            // rows still hold what was last dispatched, which is what they are sorted by
+            if (mRows.get(mid).getRssi() >= rssi) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insert(int slot, int position, Device device) {
+        int size = mRows.size();
+        mOrder = grow(mOrder, size + 1);
+        System.arraycopy(mOrder, position, mOrder, position + 1, size - position);
+        mOrder[position] = slot;
+        for (int i = position; i <= size; i++) {
+            mPositions[mOrder[i]] = i;
+        }
+        mRows.add(position, device);
+    }
+
+    private void remove(int position) {
+        int size = mRows.size();
+        System.arraycopy(mOrder, position + 1, mOrder, position, size - position - 1);
+        for (int i = position; i < size - 1; i++) {
+            mPositions[mOrder[i]] = i;
+        }
+        mRows.remove(position);
+    }
+
+    private void batch(Callback callback, int type, int position) {
+        if (type == mBatchType) {
+            if (type == BATCH_INSERTED
+                    && position >= mBatchStart && position <= mBatchStart + mBatchCount) {
+                mBatchCount++;
+                return;
+            }
+            if (type == BATCH_CHANGED
+                    && position >= mBatchStart - 1 && position <= mBatchStart + mBatchCount) {
+                if (position == mBatchStart - 1) {
+                    mBatchStart--;
+                    mBatchCount++;
+                } else if (position == mBatchStart + mBatchCount) {
+                    mBatchCount++;
+                }
+                return;
+            }
+        }
+        flushBatch(callback);
+        mBatchType = type;
+        mBatchStart = position;
+        mBatchCount = 1;
+    }
+
+    private void flushBatch(Callback callback) {
+        if (mBatchType == BATCH_INSERTED) {
+            callback.onInserted(mBatchStart, mBatchCount);
+        } else if (mBatchType == BATCH_CHANGED) {
+            callback.onChanged(mBatchStart, mBatchCount);
+        }
+        mBatchType = BATCH_NONE;
+    }
+
+    private static int[] grow(int[] array, int minLength) {
+        if (array.length >= minLength) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(minLength, array.length * 2));
+    }
+}
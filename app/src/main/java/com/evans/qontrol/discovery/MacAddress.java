@@ -0,0 +1,53 @@
+package com.evans.qontrol.discovery;
+
+/**
+ * Created by evans on 3/18/17.
+ *
+ * Bluetooth MAC addresses packed into the low 48 bits of a long, so they can be compared and
+ * hashed without String work.
+ */
+
+public final class MacAddress {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * @param address An address in the "00:11:22:AA:BB:CC" form BluetoothDevice uses.
+     * @return The packed address.
+     * @throws IllegalArgumentException if the address is malformed.
+     */
+    public static long parse(String address) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("Invalid MAC address: " + address);
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i += 3) {
+            int high = Character.digit(address.charAt(i), 16);
+            int low = Character.digit(address.charAt(i + 1), 16);
+            if (high < 0 || low < 0 || (i < 15 && address.charAt(i + 2) != ':')) {
+                throw new IllegalArgumentException("Invalid MAC address: " + address);
+            }
+            mac = (mac << 8) | (high << 4) | low;
+        }
+        return mac;
+    }
+
+    /**
+     * @return The address in upper-case "00:11:22:AA:BB:CC" form.
+     */
+    public static String toString(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - 8 * i)) & 0xFF;
+            chars[i * 3] = HEX_DIGITS[b >>> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[b & 0xF];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,98 @@
+package com.evans.qontrol.discovery;
+
+import java.util.Arrays;
+
+/**
+ * Created by evans on 3/18/17.
+ *
+ * Open-addressing map from a packed MAC address to an int, without boxing. Packed addresses
+ * only use 48 bits, so -1 marks an empty slot.
+ */
+
+class MacIndex {
+
+    static final int MISSING = -1;
+
+    private static final long EMPTY = -1L;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+
+    MacIndex(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The value for the address, or {@link #MISSING}.
+     */
+    int get(long mac) {
+        int mask = mKeys.length - 1;
+        for (int i = hash(mac) & mask; ; i = (i + 1) & mask) {
+            long key = mKeys[i];
+            if (key == mac) {
+                return mValues[i];
+            }
+            if (key == EMPTY) {
+                return MISSING;
+            }
+        }
+    }
+
+    void put(long mac, int value) {
+        int mask = mKeys.length - 1;
+        for (int i = hash(mac) & mask; ; i = (i + 1) & mask) {
+            long key = mKeys[i];
+            if (key == mac) {
+                mValues[i] = value;
+                return;
+            }
+            if (key == EMPTY) {
+                mKeys[i] = mac;
+                mValues[i] = value;
+                // keep the table at most half full so probes stay short
+                if (++mSize * 2 > mKeys.length) {
+                    rehash(mKeys.length * 2);
+                }
+                return;
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(capacity);
+        mSize = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                put(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    private static int hash(long mac) {
+        // vendor prefixes repeat a lot, so mix the whole address
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
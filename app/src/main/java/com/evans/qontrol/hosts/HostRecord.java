@@ -0,0 +1,120 @@
+package com.evans.qontrol.hosts;
+
+/**
+ * Created by evans on 3/23/17.
+ *
+ * What is remembered about a host the app has connected to. Immutable; outcomes of new
+ * connection attempts create a new HostRecord.
+ */
+
+public final class HostRecord {
+
+    // once this many attempts are counted, old outcomes are halved so recent ones dominate
+    private static final int MAX_COUNTED_ATTEMPTS = 20;
+    // the score halves for every this long without use
+    private static final long SCORE_HALF_LIFE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final String mAddress;
+    private final String mName;
+    private final int mTransportType;
+    private final int mChannel;
+    private final int mConnectMillis;
+    private final int mAttempts;
+    private final int mSuccesses;
+    private final long mLastUsed;
+
+    /**
+     * @param address The address of the host, as reported by Transport.getAddress().
+     * @param name The name of the host, or null if not known.
+     * @param transportType The Transport.TYPE_* of the last successful connection, or 0.
+     * @param channel The RFCOMM channel of the last successful connection, or -1.
+     * @param connectMillis The smoothed time to connect, or 0 if never connected.
+     * @param attempts The number of attempts counted.
+     * @param successes How many of the counted attempts succeeded.
+     * @param lastUsed When the host was last tried, in milliseconds since the epoch.
+     */
+    public HostRecord(String address, String name, int transportType, int channel,
+                      int connectMillis, int attempts, int successes, long lastUsed) {
+        mAddress = address;
+        mName = name;
+        mTransportType = transportType;
+        mChannel = channel;
+        mConnectMillis = connectMillis;
+        mAttempts = attempts;
+        mSuccesses = successes;
+        mLastUsed = lastUsed;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getTransportType() {
+        return mTransportType;
+    }
+
+    public int getChannel() {
+        return mChannel;
+    }
+
+    public int getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    public int getSuccesses() {
+        return mSuccesses;
+    }
+
+    public long getLastUsed() {
+        return mLastUsed;
+    }
+
+    /**
+     * @return The share of counted attempts that succeeded, smoothed so one attempt does not
+     * make a host look perfect or hopeless.
+     */
+    public double getSuccessRate() {
+        return (mSuccesses + 1) / (double) (mAttempts + 2);
+    }
+
+    /**
+     * @return How good a candidate the host is at the given time; higher is better. The
+     * success rate halves for every week the host went unused, and faster hosts win ties.
+     */
+    public double getScore(long now) {
+        double age = Math.max(0, now - mLastUsed) / (double) SCORE_HALF_LIFE_MS;
+        double score = getSuccessRate() * Math.pow(0.5, age);
+        return score / (1 + mConnectMillis / 60000.0);
+    }
+
+    HostRecord withSuccess(String name, int transportType, int channel, int connectMillis,
+                           long now) {
+        int smoothed = mConnectMillis == 0
+                ? connectMillis : (3 * mConnectMillis + connectMillis) / 4;
+        return counted(name, transportType, channel, smoothed, 1, now);
+    }
+
+    HostRecord withFailure(String name, long now) {
+        return counted(name, mTransportType, mChannel, mConnectMillis, 0, now);
+    }
+
+    private HostRecord counted(String name, int transportType, int channel, int connectMillis,
+                               int success, long now) {
+        int attempts = mAttempts + 1;
+        int successes = mSuccesses + success;
+        if (attempts > MAX_COUNTED_ATTEMPTS) {
+            attempts = (attempts + 1) / 2;
+            successes = successes / 2;
+        }
+        return new HostRecord(mAddress, name != null ? name : mName, transportType, channel,
+                connectMillis, attempts, successes, Math.max(mLastUsed, now));
+    }
+}
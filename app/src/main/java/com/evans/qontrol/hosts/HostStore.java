@@ -0,0 +1,203 @@
+package com.evans.qontrol.hosts;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Created by evans on 3/23/17.
+ *
+ * Small on-device store of the hosts recently connected to, so startup can offer them without
+ * a discovery. Both {@link #load()} and {@link #save()} do file I/O and must be called off the
+ * main thread; everything else works on the in-memory copy.
+ */
+
+public class HostStore {
+
+    public static final int MAX_HOSTS = 8;
+
+    private static final int MAGIC = 0x51484f53; // "QHOS"
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final List<HostRecord> mHosts = new ArrayList<>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    public HostStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read the store from its file, once. A missing or unreadable file leaves the store empty.
+     */
+    public synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return;
+            }
+            int count = Math.min(in.readUnsignedByte(), MAX_HOSTS);
+            List<HostRecord> hosts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                hosts.add(new HostRecord(address, name, in.readUnsignedByte(), in.readInt(),
+                        in.readInt(), in.readUnsignedByte(), in.readUnsignedByte(),
+                        in.readLong()));
+            }
+            mHosts.addAll(hosts);
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+        } catch (IOException e) {
+            // a damaged store is not worth failing startup for; it is rewritten on next save
+            mHosts.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the store to its file if it changed. The file is replaced in one step, so a crash
+     * part way leaves the previous version.
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(mHosts.size());
+            for (HostRecord host : mHosts) {
+                out.writeUTF(host.getAddress());
+                out.writeBoolean(host.getName() != null);
+                if (host.getName() != null) {
+                    out.writeUTF(host.getName());
+                }
+                out.writeByte(host.getTransportType());
+                out.writeInt(host.getChannel());
+                out.writeInt(host.getConnectMillis());
+                out.writeByte(host.getAttempts());
+                out.writeByte(host.getSuccesses());
+                out.writeLong(host.getLastUsed());
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * @return The record of the host, or null if not known.
+     */
+    public synchronized HostRecord get(String address) {
+        int index = indexOf(address);
+        return index >= 0 ? mHosts.get(index) : null;
+    }
+
+    /**
+     * @return The known hosts, best candidate first.
+     */
+    public synchronized List<HostRecord> getHosts(long now) {
+        List<HostRecord> hosts = new ArrayList<>(mHosts);
+        sortByScore(hosts, now);
+        return hosts;
+    }
+
+    /**
+     * Remember a successful connection.
+     * @param connectMillis How long the connection took to establish.
+     */
+    public synchronized void recordSuccess(String address, String name, int transportType,
+                                           int channel, int connectMillis, long now) {
+        HostRecord host = get(address);
+        if (host == null) {
+            host = new HostRecord(address, name, transportType, channel, 0, 0, 0, now);
+        }
+        put(host.withSuccess(name, transportType, channel, connectMillis, now), now);
+    }
+
+    /**
+     * Remember a failed connection attempt. Hosts never connected to are not remembered.
+     */
+    public synchronized void recordFailure(String address, String name, long now) {
+        HostRecord host = get(address);
+        if (host != null) {
+            put(host.withFailure(name, now), now);
+        }
+    }
+
+    private void put(HostRecord host, long now) {
+        int index = indexOf(host.getAddress());
+        if (index >= 0) {
+            mHosts.set(index, host);
+        } else {
+            mHosts.add(host);
+            if (mHosts.size() > MAX_HOSTS) {
+                // make room by dropping the worst candidate
+                sortByScore(mHosts, now);
+                mHosts.remove(mHosts.size() - 1);
+            }
+        }
+        mDirty = true;
+    }
+
+    private int indexOf(String address) {
+        for (int i = 0; i < mHosts.size(); i++) {
+            if (mHosts.get(i).getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void sortByScore(List<HostRecord> hosts, final long now) {
+        Collections.sort(hosts, new Comparator<HostRecord>() {
+            @Override
+            public int compare(HostRecord a, HostRecord b) {
+                int order = Double.compare(b.getScore(now), a.getScore(now));
+                if (order != 0) {
+                    return order;
+                }
+                // most recently used first; Long.compare needs API 19
+                return a.getLastUsed() < b.getLastUsed() ? 1
+                        : a.getLastUsed() > b.getLastUsed() ? -1 : 0;
+            }
+        });
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing useful to do
+        }
+    }
+}
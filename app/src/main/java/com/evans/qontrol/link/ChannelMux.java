@@ -0,0 +1,321 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.protocol.FrameCompressor;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Created by evans on 3/28/17.
+ *
+ * Logical bulk channels sharing one connection. Bulk messages are cut into CHANNEL_DATA
+ * chunks of at most the chunk size, and the {@link OutboundWriter} takes one chunk at a time
+ * and only when no input frame is waiting, so a bulk transfer delays input by at most one
+ * chunk's airtime. Channels with data share the link by deficit round robin, in proportion
+ * to their weights. Besides copied messages, a channel can carry {@link Source}s that produce
+ * their data as it is sent, e.g. a file transfer waiting on flow control credit.
+ *
+ * Channel 0 is the input stream itself; bulk channels are numbered from 1.
+ */
+
+public class ChannelMux {
+
+    /**
+     * Data pulled by the writer thread one chunk at a time. Sources on a channel are sent one
+     * after the other; the last chunk of each carries CHANNEL_END.
+     */
+    public interface Source {
+        /**
+         * @return The number of bytes that may be sent now, 0 while blocked, e.g. waiting
+         * for credit, or -1 if the source was abandoned and should be dropped.
+         */
+        int available();
+
+        /**
+         * Copy the next bytes of the source.
+         * @return The number of bytes copied, 0 if blocked after all, or -1 if the source
+         * failed and should be dropped.
+         */
+        int read(byte[] dst, int offset, int length);
+
+        /**
+         * @return true once every byte has been read.
+         */
+        boolean atEnd();
+    }
+
+    public static final int MAX_CHANNELS = 8;
+    public static final int MAX_WEIGHT = 16;
+    // about 20 ms of airtime on a typical RFCOMM link
+    public static final int DEFAULT_CHUNK_SIZE = 512;
+    // well inside both the frame body limit and the writer's batch buffer
+    public static final int MAX_CHUNK_SIZE = 16 * 1024;
+    // bytes waiting across all channels before send() refuses more
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+    // chunks of a source in a row that did not compress before the rest is sent as it is
+    private static final int MAX_COMPRESSION_MISSES = 4;
+
+    private final Channel[] mChannels = new Channel[MAX_CHANNELS];
+    private final int mChunkSize;
+    private final int mCapacity;
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private final byte[] mChunk;
+    private FrameCompressor mCompressor;
+    // guarded by this
+    private int mPendingBytes;
+    private int mCurrent = 1;
+    private boolean mVisiting;
+    // written outside the lock so the writer can check for work cheaply
+    private volatile boolean mHasData;
+
+    public ChannelMux() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param chunkSize The most data bytes in one chunk.
+     * @param capacity The most bytes waiting across all channels.
+     */
+    public ChannelMux(int chunkSize, int capacity) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+        mChunk = new byte[chunkSize];
+        mCapacity = capacity;
+        for (int i = 1; i < MAX_CHANNELS; i++) {
+            mChannels[i] = new Channel();
+        }
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Set the share of the link a channel gets while other channels also have data.
+     * @param channel The bulk channel, 1 to MAX_CHANNELS - 1.
+     * @param weight The weight, 1 to MAX_WEIGHT; channels start at 1.
+     */
+    public synchronized void setWeight(int channel, int weight) {
+        if (weight < 1 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("Weight out of range: " + weight);
+        }
+        channel(channel).mmWeight = weight;
+    }
+
+    public synchronized int getWeight(int channel) {
+        return channel(channel).mmWeight;
+    }
+
+    /**
+     * @param compressor The FrameCompressor for chunks, or null to send them as they are.
+     */
+    public synchronized void setCompressor(FrameCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Queue a copy of a bulk message. The last chunk of the message carries CHANNEL_END.
+     * @param channel The bulk channel, 1 to MAX_CHANNELS - 1.
+     * @return false if the message does not fit in the remaining capacity.
+     */
+    public synchronized boolean send(int channel, byte[] data, int offset, int length) {
+        Channel target = channel(channel);
+        if (mPendingBytes + length > mCapacity) {
+            return false;
+        }
+        target.mmSources.add(new ArraySource(Arrays.copyOfRange(data, offset, offset + length)));
+        mPendingBytes += length;
+        mHasData = true;
+        return true;
+    }
+
+    /**
+     * Queue a source behind whatever the channel already carries. Producers must signal the
+     * writer when it has data, see {@link OutboundQueue#signal()}.
+     * @param channel The bulk channel, 1 to MAX_CHANNELS - 1.
+     */
+    public synchronized void add(int channel, Source source) {
+        channel(channel).mmSources.add(source);
+        mHasData = true;
+    }
+
+    /**
+     * @return true if any channel has data waiting, though all of it may be blocked.
+     */
+    public boolean hasData() {
+        return mHasData;
+    }
+
+    /**
+     * @return The number of bytes of copied messages waiting across all channels.
+     */
+    public synchronized int pendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * Discard every waiting message.
+     */
+    public synchronized void clear() {
+        for (int i = 1; i < MAX_CHANNELS; i++) {
+            mChannels[i].mmSources.clear();
+            mChannels[i].mmDeficit = 0;
+        }
+        mPendingBytes = 0;
+        mHasData = false;
+    }
+
+    /**
+     * Encode the next chunk, from the channel whose turn it is, into a batch buffer. Called
+     * from the writer thread.
+     * @param dst The batch buffer.
+     * @return The length of the encoded frame, or 0 if no channel has data or every channel
+     * with data is blocked.
+     */
+    public synchronized int nextChunk(byte[] dst) {
+        if (!mHasData) {
+            return 0;
+        }
+        // a channel that is ready gets its turn within two rounds
+        for (int step = 0; step < 2 * MAX_CHANNELS; step++) {
+            Channel channel = mChannels[mCurrent];
+            int size = ready(channel);
+            if (size >= 0) {
+                // each visit grants a quantum of at least one full chunk
+                if (!mVisiting) {
+                    channel.mmDeficit += channel.mmWeight * mChunkSize;
+                    mVisiting = true;
+                }
+                if (channel.mmDeficit >= size) {
+                    int length = encodeChunk(mCurrent, channel, size, dst);
+                    if (length > 0) {
+                        return length;
+                    }
+                }
+            } else {
+                // an idle or blocked channel does not save up credit
+                channel.mmDeficit = 0;
+            }
+            mCurrent = mCurrent == MAX_CHANNELS - 1 ? 1 : mCurrent + 1;
+            mVisiting = false;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The size of the next chunk of the channel, 0 for just an end marker, or -1 if
+     * the channel has nothing to send now.
+     */
+    private int ready(Channel channel) {
+        while (true) {
+            Source source = channel.mmSources.peek();
+            if (source == null) {
+                return -1;
+            }
+            int available = source.available();
+            if (available > 0) {
+                return Math.min(mChunkSize, available);
+            }
+            if (available == 0) {
+                return source.atEnd() ? 0 : -1;
+            }
+            drop(channel);
+        }
+    }
+
+    /**
+     * @return The length of the encoded frame, or 0 if nothing was sent after all.
+     */
+    private int encodeChunk(int id, Channel channel, int size, byte[] dst) {
+        Source source = channel.mmSources.peek();
+        int count = size > 0 ? source.read(mChunk, 0, size) : 0;
+        if (count < 0) {
+            drop(channel);
+            return 0;
+        }
+        boolean last = source.atEnd();
+        if (count == 0 && !last) {
+            return 0;
+        }
+        channel.mmDeficit -= count;
+        int length = mEncoder.encodeChannelData(id, last ? Opcodes.CHANNEL_END : 0,
+                mChunk, 0, count);
+        if (mCompressor != null && channel.mmCompressionMisses < MAX_COMPRESSION_MISSES) {
+            // already compressed data, e.g. a photo, soon stops being tried
+            int compressed = mEncoder.compress(mCompressor);
+            channel.mmCompressionMisses = compressed < length ? 0
+                    : channel.mmCompressionMisses + 1;
+            length = compressed;
+        }
+        System.arraycopy(mEncoder.array(), mEncoder.offset(), dst, 0, length);
+        if (last) {
+            drop(channel);
+        }
+        return length;
+    }
+
+    private void drop(Channel channel) {
+        channel.mmSources.poll();
+        channel.mmCompressionMisses = 0;
+        if (channel.mmSources.isEmpty()) {
+            mHasData = anyData();
+        }
+    }
+
+    private boolean anyData() {
+        for (int i = 1; i < MAX_CHANNELS; i++) {
+            if (!mChannels[i].mmSources.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Channel channel(int channel) {
+        if (channel < 1 || channel >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("No bulk channel " + channel);
+        }
+        return mChannels[channel];
+    }
+
+    private static class Channel {
+        private final ArrayDeque<Source> mmSources = new ArrayDeque<>();
+        private int mmWeight = 1;
+        private int mmDeficit;
+        private int mmCompressionMisses;
+    }
+
+    /**
+     * A message copied by send(). Called with the mux locked.
+     */
+    private class ArraySource implements Source {
+        private final byte[] mmData;
+        private int mmOffset;
+
+        ArraySource(byte[] data) {
+            mmData = data;
+        }
+
+        @Override
+        public int available() {
+            return mmData.length - mmOffset;
+        }
+
+        @Override
+        public int read(byte[] dst, int offset, int length) {
+            System.arraycopy(mmData, mmOffset, dst, offset, length);
+            mmOffset += length;
+            mPendingBytes -= length;
+            return length;
+        }
+
+        @Override
+        public boolean atEnd() {
+            return mmOffset == mmData.length;
+        }
+    }
+}
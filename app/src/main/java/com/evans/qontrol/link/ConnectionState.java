@@ -0,0 +1,82 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by evans on 3/11/17.
+ *
+ * Connection state machine on a single atomic word: the state in the low byte and a
+ * generation counter above it. Every connect() or stop() starts a new generation, and the
+ * threads working for a connection carry the generation they were started in. Their
+ * transitions are compare-and-set against that generation, so a thread left over from an
+ * earlier connection can never overwrite the state of a newer one.
+ *
+ * <pre>
+ * NONE -> CONNECTING -> CONNECTED -> RECONNECTING -> CONNECTED ...
+ *              |            |              |
+ *              +-> NONE     +-> NONE       +-> NONE
+ * </pre>
+ */
+
+public class ConnectionState {
+
+    private static final int STATE_BITS = 8;
+    private static final long STATE_MASK = (1 << STATE_BITS) - 1;
+
+    private final AtomicLong mWord;
+
+    public ConnectionState(int initialState) {
+        mWord = new AtomicLong(initialState);
+    }
+
+    public static int stateOf(long word) {
+        return (int) (word & STATE_MASK);
+    }
+
+    public static long generationOf(long word) {
+        return word >>> STATE_BITS;
+    }
+
+    /**
+     * @return The state and generation, readable with {@link #stateOf(long)} and
+     * {@link #generationOf(long)}.
+     */
+    public long getWord() {
+        return mWord.get();
+    }
+
+    public int getState() {
+        return stateOf(mWord.get());
+    }
+
+    public long getGeneration() {
+        return generationOf(mWord.get());
+    }
+
+    /**
+     * Start a new generation in the given state, whatever the current state is. Used for
+     * connect() and stop(), which supersede everything in flight.
+     * @return The new generation.
+     */
+    public long advance(int state) {
+        while (true) {
+            long word = mWord.get();
+            long generation = generationOf(word) + 1;
+            if (mWord.compareAndSet(word, (generation << STATE_BITS) | state)) {
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Move from one state to another within a generation.
+     * @param generation The generation the caller works for.
+     * @param from The state the caller expects.
+     * @param to The new state.
+     * @return false if the generation or state changed, i.e. the caller is stale.
+     */
+    public boolean transition(long generation, int from, int to) {
+        long expected = (generation << STATE_BITS) | from;
+        return mWord.compareAndSet(expected, (generation << STATE_BITS) | to);
+    }
+}
@@ -0,0 +1,140 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/4/17.
+ *
+ * Decides when to send a keepalive PING and when to give up on a silent connection. Anything
+ * received from the server proves the link is alive, so no PING goes out while the server is
+ * talking. Once it goes quiet, a PING is due after a few round trips, and the reply timeout
+ * follows the measured round-trip time and its variance the way TCP's does. After
+ * {@link #MAX_MISSES} timeouts without a byte from the server the link is dead.
+ *
+ * Until the first reply has been timed, the timeout is the initial RTO of RFC 6298, one
+ * second, so a link that goes silent right after connecting is declared dead too. Times are
+ * System.nanoTime() values. Thread safe.
+ */
+
+public class Heartbeat {
+
+    // results of tick()
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_PING = 1;
+    public static final int ACTION_DEAD = 2;
+
+    // unanswered timeouts in a row before the link is dead
+    public static final int MAX_MISSES = 3;
+
+    private static final long MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(250);
+    // round trips of silence before a PING is due
+    private static final int INTERVAL_RTTS = 4;
+    // Bluetooth sniff mode can hold a reply back for hundreds of milliseconds
+    private static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    // used until the first round trip has been measured, as in RFC 6298
+    static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    // how soon tick() should run again at the earliest
+    private static final long MIN_TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private long mMaxInterval;
+    private long mLastReceived;
+    private long mLastPing;
+    private boolean mPinged;
+    // smoothed round-trip time and its mean deviation, 0 until the first sample
+    private long mSmoothedRtt;
+    private long mRttVariance;
+
+    /**
+     * @param maxIntervalMillis The longest silence before a PING, however slow the link.
+     * @param now The time the connection started.
+     */
+    public Heartbeat(long maxIntervalMillis, long now) {
+        mMaxInterval = TimeUnit.MILLISECONDS.toNanos(maxIntervalMillis);
+        mLastReceived = now;
+    }
+
+    public synchronized void setMaxIntervalMillis(long millis) {
+        mMaxInterval = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Called whenever bytes arrive from the server.
+     */
+    public synchronized void onReceived(long now) {
+        mLastReceived = now;
+    }
+
+    /**
+     * Called with the round-trip time of each answered PING.
+     */
+    public synchronized void onRttSample(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        if (mSmoothedRtt == 0) {
+            mSmoothedRtt = Math.max(1, rtt);
+            mRttVariance = rtt / 2;
+        } else {
+            // gains of 1/8 and 1/4 as in RFC 6298
+            mRttVariance += (Math.abs(mSmoothedRtt - rtt) - mRttVariance) / 4;
+            mSmoothedRtt += (rtt - mSmoothedRtt) / 8;
+        }
+    }
+
+    /**
+     * @return The silence after which a PING is due.
+     */
+    public synchronized long getInterval() {
+        if (mSmoothedRtt == 0) {
+            return mMaxInterval;
+        }
+        return Math.max(MIN_INTERVAL, Math.min(mMaxInterval, mSmoothedRtt * INTERVAL_RTTS));
+    }
+
+    /**
+     * @return How long to wait for a reply to a PING.
+     */
+    public synchronized long getTimeout() {
+        if (mSmoothedRtt == 0) {
+            return INITIAL_TIMEOUT;
+        }
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, mSmoothedRtt + 4 * mRttVariance));
+    }
+
+    /**
+     * @return How long the link may stay silent before it is dead.
+     */
+    public synchronized long getDeadline() {
+        return getInterval() + MAX_MISSES * getTimeout();
+    }
+
+    /**
+     * Work out what is due. A PING is only asked for once per timeout.
+     * @return One of the ACTION_* constants.
+     */
+    public synchronized int tick(long now) {
+        long silence = now - mLastReceived;
+        if (silence >= getDeadline()) {
+            return ACTION_DEAD;
+        }
+        if (silence >= getInterval() && (!mPinged || now - mLastPing >= getTimeout())) {
+            mPinged = true;
+            mLastPing = now;
+            return ACTION_PING;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * @return The time until tick() has something to do.
+     */
+    public synchronized long nextTick(long now) {
+        long due = mLastReceived + getInterval();
+        if (mPinged) {
+            due = Math.max(due, mLastPing + getTimeout());
+        }
+        due = Math.min(due, mLastReceived + getDeadline());
+        return Math.max(MIN_TICK, due - now);
+    }
+}
@@ -0,0 +1,106 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by evans on 2/18/17.
+ *
+ * Fixed-memory histogram of latencies in nanoseconds. Values are bucketed by power of two,
+ * with each power split into 16 linear sub-buckets, so any recorded value is reported within
+ * 1/16 (about 6%) of its true value while the whole range up to half an hour fits in 608
+ * counters. Recording is lock-free; reads see a consistent enough picture for display.
+ */
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 36;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param nanos The latency to record; negative values count as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSum.addAndGet(nanos);
+
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile The percentile to compute, from 0 to 100.
+     * @return The upper bound of the bucket holding the percentile, or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
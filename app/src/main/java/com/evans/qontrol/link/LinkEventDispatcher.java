@@ -0,0 +1,200 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by evans on 3/4/17.
+ *
+ * Delivers connection events from any thread to {@link LinkListener}s on the scheduler's
+ * thread. Events are stored as primitives in a bounded lock-free multi-producer ring, and
+ * one scheduled drain delivers everything posted since the last one, so the main thread is
+ * woken at most once per frame however busy the link is. Posting and delivery allocate
+ * nothing.
+ */
+
+public class LinkEventDispatcher {
+
+    /**
+     * Runs the dispatcher's drain task, e.g. on the next frame of the main thread.
+     */
+    public interface Scheduler {
+        void schedule(Runnable drain);
+    }
+
+    /**
+     * Delivers events on the thread that posted them.
+     */
+    public static final Scheduler IMMEDIATE = new Scheduler() {
+        @Override
+        public void schedule(Runnable drain) {
+            drain.run();
+        }
+    };
+
+    // event types
+    static final int EVENT_CONNECTED = 1;
+    static final int EVENT_CONNECTION_FAILED = 2;
+    static final int EVENT_CONNECTION_LOST = 3;
+    static final int EVENT_RECONNECTING = 4;
+    static final int EVENT_LATENCY_SAMPLE = 5;
+    static final int EVENT_TRANSFER_PROGRESS = 6;
+    static final int EVENT_TRANSFER_FINISHED = 7;
+
+    private static final int CAPACITY = 1024;
+    private static final LinkListener[] NO_LISTENERS = new LinkListener[0];
+
+    // ring slots; a slot is readable once its sequence is one past its position
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    private final int[] mTypes = new int[CAPACITY];
+    private final long[] mFirst = new long[CAPACITY];
+    private final long[] mSecond = new long[CAPACITY];
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead;
+
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicBoolean mDraining = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile LinkListener[] mListeners = NO_LISTENERS;
+    private volatile Scheduler mScheduler = IMMEDIATE;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public LinkEventDispatcher() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    public void setScheduler(Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public synchronized void addListener(LinkListener listener) {
+        LinkListener[] listeners = mListeners;
+        for (LinkListener l : listeners) {
+            if (l == listener) {
+                return;
+            }
+        }
+        LinkListener[] copy = new LinkListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, copy, 0, listeners.length);
+        copy[listeners.length] = listener;
+        mListeners = copy;
+    }
+
+    public synchronized void removeListener(LinkListener listener) {
+        LinkListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                LinkListener[] copy = new LinkListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, copy, 0, i);
+                System.arraycopy(listeners, i + 1, copy, i, listeners.length - i - 1);
+                mListeners = copy.length == 0 ? NO_LISTENERS : copy;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The number of events lost because the ring was full.
+     */
+    public long droppedEvents() {
+        return mDropped.get();
+    }
+
+    /**
+     * Queue an event for delivery. Safe to call from any thread.
+     */
+    void post(int type, long first, long second) {
+        while (true) {
+            long position = mTail.get();
+            int index = (int) position & (CAPACITY - 1);
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mTypes[index] = type;
+                    mFirst[index] = first;
+                    mSecond[index] = second;
+                    mSequences.set(index, position + 1);
+                    break;
+                }
+            } else if (difference < 0) {
+                // the listeners are not keeping up
+                mDropped.incrementAndGet();
+                return;
+            }
+        }
+
+        if (mScheduled.compareAndSet(false, true)) {
+            mScheduler.schedule(mDrain);
+        }
+    }
+
+    private void drain() {
+        mScheduled.set(false);
+        if (!mDraining.compareAndSet(false, true)) {
+            // another thread is draining and will pick these events up
+            return;
+        }
+        long head;
+        try {
+            while (true) {
+                int index = (int) mHead & (CAPACITY - 1);
+                if (mSequences.get(index) != mHead + 1) {
+                    break;
+                }
+                int type = mTypes[index];
+                long first = mFirst[index];
+                long second = mSecond[index];
+                mSequences.set(index, mHead + CAPACITY);
+                mHead++;
+                deliver(type, first, second);
+            }
+        } finally {
+            head = mHead;
+            mDraining.set(false);
+        }
+
+        // events posted while we were finishing up
+        int index = (int) head & (CAPACITY - 1);
+        if (mSequences.get(index) == head + 1 && mScheduled.compareAndSet(false, true)) {
+            mScheduler.schedule(mDrain);
+        }
+    }
+
+    private void deliver(int type, long first, long second) {
+        LinkListener[] listeners = mListeners;
+        for (LinkListener listener : listeners) {
+            switch (type) {
+                case EVENT_CONNECTED:
+                    listener.onConnected((int) first);
+                    break;
+                case EVENT_CONNECTION_FAILED:
+                    listener.onConnectionFailed();
+                    break;
+                case EVENT_CONNECTION_LOST:
+                    listener.onConnectionLost();
+                    break;
+                case EVENT_RECONNECTING:
+                    listener.onReconnecting((int) first, second);
+                    break;
+                case EVENT_LATENCY_SAMPLE:
+                    listener.onLatencySample(first);
+                    break;
+                case EVENT_TRANSFER_PROGRESS:
+                    listener.onTransferProgress((int) first, second);
+                    break;
+                case EVENT_TRANSFER_FINISHED:
+                    listener.onTransferFinished((int) first, (int) second);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by evans on 3/14/17.
+ *
+ * The threads a {@link QLinkService} runs on, in four small pools:
+ * <ul>
+ *     <li>connect: one thread, attempts run one after another so cancelled ones cannot
+ *     pile up during rapid retries.</li>
+ *     <li>io: the read and write loops of a connection, at raised priority for input
+ *     latency. Idle threads are kept for reuse by the next connection.</li>
+ *     <li>timer: reconnect backoff and latency probes, so no thread sleeps waiting.</li>
+ *     <li>race: the candidates of a {@link com.evans.qontrol.transport.RacingTransport}.</li>
+ * </ul>
+ * All threads are daemons and named after their pool.
+ */
+
+public class LinkExecutor {
+
+    // read and write loops of the current connection, plus one closing down
+    public static final int MAX_IO_THREADS = 4;
+    // candidates of one race connecting at once
+    public static final int MAX_RACE_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final int IO_PRIORITY = Thread.NORM_PRIORITY + 2;
+
+    private final ThreadPoolExecutor mConnect;
+    private final ThreadPoolExecutor mIo;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final ThreadPoolExecutor mRace;
+
+    public LinkExecutor() {
+        mConnect = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new WorkerFactory("QLink-connect", Thread.NORM_PRIORITY));
+        mConnect.allowCoreThreadTimeOut(true);
+        mIo = new ThreadPoolExecutor(0, MAX_IO_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new WorkerFactory("QLink-io", IO_PRIORITY));
+        mTimer = new ScheduledThreadPoolExecutor(1,
+                new WorkerFactory("QLink-timer", Thread.NORM_PRIORITY));
+        mTimer.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+        mRace = new ThreadPoolExecutor(0, MAX_RACE_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new WorkerFactory("QLink-race", Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Run a connection attempt after the ones already queued.
+     * @throws java.util.concurrent.RejectedExecutionException if shut down.
+     */
+    public Future<?> connect(Runnable task) {
+        return mConnect.submit(task);
+    }
+
+    /**
+     * Run a read or write loop.
+     * @throws java.util.concurrent.RejectedExecutionException if shut down or all
+     * {@link #MAX_IO_THREADS} threads are busy.
+     */
+    public Future<?> io(Runnable task) {
+        return mIo.submit(task);
+    }
+
+    /**
+     * Run a short task on the timer thread after a delay. Anything long-running should be
+     * handed on to another pool.
+     * @throws java.util.concurrent.RejectedExecutionException if shut down.
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return mTimer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The pool for racing connection attempts. It rejects tasks once
+     * {@link #MAX_RACE_THREADS} are running.
+     */
+    public Executor getRaceExecutor() {
+        return mRace;
+    }
+
+    /**
+     * @return The number of tasks running right now, over all pools.
+     */
+    public int getActiveCount() {
+        return mConnect.getActiveCount() + mIo.getActiveCount() + mTimer.getActiveCount()
+                + mRace.getActiveCount();
+    }
+
+    /**
+     * @return The number of threads alive right now, idle or not, over all pools.
+     */
+    public int getPoolSize() {
+        return mConnect.getPoolSize() + mIo.getPoolSize() + mTimer.getPoolSize()
+                + mRace.getPoolSize();
+    }
+
+    /**
+     * Stop accepting tasks and wait for the running ones to finish. Tasks still waiting are
+     * dropped, running ones are interrupted if they outlast the timeout.
+     * @param timeoutMillis How long to wait before interrupting.
+     * @return true if every thread has exited.
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        mTimer.shutdownNow();
+        mConnect.shutdown();
+        mIo.shutdown();
+        mRace.shutdown();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (awaitTermination(deadline)) {
+            return true;
+        }
+        mConnect.shutdownNow();
+        mIo.shutdownNow();
+        mRace.shutdownNow();
+        return awaitTermination(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    private boolean awaitTermination(long deadline) throws InterruptedException {
+        return awaitTermination(mTimer, deadline)
+                && awaitTermination(mConnect, deadline)
+                && awaitTermination(mIo, deadline)
+                && awaitTermination(mRace, deadline);
+    }
+
+    private static boolean awaitTermination(ThreadPoolExecutor pool, long deadline)
+            throws InterruptedException {
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        return pool.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final String mName;
+        private final int mPriority;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        WorkerFactory(String name, int priority) {
+            mName = name;
+            mPriority = priority;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(mPriority);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.evans.qontrol.link;
+
+/**
+ * Created by evans on 3/4/17.
+ *
+ * Receives connection events from a {@link QLinkService}. Events are delivered on the thread
+ * of the service's {@link LinkEventDispatcher.Scheduler}, usually the main thread. Override
+ * the events of interest; the rest do nothing.
+ */
+
+public abstract class LinkListener {
+
+    /**
+     * @param transportType The Transport.TYPE_* of the connection.
+     */
+    public void onConnected(int transportType) {
+    }
+
+    public void onConnectionFailed() {
+    }
+
+    /**
+     * The connection dropped and will not be re-established.
+     */
+    public void onConnectionLost() {
+    }
+
+    /**
+     * @param attempt The one-based number of the coming reconnect attempt.
+     * @param delayMillis The backoff delay before the attempt.
+     */
+    public void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * @param rttNanos A measured round-trip time.
+     */
+    public void onLatencySample(long rttNanos) {
+    }
+
+    /**
+     * @param transferId The id of the Transfer.
+     * @param bytesAcked How many bytes of it the server has confirmed.
+     */
+    public void onTransferProgress(int transferId, long bytesAcked) {
+    }
+
+    /**
+     * @param transferId The id of the Transfer.
+     * @param state The final Transfer.STATE_* of the transfer.
+     */
+    public void onTransferFinished(int transferId, int state) {
+    }
+}
@@ -0,0 +1,69 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.macro.Macro;
+import com.evans.qontrol.macro.MacroCache;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+
+/**
+ * Created by evans on 4/21/17.
+ *
+ * Sends {@link Macro}s for a {@link QLinkService}. A macro goes out whole the first time in a
+ * session and is kept by the server in a slot; after that running it again costs a single
+ * short frame. Frames go through {@link QLinkService#write}, so they are kept for replay like
+ * keys.
+ */
+
+class MacroSender {
+
+    private final QLinkService mService;
+    // macros the server of the session holds; guarded by this
+    private final MacroCache mMacros = new MacroCache(Opcodes.MACRO_SLOTS);
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private volatile boolean mSupported;
+
+    MacroSender(QLinkService service) {
+        mService = service;
+    }
+
+    /**
+     * @param supported Whether the server of the session runs macros, from its FEATURES.
+     */
+    void setSupported(boolean supported) {
+        mSupported = supported;
+    }
+
+    /**
+     * Forget the macros the server held, e.g. when a new session starts.
+     */
+    synchronized void clear() {
+        mMacros.clear();
+    }
+
+    /**
+     * @see QLinkService#sendMacro(Macro)
+     */
+    boolean send(Macro macro) {
+        if (!mSupported) {
+            return false;
+        }
+        synchronized (this) {
+            int slot = mMacros.lookup(macro);
+            if (slot >= 0) {
+                mEncoder.encodeMacroRun(slot);
+                return write();
+            }
+            slot = mMacros.assign(macro);
+            macro.encode(mEncoder, slot);
+            if (!write()) {
+                mMacros.remove(macro);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private boolean write() {
+        return mService.write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+    }
+}
@@ -0,0 +1,267 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Created by evans on 1/28/17.
+ *
+ * Sums relative pointer and scroll deltas while the link is busy and releases them as a single
+ * frame each at the next flush opportunity, i.e. whenever the outbound queue runs empty. With
+ * an idle link events pass straight through, so coalescing only adds latency when the link
+ * could not have sent the frame any sooner.
+ *
+ * A minimum interval between motion frames, set from a {@link RateController}, widens the
+ * window on a congested link: motion inside the interval waits, and the sink is asked to
+ * call {@link #onFlushDue()} once the interval is over.
+ *
+ * Button presses and releases are never merged: pending motion is flushed ahead of them so
+ * the host sees the pointer where the user pressed.
+ *
+ * The sink is never called with the coalescer's monitor held, so the writer can update the
+ * interval while a producer is offering a frame. Calls to the sink are kept in order by a
+ * lock of their own, which {@link #onLinkReady()} only tries: the writer never waits for a
+ * producer that may be waiting for the writer.
+ */
+
+public class MotionCoalescer {
+
+    public interface Sink {
+        /**
+         * @return true if nothing is waiting to be written, so a frame sent now goes out
+         * with the next write.
+         */
+        boolean isLinkIdle();
+
+        void onPointerMove(int dx, int dy);
+
+        void onScroll(int dx, int dy);
+
+        void onButton(boolean down, int button);
+
+        /**
+         * Call {@link #onFlushDue()} after a delay, from any thread.
+         */
+        void scheduleFlush(long delayNanos);
+    }
+
+    private final Sink mSink;
+    // held while calling the sink; the monitor is only taken inside it, and never held
+    // while calling the sink
+    private final ReentrantLock mSendLock = new ReentrantLock();
+    private long mPendingDx;
+    private long mPendingDy;
+    private long mPendingScrollDx;
+    private long mPendingScrollDy;
+    private boolean mHasMove;
+    private boolean mHasScroll;
+    private long mCoalesced;
+    private long mIntervalNanos;
+    private long mLastFlush;
+    private boolean mFlushScheduled;
+    // motion taken for the sink; guarded by mSendLock
+    private int mSendDx;
+    private int mSendDy;
+    private int mSendScrollDx;
+    private int mSendScrollDy;
+    private boolean mSendMove;
+    private boolean mSendScroll;
+
+    public MotionCoalescer(Sink sink) {
+        mSink = sink;
+        mLastFlush = System.nanoTime();
+    }
+
+    public void move(int dx, int dy) {
+        mSendLock.lock();
+        try {
+            synchronized (this) {
+                if (mHasMove) {
+                    mCoalesced++;
+                }
+                mPendingDx += dx;
+                mPendingDy += dy;
+                mHasMove = true;
+            }
+            flushIfDue();
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    public void scroll(int dx, int dy) {
+        mSendLock.lock();
+        try {
+            synchronized (this) {
+                if (mHasScroll) {
+                    mCoalesced++;
+                }
+                mPendingScrollDx += dx;
+                mPendingScrollDy += dy;
+                mHasScroll = true;
+            }
+            flushIfDue();
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Send a button press or release, after any motion that preceded it.
+     */
+    public void button(boolean down, int button) {
+        mSendLock.lock();
+        try {
+            synchronized (this) {
+                takePendingLocked();
+            }
+            sendTaken();
+            mSink.onButton(down, button);
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Called when the writer has finished a batch. Releases pending motion if the link is now
+     * idle; otherwise the next finished batch will try again. Never waits: if another thread
+     * is calling the sink, its frame makes another batch.
+     */
+    public void onLinkReady() {
+        if (!mSendLock.tryLock()) {
+            return;
+        }
+        try {
+            flushIfDue();
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Called by the sink once a scheduled flush is due.
+     */
+    public void onFlushDue() {
+        mSendLock.lock();
+        try {
+            synchronized (this) {
+                mFlushScheduled = false;
+            }
+            flushIfDue();
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * @param intervalNanos The shortest time between two motion frames, or 0 for none.
+     */
+    public synchronized void setInterval(long intervalNanos) {
+        mIntervalNanos = intervalNanos;
+    }
+
+    public synchronized long getInterval() {
+        return mIntervalNanos;
+    }
+
+    /**
+     * Release pending motion regardless of the link state.
+     */
+    public void flush() {
+        mSendLock.lock();
+        try {
+            synchronized (this) {
+                takePendingLocked();
+            }
+            sendTaken();
+        } finally {
+            mSendLock.unlock();
+        }
+    }
+
+    /**
+     * Forget pending motion, e.g. after the connection was lost.
+     */
+    public synchronized void reset() {
+        mPendingDx = mPendingDy = mPendingScrollDx = mPendingScrollDy = 0;
+        mHasMove = mHasScroll = false;
+    }
+
+    public synchronized boolean hasPendingMotion() {
+        return mHasMove || mHasScroll;
+    }
+
+    /**
+     * @return The number of events merged into an earlier pending event.
+     */
+    public synchronized long coalescedEvents() {
+        return mCoalesced;
+    }
+
+    /**
+     * Called with mSendLock held.
+     */
+    private void flushIfDue() {
+        if (!mSink.isLinkIdle()) {
+            return;
+        }
+        long delay = 0;
+        synchronized (this) {
+            if (!hasPendingMotion()) {
+                return;
+            }
+            long wait = mIntervalNanos > 0 ? mIntervalNanos - (System.nanoTime() - mLastFlush) : 0;
+            if (wait <= 0) {
+                takePendingLocked();
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                delay = wait;
+            }
+        }
+        if (delay > 0) {
+            mSink.scheduleFlush(delay);
+        } else {
+            sendTaken();
+        }
+    }
+
+    /**
+     * Move pending motion to the send fields. Called with mSendLock and the monitor held.
+     */
+    private void takePendingLocked() {
+        if (mHasMove || mHasScroll) {
+            mLastFlush = System.nanoTime();
+        }
+        if (mHasMove) {
+            mHasMove = false;
+            mSendMove = mPendingDx != 0 || mPendingDy != 0;
+            mSendDx = clamp(mPendingDx);
+            mSendDy = clamp(mPendingDy);
+            mPendingDx = mPendingDy = 0;
+        }
+        if (mHasScroll) {
+            mHasScroll = false;
+            mSendScroll = mPendingScrollDx != 0 || mPendingScrollDy != 0;
+            mSendScrollDx = clamp(mPendingScrollDx);
+            mSendScrollDy = clamp(mPendingScrollDy);
+            mPendingScrollDx = mPendingScrollDy = 0;
+        }
+    }
+
+    /**
+     * Hand taken motion to the sink. Called with mSendLock held and the monitor released.
+     */
+    private void sendTaken() {
+        if (mSendMove) {
+            mSendMove = false;
+            mSink.onPointerMove(mSendDx, mSendDy);
+        }
+        if (mSendScroll) {
+            mSendScroll = false;
+            mSink.onScroll(mSendScrollDx, mSendScrollDy);
+        }
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+}
@@ -0,0 +1,306 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by evans on 1/21/17.
+ *
+ * Bounded single-producer/single-consumer ring of encoded frames waiting to be written to the
+ * connection. Frames are copied into one byte ring, each behind a four byte record header
+ * (flags in the top byte, length below), so queueing never allocates.
+ *
+ * Only the consumer moves the head forward in normal operation. When the ring is full the
+ * producer may evict the oldest record by moving the head itself; the consumer copies records
+ * out optimistically and commits with a compare-and-set on the head, discarding its copy if
+ * the producer evicted anything in the meantime.
+ *
+ * Callers that produce from more than one thread must serialize their calls to
+ * {@link #offer(byte[], int, int, int)}.
+ */
+
+public class OutboundQueue {
+
+    // backpressure policies, applied when a frame does not fit
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_BLOCK = 1;
+    public static final int POLICY_COALESCE = 2;
+
+    // frame flags
+    public static final int FLAG_COALESCIBLE = 0x01;
+
+    private static final int RECORD_HEADER = 4;
+    private static final int LENGTH_MASK = 0x00FFFFFF;
+
+    private final byte[] mRing;
+    private final int mMask;
+    private final int mPolicy;
+    private final long mBlockTimeoutNanos;
+
+    // absolute byte positions; the ring index is position & mMask
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile Thread mWaitingConsumer;
+    private volatile Thread mWaitingProducer;
+    private volatile boolean mClosed;
+    private volatile boolean mSignalled;
+
+    /**
+     * @param capacity The size of the ring in bytes, rounded up to a power of two.
+     * @param policy What to do with a frame that does not fit, see POLICY_*.
+     * @param blockTimeoutMillis How long a blocked producer waits before the frame is dropped;
+     * 0 refuses it at once, for producers that must never wait, e.g. while holding locks.
+     */
+    public OutboundQueue(int capacity, int policy, long blockTimeoutMillis) {
+        int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+        mPolicy = policy;
+        mBlockTimeoutNanos = blockTimeoutMillis * 1000000L;
+    }
+
+    public int capacity() {
+        return mRing.length;
+    }
+
+    public int policy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return The number of frames evicted or refused because the ring was full.
+     */
+    public long droppedFrames() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return The number of bytes (including record headers) waiting to be written.
+     */
+    public int pendingBytes() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Queue a copy of an encoded frame. Producer side.
+     * @param frame The buffer holding the frame.
+     * @param offset The index of the first byte.
+     * @param length The length of the frame.
+     * @param flags The frame flags, see FLAG_*.
+     * @return false if the queue is closed or the frame was dropped.
+     */
+    public boolean offer(byte[] frame, int offset, int length, int flags) {
+        int record = RECORD_HEADER + length;
+        if (record > mRing.length) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes exceeds queue capacity");
+        }
+
+        long tail = mTail.get();
+        long deadline = 0;
+        while (true) {
+            if (mClosed) {
+                return false;
+            }
+            long head = mHead.get();
+            if (tail + record - head <= mRing.length) {
+                break;
+            }
+
+            if (mPolicy == POLICY_DROP_OLDEST
+                    || (mPolicy == POLICY_COALESCE && (readHeader(head) >>> 24 & FLAG_COALESCIBLE) != 0)) {
+                int evicted = RECORD_HEADER + (readHeader(head) & LENGTH_MASK);
+                if (mHead.compareAndSet(head, head + evicted)) {
+                    mDropped.incrementAndGet();
+                }
+                continue;
+            }
+
+            // wait for the consumer to make room
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + mBlockTimeoutNanos;
+            }
+            if (now - deadline >= 0) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            mWaitingProducer = Thread.currentThread();
+            if (tail + record - mHead.get() > mRing.length && !mClosed) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            mWaitingProducer = null;
+        }
+
+        writeHeader(tail, (flags << 24) | length);
+        copyIn(tail + RECORD_HEADER, frame, offset, length);
+        mTail.set(tail + record);
+
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until at least one frame is queued or {@link #signal()} is called. Consumer side.
+     * @param timeoutNanos The longest time to wait.
+     * @return true if frames are available or the consumer was signalled, false on timeout or
+     * when the queue is closed.
+     */
+    public boolean awaitFrames(long timeoutNanos) {
+        if (!isEmpty() || takeSignal()) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutNanos;
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            while (isEmpty() && !mClosed) {
+                if (takeSignal()) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaitingConsumer = null;
+        }
+        return !isEmpty();
+    }
+
+    /**
+     * Wake the consumer from {@link #awaitFrames(long)} without queueing a frame, e.g. when
+     * it has other work to pick up.
+     */
+    public void signal() {
+        mSignalled = true;
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private boolean takeSignal() {
+        if (!mSignalled) {
+            return false;
+        }
+        mSignalled = false;
+        return true;
+    }
+
+    /**
+     * Move queued frames, back to back and without record headers, into a batch buffer.
+     * Consumer side.
+     * @param dst The batch buffer, at least {@link #capacity()} bytes long.
+     * @return The number of bytes written to dst.
+     */
+    public int drainTo(byte[] dst) {
+        if (dst.length < mRing.length) {
+            throw new IllegalArgumentException("Batch buffer smaller than queue capacity");
+        }
+        boolean contended = false;
+        while (true) {
+            long head = mHead.get();
+            long tail = mTail.get();
+            long position = head;
+            int written = 0;
+
+            while (position < tail) {
+                int length = readHeader(position) & LENGTH_MASK;
+                if (length > tail - position - RECORD_HEADER) {
+                    // the producer evicted this record while we were reading it
+                    break;
+                }
+                copyOut(position + RECORD_HEADER, dst, written, length);
+                written += length;
+                position += RECORD_HEADER + length;
+                if (contended) {
+                    // keep the window small while the producer is evicting
+                    break;
+                }
+            }
+
+            if (mHead.compareAndSet(head, position)) {
+                Thread producer = mWaitingProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return written;
+            }
+            contended = true;
+        }
+    }
+
+    /**
+     * Discard every queued frame. Consumer side, or when no consumer is running.
+     */
+    public void clear() {
+        while (true) {
+            long head = mHead.get();
+            if (mHead.compareAndSet(head, mTail.get())) {
+                break;
+            }
+        }
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * Refuse further frames and release any waiting producer or consumer.
+     */
+    public void close() {
+        mClosed = true;
+        Thread consumer = mWaitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        Thread producer = mWaitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    private int readHeader(long position) {
+        int value = 0;
+        for (int i = 0; i < RECORD_HEADER; i++) {
+            value = (value << 8) | (mRing[(int) (position + i) & mMask] & 0xFF);
+        }
+        return value;
+    }
+
+    private void writeHeader(long position, int value) {
+        for (int i = RECORD_HEADER - 1; i >= 0; i--) {
+            mRing[(int) (position + i) & mMask] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void copyIn(long position, byte[] src, int offset, int length) {
+        int index = (int) position & mMask;
+        int first = Math.min(length, mRing.length - index);
+        System.arraycopy(src, offset, mRing, index, first);
+        System.arraycopy(src, offset + first, mRing, 0, length - first);
+    }
+
+    private void copyOut(long position, byte[] dst, int offset, int length) {
+        int index = (int) position & mMask;
+        int first = Math.min(length, mRing.length - index);
+        System.arraycopy(mRing, index, dst, offset, first);
+        System.arraycopy(mRing, 0, dst, offset + first, length - first);
+    }
+}
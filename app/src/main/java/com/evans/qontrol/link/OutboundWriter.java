@@ -0,0 +1,120 @@
+package com.evans.qontrol.link;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Created by evans on 1/21/17.
+ *
+ * Consumer of an {@link OutboundQueue}. Each wakeup drains every pending frame into one batch
+ * and hands it to the stream in a single write, so callers never block on the socket.
+ *
+ * Bulk data from a {@link ChannelMux} has strictly lower priority: one chunk is written only
+ * when the queue is empty, and the queue is checked again before the next one.
+ *
+ * Each write is timed, so the callback learns how long the stream blocked on a congested
+ * link.
+ */
+
+public class OutboundWriter implements Runnable {
+
+    public interface Callback {
+        /**
+         * Called on the writer thread with each batch just before it is written, e.g. to
+         * record it. The batch holds whole frames back to back and is reused afterwards.
+         */
+        void onBatchReady(byte[] batch, int bytes);
+
+        /**
+         * Called on the writer thread after each batch reaches the stream.
+         * @param bytes The size of the batch.
+         * @param stallNanos How long the write and flush blocked.
+         */
+        void onBatchWritten(int bytes, long stallNanos);
+
+        void onWriteFailed(IOException e);
+    }
+
+    private static final long IDLE_WAIT_NANOS = 500000000L;
+    // frame prefix, opcode, channel and flags of a bulk chunk
+    private static final int CHUNK_OVERHEAD = 16;
+
+    private final OutboundQueue mQueue;
+    private final ChannelMux mChannels;
+    private final OutputStream mOutStream;
+    private final Callback mCallback;
+    private final byte[] mBatch;
+    private volatile boolean mCancelled;
+
+    public OutboundWriter(OutboundQueue queue, OutputStream out, Callback callback) {
+        this(queue, null, out, callback);
+    }
+
+    /**
+     * @param channels The bulk channels to write between input frames, or null. Producers
+     * must {@link OutboundQueue#signal()} the queue after sending bulk data or unblocking a
+     * source.
+     */
+    public OutboundWriter(OutboundQueue queue, ChannelMux channels, OutputStream out,
+                          Callback callback) {
+        mQueue = queue;
+        mChannels = channels;
+        mOutStream = out;
+        mCallback = callback;
+        // room for a chunk and its frame header, however small the queue
+        mBatch = new byte[channels != null
+                ? Math.max(queue.capacity(), channels.getChunkSize() + CHUNK_OVERHEAD)
+                : queue.capacity()];
+    }
+
+    @Override
+    public void run() {
+        // set while every bulk channel with data waits, e.g. for credit; a signal clears it
+        boolean bulkBlocked = false;
+        while (!mCancelled) {
+            if (mQueue.isEmpty() && (bulkBlocked || !hasBulk())) {
+                if (!mQueue.awaitFrames(IDLE_WAIT_NANOS)) {
+                    if (mQueue.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+                bulkBlocked = false;
+            }
+
+            // input first; a bulk chunk only goes out when no input is waiting
+            int bytes = mQueue.drainTo(mBatch);
+            if (bytes == 0 && mChannels != null) {
+                bytes = mChannels.nextChunk(mBatch);
+                bulkBlocked = bytes == 0;
+            }
+            if (bytes == 0) {
+                continue;
+            }
+            mCallback.onBatchReady(mBatch, bytes);
+            long start = System.nanoTime();
+            try {
+                mOutStream.write(mBatch, 0, bytes);
+                mOutStream.flush();
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    mCallback.onWriteFailed(e);
+                }
+                break;
+            }
+            mCallback.onBatchWritten(bytes, System.nanoTime() - start);
+        }
+    }
+
+    private boolean hasBulk() {
+        return mChannels != null && mChannels.hasData();
+    }
+
+    /**
+     * Stop writing. Frames still queued are not sent.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mQueue.close();
+    }
+}
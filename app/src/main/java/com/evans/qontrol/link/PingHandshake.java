@@ -0,0 +1,41 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transport.RacingTransport;
+import com.evans.qontrol.transport.Transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * Created by evans on 4/20/17.
+ *
+ * Handshake for a {@link RacingTransport}: a candidate wins once the server answers a PING.
+ * A server answers PING before HELLO without starting a session, so the HELLO the service
+ * sends on the winner is still the first the server sees, and nothing else is read from the
+ * stream.
+ */
+
+public class PingHandshake implements RacingTransport.Handshake {
+
+    @Override
+    public void perform(Transport transport) throws IOException {
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.encodePing(0);
+        OutputStream out = transport.getOutputStream();
+        encoder.writeTo(out);
+        out.flush();
+
+        Frame frame = new Frame();
+        if (!new FrameDecoder(transport.getInputStream()).readFrame(frame)) {
+            throw new ProtocolException("Server closed the connection before answering");
+        }
+        if (frame.opcode() != Opcodes.PONG) {
+            throw new ProtocolException("Expected PONG, got opcode " + frame.opcode());
+        }
+    }
+}
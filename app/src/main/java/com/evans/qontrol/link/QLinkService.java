@@ -0,0 +1,1249 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.macro.Macro;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameCompressor;
+import com.evans.qontrol.protocol.FrameDecompressor;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.FrameHandler;
+import com.evans.qontrol.protocol.FrameParser;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.protocol.Protocol;
+import com.evans.qontrol.record.SessionRecorder;
+import com.evans.qontrol.transfer.ByteArraySource;
+import com.evans.qontrol.transfer.FileSource;
+import com.evans.qontrol.transfer.TransferSource;
+import com.evans.qontrol.transport.Transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by evans on 2/11/17.
+ *
+ * Manage the connection with the server(computer) over any {@link Transport}. Has a thread for
+ * connecting to the server and a thread for performing data transmissions when connected.
+ * Connection events go to {@link LinkListener}s through a {@link LinkEventDispatcher};
+ * subclasses may also override the on* hooks, e.g. for logging. Nothing here depends on
+ * Android, so the whole connection path also runs on a plain JVM.
+ *
+ * A connection started from a {@link Transport.Factory} is re-established automatically when
+ * it drops, with backoff from a {@link ReconnectPolicy}. The server's session token is sent
+ * back on reconnect so the server can resume the session instead of starting over. Keys,
+ * buttons and text are numbered and kept in a {@link ReplayBuffer} until the server
+ * acknowledges them, and whatever it has not acknowledged is replayed on the resumed
+ * connection, so a key release is never lost with the link. Pointer motion is not kept.
+ * Nothing is replayed until the server's SESSION says the session resumed; a fresh session
+ * gets none of the old one's input.
+ *
+ * The state lives in a {@link ConnectionState} word and no method takes a lock around
+ * socket operations, so {@link #getState()} and the send methods never wait behind a slow
+ * connect or close. Connection tasks carry the generation they were started in and give up
+ * quietly once a newer connect() or stop() has superseded them.
+ *
+ * Input frames and bulk data share the connection through a {@link ChannelMux}: input is
+ * always written first, and bulk messages go out in small chunks between input frames.
+ * {@link Transfer}s, kept by a {@link TransferManager}, stream files and clipboard text that
+ * way under the server's flow control and carry on from where they were after a reconnect. If the server accepts it, text and
+ * bulk frames are deflated by a {@link FrameCompressor}; input frames are too short to gain.
+ * A {@link RateController} times every write and slows pointer motion down while the link
+ * is congested.
+ *
+ * A {@link Heartbeat} PINGs the server whenever it goes quiet and drops a connection that
+ * stops answering within a few round trips, long before a read on it would fail.
+ *
+ * A {@link MacroSender} sends a {@link Macro} whole once per session, and the server keeps it
+ * in a slot; after that running it again costs a single short frame.
+ *
+ * Connect attempts, the read and write loops and the timers run on a {@link LinkExecutor}
+ * rather than threads of their own, so rapid connect/stop cycles reuse a few threads.
+ * Call {@link #shutdown()} once the service is no longer needed.
+ *
+ * Locks are only taken in this order: a {@link MotionCoalescer}'s send lock, the transfer
+ * list, an encoder (mEncoder, or the TransferManager's or MacroSender's own), mReplay, then a
+ * Connection's producer lock. The monitors of the coalescer, a ChannelMux and then a
+ * Transfer are taken after all of them.
+ */
+
+public class QLinkService {
+
+    // outbound frames waiting for the writer thread
+    private static final int OUTBOUND_CAPACITY = 128 * 1024;
+    // longest silence before a heartbeat; see Heartbeat
+    private static final long DEFAULT_PROBE_INTERVAL_MS = 1000;
+    // unacknowledged frames kept for replay
+    private static final int REPLAY_CAPACITY = 32 * 1024;
+    // how long shutdown() waits for the workers to exit
+    private static final long SHUTDOWN_TIMEOUT_MS = 500;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // connection states
+    public static final int STATE_NONE = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_RECONNECTING = 3;
+
+    private final ConnectionState mState = new ConnectionState(STATE_NONE);
+    private final LinkExecutor mExecutor;
+    private final AtomicReference<ConnectTask> mConnectTask = new AtomicReference<>();
+    private final AtomicReference<Connection> mConnection = new AtomicReference<>();
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private volatile int mBackpressurePolicy = OutboundQueue.POLICY_COALESCE;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LinkEventDispatcher mEvents = new LinkEventDispatcher();
+    private volatile long mProbeIntervalMillis = DEFAULT_PROBE_INTERVAL_MS;
+    private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private volatile long mSessionToken;
+    // reliable frames not yet acknowledged, or held while reconnecting; guarded by itself
+    private final ReplayBuffer mReplay = new ReplayBuffer(REPLAY_CAPACITY);
+    private final byte[] mReplayBatch = new byte[mReplay.capacity()];
+    private final FrameEncoder mReplayEncoder = new FrameEncoder();
+    // set once the server of the session accepts SEQUENCED frames; guarded by mReplay
+    private boolean mSequencing;
+    private long mSequence;
+    // the connection that asked to resume, until its SESSION arrives; guarded by mReplay
+    private Connection mAwaitingSession;
+    private final TransferManager mTransfers;
+    private final MacroSender mMacros = new MacroSender(this);
+    private volatile boolean mCompression = true;
+    private volatile SessionRecorder mRecorder;
+    // created once a server accepts compression; guarded by mEncoder
+    private volatile FrameCompressor mCompressor;
+
+    public QLinkService() {
+        this(new LinkExecutor());
+    }
+
+    /**
+     * @param executor The LinkExecutor to run connections on; shut down with the service.
+     */
+    public QLinkService(LinkExecutor executor) {
+        mExecutor = executor;
+        mTransfers = new TransferManager(this, mEvents, executor);
+    }
+
+    /**
+     * @return The LinkExecutor connections run on, e.g. to race transports on.
+     */
+    public LinkExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    public int getState() {
+        return mState.getState();
+    }
+
+    /**
+     * Choose what happens to new frames when the link cannot keep up. Applies from the next
+     * connection. Senders often hold the service's locks, e.g. on the main thread, so none of
+     * them ever waits for room: under POLICY_BLOCK a frame that does not fit is refused at
+     * once and the queued ones are kept.
+     * @param policy One of the OutboundQueue.POLICY_* constants.
+     */
+    public void setBackpressurePolicy(int policy) {
+        mBackpressurePolicy = policy;
+    }
+
+    /**
+     * Set the share of the link a bulk channel gets while others also have data.
+     * @param channel The bulk channel, 1 to ChannelMux.MAX_CHANNELS - 1.
+     * @param weight The weight, 1 to ChannelMux.MAX_WEIGHT.
+     */
+    public void setChannelWeight(int channel, int weight) {
+        mTransfers.setChannelWeight(channel, weight);
+    }
+
+    /**
+     * Choose whether compression is offered to the server. Applies from the next connection.
+     */
+    public void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Record every frame sent and received from now on, e.g. to replay a real session with a
+     * {@link com.evans.qontrol.record.SessionReplayer}.
+     * @param recorder The recorder, or null to stop recording. The caller closes it.
+     */
+    public void setRecorder(SessionRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    public void addListener(LinkListener listener) {
+        mEvents.addListener(listener);
+    }
+
+    public void removeListener(LinkListener listener) {
+        mEvents.removeListener(listener);
+    }
+
+    /**
+     * @param scheduler Where listeners are called, e.g. the main thread. By default they are
+     * called on the thread that raised the event.
+     */
+    public void setEventScheduler(LinkEventDispatcher.Scheduler scheduler) {
+        mEvents.setScheduler(scheduler);
+    }
+
+    /**
+     * @param policy The ReconnectPolicy for dropped connections, or null to never reconnect.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * @return The session token the server assigned, or 0 if none yet.
+     */
+    public long getSessionToken() {
+        return mSessionToken;
+    }
+
+    /**
+     * Set the longest silence from the server before a heartbeat PING is sent. Heartbeats
+     * also measure the round-trip time, and a link that stops answering them is dropped.
+     * @param millis The longest interval between heartbeats, or 0 to stop them.
+     */
+    public void setProbeInterval(long millis) {
+        mProbeIntervalMillis = millis;
+    }
+
+    /**
+     * @return Round-trip times of the current connection, measured with PING/PONG frames.
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return mLatency;
+    }
+
+    /**
+     * @return The pointer frames a second the current connection is given, or 0 if not
+     * connected. Drops while writes stall on a congested link.
+     */
+    public int getPointerRate() {
+        Connection r = getConnection();
+        return r != null ? r.mmRate.getRate() : 0;
+    }
+
+    /**
+     * Cancel any attempt to make a connection.
+     */
+    private void cancelConnectTask() {
+        ConnectTask task = mConnectTask.getAndSet(null);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * Cancel any running connection
+     */
+    private void cancelConnection() {
+        Connection connection = mConnection.getAndSet(null);
+        if (connection != null) {
+            connection.cancel();
+        }
+    }
+
+    /**
+     * Drop any connection or connection attempt.
+     */
+    public void start() {
+        stop();
+    }
+
+    /**
+     * Start connecting over the given transport, dropping any current connection. The
+     * connection is not re-established if it drops.
+     * @param transport The Transport to connect with; it is owned by the service from now on.
+     */
+    public void connect(Transport transport) {
+        startConnect(null, transport);
+    }
+
+    /**
+     * Start connecting over a transport from the factory, dropping any current connection.
+     * The factory is used again to reconnect if the connection drops.
+     * @param factory The Transport.Factory for the server to connect with.
+     */
+    public void connect(Transport.Factory factory) {
+        startConnect(factory, null);
+    }
+
+    private void startConnect(Transport.Factory factory, Transport transport) {
+        long generation = mState.advance(STATE_CONNECTING);
+        cancelConnectTask();
+        cancelConnection();
+
+        // a new server starts a new session
+        mSessionToken = 0;
+        mMacros.setSupported(false);
+        mMacros.clear();
+        synchronized (mReplay) {
+            resetReplay();
+        }
+        mTransfers.finishAll(Transfer.STATE_FAILED);
+
+        // connect over the given transport
+        submitConnect(new ConnectTask(generation, factory, transport, 0, 0));
+    }
+
+    private void submitConnect(final ConnectTask task) {
+        ConnectTask previous = mConnectTask.getAndSet(task);
+        if (previous != null) {
+            previous.cancel();
+        }
+        try {
+            if (task.mmDelayMillis > 0) {
+                // wait out the backoff on the timer, not on the connect thread
+                task.mmFuture = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mExecutor.connect(task);
+                        } catch (RejectedExecutionException e) {
+                            // shut down
+                        }
+                    }
+                }, task.mmDelayMillis);
+            } else {
+                task.mmFuture = mExecutor.connect(task);
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down
+            mConnectTask.compareAndSet(task, null);
+            task.cancel();
+        }
+    }
+
+    /**
+     * Hand a connected transport to a new Connection, unless the attempt was superseded.
+     * @return false if the attempt is stale and the transport was closed.
+     */
+    private boolean connected(ConnectTask attempt, Transport transport) {
+        long generation = attempt.mmGeneration;
+        int from = attempt.mmAttempt > 0 ? STATE_RECONNECTING : STATE_CONNECTING;
+
+        // manage the connection and perform transmissions
+        Connection connection = new Connection(generation, attempt.mmFactory, transport,
+                mBackpressurePolicy);
+
+        // announce the protocol version to the server, resuming the session if there is one
+        long token = mSessionToken;
+        int flags = (token != 0 ? Opcodes.HELLO_RESUME : 0)
+                | (mCompression ? Opcodes.HELLO_COMPRESS : 0)
+                | Opcodes.HELLO_SEQUENCE | Opcodes.HELLO_MACRO;
+        synchronized (mEncoder) {
+            mEncoder.encodeHello(flags, token);
+            connection.write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+        }
+
+        mConnectTask.compareAndSet(attempt, null);
+
+        // then everything the server may not have; holding stops with the state change
+        synchronized (mReplay) {
+            if (!mState.transition(generation, from, STATE_CONNECTED)) {
+                connection.cancel();
+                return false;
+            }
+            // only an attempt of the current generation may replace the live connection
+            Connection previous = mConnection.getAndSet(connection);
+            if (previous != null) {
+                previous.cancel();
+            }
+            if (token != 0) {
+                // keep holding until the server says whether the session resumed
+                mAwaitingSession = connection;
+            } else {
+                replay(connection);
+            }
+        }
+        mTransfers.offerAll(connection);
+
+        mLatency.reset();
+        try {
+            connection.start();
+        } catch (RejectedExecutionException e) {
+            connection.cancel();
+            connectionLost(connection, new IOException("No worker thread for the connection"));
+            return false;
+        }
+
+        // a stop() that raced with us may have missed the new connection
+        if (mState.getGeneration() != generation) {
+            mConnection.compareAndSet(connection, null);
+            connection.cancel();
+            return false;
+        }
+
+        // show that connection has been made
+        onConnected(transport);
+        mEvents.post(LinkEventDispatcher.EVENT_CONNECTED, transport.getType(), 0);
+        return true;
+    }
+
+    public void stop() {
+        mState.advance(STATE_NONE);
+        cancelConnectTask();
+        cancelConnection();
+        synchronized (mReplay) {
+            resetReplay();
+        }
+        mTransfers.finishAll(Transfer.STATE_CANCELLED);
+    }
+
+    /**
+     * Stop and release the worker threads. The service cannot connect again afterwards.
+     * Blocks for up to a second, so call it off the main thread.
+     * @return false if a worker did not exit in time.
+     */
+    public boolean shutdown() {
+        stop();
+        boolean terminated;
+        try {
+            terminated = mExecutor.shutdown(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            terminated = false;
+        }
+        // a worker still running may be compressing; its Deflater is then left to the GC
+        if (terminated) {
+            synchronized (mEncoder) {
+                if (mCompressor != null) {
+                    mCompressor.end();
+                    mCompressor = null;
+                }
+            }
+        }
+        return terminated;
+    }
+
+    /**
+     * Queue an encoded frame for the writer thread. Never blocks on the socket.
+     *
+     * If the server accepted sequencing, each frame goes out as a SEQUENCED frame and is kept
+     * until the server acknowledges it, so frames lost with a dropped link are replayed on
+     * the next connection; otherwise frames are only held while reconnecting. A connection
+     * that asks to resume holds them until its SESSION, and drops them if the session did not
+     * resume. Coalescible frames (pointer motion, scrolling) are neither kept nor held, as
+     * they would be stale by then.
+     *
+     * May be called from any thread, e.g. a SessionReplayer's, without holding any lock:
+     * every frame, whichever path it takes, is offered to the connection's single-producer
+     * queue under one producer lock, taken after mEncoder and mReplay.
+     * @param buffer The buffer holding one encoded frame.
+     * @param offset The index of the first byte.
+     * @param length The length of the frame.
+     * @param flags The OutboundQueue.FLAG_* flags of the frame.
+     * @return false if not connected or the frame was dropped, e.g. because keeping it would
+     * have meant evicting an unacknowledged key release; a connection that leaves that many
+     * frames unacknowledged is dropped.
+     */
+    public boolean write(byte[] buffer, int offset, int length, int flags) {
+        if ((flags & OutboundQueue.FLAG_COALESCIBLE) != 0) {
+            Connection r = getConnection();
+            return r != null && r.write(buffer, offset, length, flags);
+        }
+        Connection stalled;
+        String reason;
+        synchronized (mReplay) {
+            Connection r = getConnection();
+            if (r == null && mState.getState() != STATE_RECONNECTING) {
+                return false;
+            }
+            int opcode = Protocol.opcode(buffer, offset);
+            // losing a release would leave the key or button held down on the server
+            boolean release = opcode == Opcodes.KEY_UP || opcode == Opcodes.BUTTON_UP;
+            // the longest text frames leave no room for a sequence number
+            boolean sequenced = mSequencing && Protocol.bodyLength(buffer, offset)
+                    <= Protocol.MAX_BODY_LENGTH - 1 - Protocol.varintSize(mSequence + 1);
+            if (sequenced) {
+                length = mReplayEncoder.encodeSequenced(++mSequence, buffer, offset);
+                buffer = mReplayEncoder.array();
+                offset = mReplayEncoder.offset();
+            }
+            boolean hold = r == null || r == mAwaitingSession;
+            if ((sequenced || hold)
+                    && !mReplay.add(sequenced ? mSequence : 0, release, buffer, offset, length)) {
+                // the ring is full of unacknowledged releases
+                if (sequenced) {
+                    mSequence--;
+                }
+                if (r == null) {
+                    return false;
+                }
+                reason = "Too many unacknowledged frames";
+            } else if (hold || send(r, buffer, offset, length, flags)) {
+                return true;
+            } else if (!sequenced) {
+                return false;
+            } else {
+                // kept for replay, but skipping it here would lose it for good
+                reason = "Outbound queue full";
+            }
+            stalled = r;
+        }
+        // a server this far behind is as good as gone; resuming the session on a new
+        // connection lets it acknowledge what it has and replays the rest
+        stalled.expire(new IOException(reason));
+        return false;
+    }
+
+    /**
+     * Compress a frame if the connection accepts it, and queue it. Called with mReplay held.
+     */
+    private boolean send(Connection r, byte[] buffer, int offset, int length, int flags) {
+        FrameCompressor compressor = mCompressor;
+        if (r.mmCompress && compressor != null) {
+            // the copy kept for replay stays plain, the next server may not inflate it
+            int bodyLength = Protocol.bodyLength(buffer, offset);
+            int compressed = compressor.compress(buffer,
+                    offset + Protocol.prefixLength(bodyLength), bodyLength, mReplayEncoder);
+            if (compressed > 0) {
+                buffer = mReplayEncoder.array();
+                offset = mReplayEncoder.offset();
+                length = compressed;
+            }
+        }
+        return r.write(buffer, offset, length, flags);
+    }
+
+    /**
+     * Forget the frames and sequence numbers of the session. Called with mReplay held.
+     */
+    private void resetReplay() {
+        mReplay.clear();
+        mSequencing = false;
+        mSequence = 0;
+        mAwaitingSession = null;
+    }
+
+    /**
+     * Send everything the server may not have. Called with mReplay held.
+     */
+    private void replay(Connection connection) {
+        if (mReplay.isEmpty()) {
+            return;
+        }
+        // the server skips sequence numbers it has already handled; pointer motion and pings
+        // may already be queueing on the connection, Connection.write() serializes them
+        int bytes = mReplay.copyTo(mReplayBatch);
+        connection.write(mReplayBatch, 0, bytes, 0);
+        // frames without a sequence number were only held for this connection
+        mReplay.dropUnsequenced();
+    }
+
+    /**
+     * @return The current connection for the TransferManager, or null if not connected.
+     */
+    TransferManager.Link getLink() {
+        return getConnection();
+    }
+
+    /**
+     * @return The current connection, or null if not connected.
+     */
+    private Connection getConnection() {
+        long word = mState.getWord();
+        if (ConnectionState.stateOf(word) != STATE_CONNECTED) {
+            return null;
+        }
+        Connection connection = mConnection.get();
+        if (connection == null || connection.mmGeneration != ConnectionState.generationOf(word)) {
+            return null;
+        }
+        return connection;
+    }
+
+    /**
+     * Queue a bulk message, e.g. clipboard text, on a channel. It is sent in chunks between
+     * input frames, so it never holds up keys or pointer motion. Bulk data is not held while
+     * reconnecting.
+     * @param channel The bulk channel, 1 to ChannelMux.MAX_CHANNELS - 1.
+     * @return false if not connected or the channels are full.
+     */
+    public boolean sendBulk(int channel, byte[] data, int offset, int length) {
+        Connection r = getConnection();
+        return r != null && r.sendBulk(channel, data, offset, length);
+    }
+
+    /**
+     * Send text to the server's clipboard.
+     */
+    public Transfer sendClipboard(String text) {
+        return startTransfer(Opcodes.TRANSFER_CLIPBOARD, null,
+                new ByteArraySource(text.getBytes(UTF_8)));
+    }
+
+    /**
+     * Send a file, streamed from disk as the server makes room for it.
+     */
+    public Transfer sendFile(File file) throws IOException {
+        return startTransfer(Opcodes.TRANSFER_FILE, file.getName(), new FileSource(file));
+    }
+
+    /**
+     * Start a bulk transfer. It is offered to the server now if connected, or once the link
+     * is back if reconnecting; otherwise it fails straight away. Progress is reported to
+     * {@link LinkListener#onTransferProgress(int, long)}.
+     * @param kind The Opcodes.TRANSFER_* kind of the data.
+     * @param name The name shown to the server, or null.
+     * @param source The data; it is closed when the transfer finishes.
+     */
+    public Transfer startTransfer(int kind, String name, TransferSource source) {
+        return mTransfers.start(kind, name, source);
+    }
+
+    /**
+     * Stop a transfer and tell the server to discard what it has.
+     */
+    public void cancelTransfer(Transfer transfer) {
+        mTransfers.cancel(transfer);
+    }
+
+    public void sendKey(boolean down, int keyCode, int modifiers) {
+        synchronized (mEncoder) {
+            mEncoder.encodeKey(down, keyCode, modifiers);
+            sendEncodedFrame(0);
+        }
+    }
+
+    public void sendText(String text) {
+        synchronized (mEncoder) {
+            mEncoder.encodeText(text);
+            sendEncodedFrame(0);
+        }
+    }
+
+    /**
+     * Pointer motion, scrolling and buttons go through the connection's MotionCoalescer so
+     * high-rate touchpad input does not build a backlog of stale moves.
+     */
+    public void sendPointerMove(int dx, int dy) {
+        Connection r = getConnection();
+        if (r != null) {
+            r.mmMotion.move(dx, dy);
+        }
+    }
+
+    public void sendButton(boolean down, int button) {
+        Connection r = getConnection();
+        if (r != null) {
+            r.mmMotion.button(down, button);
+        } else {
+            // held while reconnecting so a release is never lost
+            synchronized (mEncoder) {
+                mEncoder.encodeButton(down, button);
+                sendEncodedFrame(0);
+            }
+        }
+    }
+
+    public void sendScroll(int dx, int dy) {
+        Connection r = getConnection();
+        if (r != null) {
+            r.mmMotion.scroll(dx, dy);
+        }
+    }
+
+    /**
+     * Run a macro on the server. The first time a macro is sent in a session it goes out
+     * whole; after that only the slot the server keeps it in is sent.
+     * @return false if not connected, or the server does not run macros.
+     */
+    public boolean sendMacro(Macro macro) {
+        return mMacros.send(macro);
+    }
+
+    private boolean sendEncodedFrame(int flags) {
+        return write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), flags);
+    }
+
+    private void connectionFailed(ConnectTask attempt, Transport transport, IOException e) {
+        long generation = attempt.mmGeneration;
+        boolean reconnecting = attempt.mmAttempt > 0;
+        if (reconnecting && scheduleReconnect(generation, attempt.mmFactory, attempt.mmAttempt)) {
+            return;
+        }
+
+        int from = reconnecting ? STATE_RECONNECTING : STATE_CONNECTING;
+        synchronized (mReplay) {
+            if (!mState.transition(generation, from, STATE_NONE)) {
+                // superseded by a newer connect() or stop()
+                return;
+            }
+            resetReplay();
+        }
+        mConnectTask.compareAndSet(attempt, null);
+        mTransfers.finishAll(Transfer.STATE_FAILED);
+
+        if (reconnecting) {
+            // out of attempts: the connection that dropped is gone for good
+            onConnectionLost(e);
+            mEvents.post(LinkEventDispatcher.EVENT_CONNECTION_LOST, 0, 0);
+        } else {
+            onConnectionFailed(transport, e);
+            mEvents.post(LinkEventDispatcher.EVENT_CONNECTION_FAILED, 0, 0);
+        }
+    }
+
+    private void connectionLost(Connection connection, IOException e) {
+        long generation = connection.mmGeneration;
+        mConnection.compareAndSet(connection, null);
+        if (scheduleReconnect(generation, connection.mmFactory, 0)) {
+            return;
+        }
+        if (!mState.transition(generation, STATE_CONNECTED, STATE_NONE)) {
+            return;
+        }
+        mTransfers.finishAll(Transfer.STATE_FAILED);
+
+        onConnectionLost(e);
+        mEvents.post(LinkEventDispatcher.EVENT_CONNECTION_LOST, 0, 0);
+    }
+
+    /**
+     * Start the next reconnect attempt after its backoff delay.
+     * @param generation The generation of the connection being re-established.
+     * @param factory The factory of that connection, or null if it cannot be re-established.
+     * @param attempts The number of reconnect attempts already made.
+     * @return false if reconnecting is not possible, attempts are used up, or the connection
+     * was superseded.
+     */
+    private boolean scheduleReconnect(long generation, Transport.Factory factory, int attempts) {
+        ReconnectPolicy policy = mReconnectPolicy;
+        if (factory == null || policy == null) {
+            return false;
+        }
+        long delay = policy.getDelayMillis(attempts);
+        if (delay < 0) {
+            return false;
+        }
+        int from = attempts == 0 ? STATE_CONNECTED : STATE_RECONNECTING;
+        if (!mState.transition(generation, from, STATE_RECONNECTING)) {
+            // superseded; report nothing
+            return true;
+        }
+        onReconnecting(attempts + 1, delay);
+        mEvents.post(LinkEventDispatcher.EVENT_RECONNECTING, attempts + 1, delay);
+
+        submitConnect(new ConnectTask(generation, factory, null, delay, attempts + 1));
+        return true;
+    }
+
+    /**
+     * Called once a transport has connected.
+     */
+    protected void onConnected(Transport transport) {
+    }
+
+    /**
+     * Called from the connect thread when a transport failed to connect.
+     */
+    protected void onConnectionFailed(Transport transport, IOException e) {
+    }
+
+    /**
+     * Called from the read loop when an established connection ended, or when
+     * reconnecting after it ended has given up.
+     */
+    protected void onConnectionLost(IOException e) {
+    }
+
+    /**
+     * Called before each reconnect attempt is started.
+     * @param attempt The one-based number of the attempt.
+     * @param delayMillis The backoff delay before the attempt.
+     */
+    protected void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * Called for errors that do not change the connection state, e.g. a failed close().
+     */
+    protected void onError(String message, IOException e) {
+    }
+
+    private class ConnectTask implements Runnable {
+        private final long mmGeneration;
+        private final Transport.Factory mmFactory;
+        private final long mmDelayMillis;
+        private final int mmAttempt;
+        private volatile Transport mmTransport;
+        private volatile Future<?> mmFuture;
+        private volatile boolean mmCancelled;
+
+        /**
+         * @param generation The connection generation this attempt works for.
+         * @param factory The factory to create the transport with, if transport is null.
+         * @param transport The transport to connect, or null.
+         * @param delayMillis How long to wait before connecting.
+         * @param attempt The reconnect attempt number, or 0 for the initial connect.
+         */
+        ConnectTask(long generation, Transport.Factory factory, Transport transport,
+                    long delayMillis, int attempt) {
+            mmGeneration = generation;
+            mmFactory = factory;
+            mmTransport = transport;
+            mmDelayMillis = delayMillis;
+            mmAttempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            // make a connection over the transport
+            Transport transport = mmTransport;
+            try {
+                if (transport == null) {
+                    transport = mmFactory.newTransport();
+                    mmTransport = transport;
+                }
+                if (mmCancelled) {
+                    transport.close();
+                    return;
+                }
+                transport.connect();
+            } catch (IOException e) {
+                if (transport != null) {
+                    try {
+                        transport.close();
+                    } catch (IOException e1) {
+                        onError("Unable to close transport", e1);
+                    }
+                }
+
+                if (!mmCancelled) {
+                    connectionFailed(this, transport, e);
+                }
+                return;
+            }
+
+            if (mmCancelled) {
+                cancel();
+                return;
+            }
+            connected(this, transport);
+        }
+
+        void cancel() {
+            mmCancelled = true;
+            Future<?> future = mmFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+            Transport transport = mmTransport;
+            if (transport == null) {
+                return;
+            }
+            try {
+                transport.close();
+            } catch (IOException e) {
+                onError("Connect", e);
+            }
+        }
+    }
+
+    private class Connection implements Runnable, OutboundWriter.Callback,
+            MotionCoalescer.Sink, TransferManager.Link {
+        private final long mmGeneration;
+        private final Transport.Factory mmFactory;
+        private final Transport mmTransport;
+        private InputStream mmInStream;
+        private OutputStream mmOutStream;
+        private final OutboundQueue mmOutbound;
+        // the queue takes one producer at a time; taken last, after mEncoder and mReplay
+        private final Object mmProducerLock = new Object();
+        private final ChannelMux mmChannels = new ChannelMux();
+        private final OutboundWriter mmWriter;
+        private final MotionCoalescer mmMotion = new MotionCoalescer(this);
+        private final RateController mmRate = new RateController();
+        private final Runnable mmFlushMotion = new Runnable() {
+            @Override
+            public void run() {
+                mmMotion.onFlushDue();
+            }
+        };
+        private final FrameParser mmParser = new FrameParser();
+        private final ProbeTask mmProbe = new ProbeTask(this);
+        private final Heartbeat mmHeartbeat;
+        private FrameDecompressor mmDecompressor;
+        private volatile boolean mmCompress;
+        // probe timestamps are microseconds since the connection started
+        private final long mmEpoch = System.nanoTime();
+        private volatile boolean mmCancelled;
+
+        Connection(long generation, Transport.Factory factory, Transport transport,
+                   int backpressurePolicy) {
+            mmGeneration = generation;
+            mmFactory = factory;
+            mmTransport = transport;
+            mmHeartbeat = new Heartbeat(mProbeIntervalMillis, mmEpoch);
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            // get the transport input and output streams
+            try {
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
+            } catch (IOException e) {
+                onError("Unable to get transport streams", e);
+            }
+
+            mmInStream = tmpIn;
+            mmOutStream = tmpOut;
+            // producers hold the service's locks, so a frame that does not fit never waits
+            mmOutbound = new OutboundQueue(OUTBOUND_CAPACITY, backpressurePolicy, 0);
+            mmWriter = new OutboundWriter(mmOutbound, mmChannels, mmOutStream, this);
+            mmMotion.setInterval(mmRate.getIntervalNanos());
+            mTransfers.applyWeights(mmChannels);
+
+            // frames sent by the server
+            mmParser.setTap(new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    SessionRecorder recorder = mRecorder;
+                    if (recorder != null) {
+                        recorder.recordInbound(frame);
+                    }
+                }
+            });
+            mmParser.register(Opcodes.PING, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    long timestamp = frame.readVarint();
+                    synchronized (mEncoder) {
+                        mEncoder.encodePong(timestamp);
+                        write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+                    }
+                }
+            });
+            mmParser.register(Opcodes.SESSION, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    long token = frame.readVarint();
+                    boolean resumed = token == mSessionToken;
+                    if (!resumed) {
+                        // the server kept none of the old session's macros
+                        mMacros.clear();
+                    }
+                    synchronized (mReplay) {
+                        if (mAwaitingSession == Connection.this) {
+                            mAwaitingSession = null;
+                            if (resumed) {
+                                replay(Connection.this);
+                            } else {
+                                // stale input, and macro runs for slots the server never had
+                                resetReplay();
+                            }
+                        }
+                    }
+                    mSessionToken = token;
+                }
+            });
+            mmParser.register(Opcodes.FEATURES, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    int flags = frame.readInt();
+                    mMacros.setSupported((flags & Opcodes.HELLO_MACRO) != 0);
+                    if ((flags & Opcodes.HELLO_SEQUENCE) != 0) {
+                        synchronized (mReplay) {
+                            mSequencing = true;
+                        }
+                    }
+                    if ((flags & Opcodes.HELLO_COMPRESS) != 0 && mCompression) {
+                        enableCompression();
+                    }
+                }
+            });
+            mmParser.register(Opcodes.ACK, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    long sequence = frame.readVarint();
+                    synchronized (mReplay) {
+                        mReplay.acknowledge(sequence);
+                    }
+                }
+            });
+            mmParser.register(Opcodes.TRANSFER_CREDIT, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    int id = frame.readInt();
+                    long received = frame.readVarint();
+                    long limit = frame.readVarint();
+                    if (mTransfers.onCredit(Connection.this, id, received, limit)) {
+                        // the writer may be waiting for this credit
+                        mmOutbound.signal();
+                    }
+                }
+            });
+            mmParser.register(Opcodes.TRANSFER_CANCEL, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    int id = frame.readInt();
+                    mTransfers.onCancel(id, frame.readInt());
+                }
+            });
+            mmParser.register(Opcodes.PONG, new FrameHandler() {
+                @Override
+                public void onFrame(Frame frame) throws IOException {
+                    long sent = frame.readVarint() * 1000;
+                    long rtt = System.nanoTime() - mmEpoch - sent;
+                    mLatency.record(rtt);
+                    mmHeartbeat.onRttSample(rtt);
+                    mEvents.post(LinkEventDispatcher.EVENT_LATENCY_SAMPLE, rtt, 0);
+                }
+            });
+        }
+
+        /**
+         * Start the read and write loops and the probes.
+         * @throws RejectedExecutionException if no io thread is free.
+         */
+        void start() {
+            // frames are written from their own thread so callers never wait on the socket
+            mExecutor.io(mmWriter);
+            try {
+                mExecutor.io(this);
+            } catch (RejectedExecutionException e) {
+                mmWriter.cancel();
+                throw e;
+            }
+            mmProbe.schedule();
+        }
+
+        /**
+         * Called from the read loop once the server accepted compression.
+         */
+        private void enableCompression() {
+            if (mmCompress) {
+                return;
+            }
+            synchronized (mEncoder) {
+                if (mCompressor == null) {
+                    mCompressor = new FrameCompressor();
+                }
+                mmChannels.setCompressor(mCompressor);
+            }
+            mmDecompressor = new FrameDecompressor();
+            mmParser.setDecompressor(mmDecompressor);
+            mmCompress = true;
+        }
+
+        @Override
+        public void run() {
+            // keep listening to the input stream while connected
+            while (true) {
+                try {
+                    if (mmParser.readFrom(mmInStream) < 0) {
+                        throw new IOException("Stream closed by server");
+                    }
+                    mmHeartbeat.onReceived(System.nanoTime());
+                } catch (IOException e) {
+                    mmWriter.cancel();
+                    mmProbe.cancel();
+                    if (mmDecompressor != null) {
+                        mmDecompressor.end();
+                    }
+                    // a cancelled connection was closed on purpose
+                    if (!mmCancelled) {
+                        connectionLost(this, e);
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Queue a frame. Callers hold an encoder, mReplay or neither, so the producers are
+         * serialized here.
+         */
+        @Override
+        public boolean write(byte[] buffer, int offset, int length, int flags) {
+            synchronized (mmProducerLock) {
+                return mmOutbound.offer(buffer, offset, length, flags);
+            }
+        }
+
+        @Override
+        public ChannelMux getChannels() {
+            return mmChannels;
+        }
+
+        boolean sendBulk(int channel, byte[] data, int offset, int length) {
+            if (!mmChannels.send(channel, data, offset, length)) {
+                return false;
+            }
+            // the writer may be idle waiting for input frames
+            mmOutbound.signal();
+            return true;
+        }
+
+        void sendPing() {
+            synchronized (mEncoder) {
+                mEncoder.encodePing((System.nanoTime() - mmEpoch) / 1000);
+                write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+            }
+        }
+
+        @Override
+        public void onBatchReady(byte[] batch, int bytes) {
+            // recorded as written, so bulk chunks and coalesced motion are in the log too
+            SessionRecorder recorder = mRecorder;
+            if (recorder != null) {
+                recorder.recordOutbound(batch, 0, bytes);
+            }
+        }
+
+        @Override
+        public void onBatchWritten(int bytes, long stallNanos) {
+            mmRate.onWrite(System.nanoTime(), stallNanos, mmOutbound.pendingBytes());
+            mmMotion.setInterval(mmRate.getIntervalNanos());
+            mmMotion.onLinkReady();
+        }
+
+        @Override
+        public void scheduleFlush(long delayNanos) {
+            try {
+                mExecutor.schedule(mmFlushMotion,
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+            } catch (RejectedExecutionException e) {
+                // shut down
+            }
+        }
+
+        @Override
+        public boolean isLinkIdle() {
+            return mmOutbound.isEmpty();
+        }
+
+        @Override
+        public void onPointerMove(int dx, int dy) {
+            synchronized (mEncoder) {
+                mEncoder.encodePointerMove(dx, dy);
+                write(mEncoder.array(), mEncoder.offset(), mEncoder.length(),
+                        OutboundQueue.FLAG_COALESCIBLE);
+            }
+        }
+
+        @Override
+        public void onScroll(int dx, int dy) {
+            synchronized (mEncoder) {
+                mEncoder.encodeScroll(dx, dy);
+                write(mEncoder.array(), mEncoder.offset(), mEncoder.length(),
+                        OutboundQueue.FLAG_COALESCIBLE);
+            }
+        }
+
+        @Override
+        public void onButton(boolean down, int button) {
+            synchronized (mEncoder) {
+                mEncoder.encodeButton(down, button);
+                // kept for replay like a key, so a release is never lost
+                sendEncodedFrame(0);
+            }
+        }
+
+        @Override
+        public void onWriteFailed(IOException e) {
+            onError("Write failed", e);
+            // closing the transport makes the read loop report the lost connection
+            closeTransport();
+        }
+
+        void cancel() {
+            mmCancelled = true;
+            mmWriter.cancel();
+            mmProbe.cancel();
+            closeTransport();
+        }
+
+        /**
+         * Report the connection lost without waiting for a read to fail, which can take tens
+         * of seconds once the server is out of range.
+         */
+        void expire(IOException e) {
+            if (mmCancelled) {
+                return;
+            }
+            // the read loop fails once the transport is closed, and must not report it again
+            mmCancelled = true;
+            mmWriter.cancel();
+            mmProbe.cancel();
+            connectionLost(this, e);
+            closeTransport();
+        }
+
+        private void closeTransport() {
+            try {
+                mmTransport.close();
+            } catch (IOException e) {
+                onError("close() of connected transport failed", e);
+            }
+        }
+    }
+
+    private class ProbeTask implements Runnable {
+        private final Connection mmConnection;
+        private volatile Future<?> mmFuture;
+        private volatile boolean mmCancelled;
+
+        ProbeTask(Connection connection) {
+            mmConnection = connection;
+        }
+
+        void schedule() {
+            long delay = mmConnection.mmHeartbeat.nextTick(System.nanoTime());
+            schedule(mProbeIntervalMillis > 0
+                    ? TimeUnit.NANOSECONDS.toMillis(delay) : DEFAULT_PROBE_INTERVAL_MS);
+        }
+
+        private void schedule(long delayMillis) {
+            try {
+                mmFuture = mExecutor.schedule(this, Math.max(1, delayMillis));
+            } catch (RejectedExecutionException e) {
+                // shut down
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mmCancelled) {
+                return;
+            }
+            long interval = mProbeIntervalMillis;
+            if (interval <= 0) {
+                // check again later in case heartbeats are turned back on
+                schedule(DEFAULT_PROBE_INTERVAL_MS);
+                return;
+            }
+            Heartbeat heartbeat = mmConnection.mmHeartbeat;
+            heartbeat.setMaxIntervalMillis(interval);
+            long now = System.nanoTime();
+            switch (heartbeat.tick(now)) {
+                case Heartbeat.ACTION_PING:
+                    mmConnection.sendPing();
+                    break;
+                case Heartbeat.ACTION_DEAD:
+                    mmConnection.expire(new IOException("No reply from server for "
+                            + TimeUnit.NANOSECONDS.toMillis(heartbeat.getDeadline()) + " ms"));
+                    return;
+            }
+            schedule(TimeUnit.NANOSECONDS.toMillis(heartbeat.nextTick(now)));
+        }
+
+        void cancel() {
+            mmCancelled = true;
+            Future<?> future = mmFuture;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.evans.qontrol.link;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/8/17.
+ *
+ * AIMD control of how many pointer frames a second the link is given. Every write reports how
+ * long it stalled in the stream and how many bytes were still queued behind it. A write that
+ * stalled or left a backlog means the link is congested, e.g. by Bluetooth interference, and
+ * halves the rate; otherwise the rate creeps back up a step at a time. Motion is coalesced
+ * over the resulting interval, so a congested link carries fewer, fresher frames instead of
+ * building a backlog of stale ones.
+ *
+ * Times are System.nanoTime() values. Thread safe.
+ */
+
+public class RateController {
+
+    // pointer frames a second
+    public static final int MIN_RATE = 10;
+    public static final int MAX_RATE = 250;
+
+    // a write blocked longer than this found the stream's buffers full
+    private static final long STALL_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(15);
+    // about 50 ms of data at RFCOMM speeds
+    private static final int BACKLOG_THRESHOLD = 1024;
+    private static final int INCREASE_STEP = 10;
+    private static final long INCREASE_PERIOD = TimeUnit.MILLISECONDS.toNanos(100);
+    // one halving per congestion event; the writes it already queued stall as well
+    private static final long DECREASE_HOLDOFF = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private int mRate = MAX_RATE;
+    private long mLastIncrease;
+    private long mLastDecrease;
+    private boolean mDecreased;
+    private long mDecreases;
+    private long mMaxStall;
+
+    /**
+     * Called after each write to the stream.
+     * @param now The time the write returned.
+     * @param stallNanos How long the write blocked.
+     * @param backlogBytes The bytes still waiting to be written.
+     */
+    public synchronized void onWrite(long now, long stallNanos, int backlogBytes) {
+        mMaxStall = Math.max(mMaxStall, stallNanos);
+        if (stallNanos > STALL_THRESHOLD || backlogBytes > BACKLOG_THRESHOLD) {
+            if (!mDecreased || now - mLastDecrease >= DECREASE_HOLDOFF) {
+                mRate = Math.max(MIN_RATE, mRate / 2);
+                mDecreased = true;
+                mLastDecrease = now;
+                mLastIncrease = now;
+                mDecreases++;
+            }
+        } else if (mRate < MAX_RATE && now - mLastIncrease >= INCREASE_PERIOD) {
+            mRate = Math.min(MAX_RATE, mRate + INCREASE_STEP);
+            mLastIncrease = now;
+        }
+    }
+
+    /**
+     * @return The pointer frames a second the link is given.
+     */
+    public synchronized int getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return The shortest time between two pointer frames.
+     */
+    public synchronized long getIntervalNanos() {
+        return TimeUnit.SECONDS.toNanos(1) / mRate;
+    }
+
+    /**
+     * @return The number of times the rate was cut.
+     */
+    public synchronized long decreases() {
+        return mDecreases;
+    }
+
+    /**
+     * @return The longest time a write blocked.
+     */
+    public synchronized long maxStallNanos() {
+        return mMaxStall;
+    }
+}
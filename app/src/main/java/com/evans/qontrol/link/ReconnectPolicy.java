@@ -0,0 +1,59 @@
+package com.evans.qontrol.link;
+
+import java.util.Random;
+
+/**
+ * Created by evans on 2/25/17.
+ *
+ * Jittered exponential backoff between reconnect attempts. The delay doubles with each
+ * attempt up to a ceiling, and a random half of it is jittered away so phones that lost the
+ * same host do not retry in lockstep.
+ */
+
+public class ReconnectPolicy {
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+
+    public ReconnectPolicy() {
+        this(250, 8000, 10, new Random());
+    }
+
+    /**
+     * @param initialDelayMillis The delay before the first attempt.
+     * @param maxDelayMillis The longest delay between attempts.
+     * @param maxAttempts The number of attempts before giving up.
+     * @param random The source of jitter; seed it for reproducible delays.
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts,
+                           Random random) {
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempt The zero-based number of the coming attempt.
+     * @return The delay before the attempt, or -1 if no more attempts should be made.
+     */
+    public long getDelayMillis(int attempt) {
+        if (attempt >= mMaxAttempts) {
+            return -1;
+        }
+        long ceiling = mInitialDelayMillis << Math.min(attempt, 30);
+        if (ceiling <= 0 || ceiling > mMaxDelayMillis) {
+            ceiling = mMaxDelayMillis;
+        }
+        long half = ceiling / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (ceiling - half));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.evans.qontrol.link;
+
+/**
+ * Created by evans on 4/6/17.
+ *
+ * Bounded ring of encoded frames kept until the server acknowledges them, so the frames still
+ * in flight when a link drops can be replayed on the next connection. Each frame is copied
+ * behind a twelve byte record header (sequence number, then length), so keeping a frame never
+ * allocates. When the ring is full the oldest frames are evicted, except pinned ones such as
+ * a key release, whose loss would leave the key held down: a frame that would need one
+ * evicted is refused instead.
+ *
+ * Frames are added in sequence order. A frame kept without a sequence number counts as 0; it
+ * goes with the first acknowledgement, and {@link #dropUnsequenced()} drops all of them once
+ * they have been sent.
+ *
+ * Not thread safe; callers guard it with their own lock.
+ */
+
+public class ReplayBuffer {
+
+    private static final int RECORD_HEADER = 12;
+    // the top bit of the length field marks a pinned frame
+    private static final int PINNED = 0x80000000;
+
+    private final byte[] mRing;
+    private final int mMask;
+
+    // absolute byte positions; the ring index is position & mMask
+    private long mHead;
+    private long mTail;
+    private int mFrames;
+    private long mEvicted;
+
+    /**
+     * @param capacity The size of the ring in bytes, rounded up to a power of two.
+     */
+    public ReplayBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mRing.length;
+    }
+
+    public boolean isEmpty() {
+        return mFrames == 0;
+    }
+
+    /**
+     * @return The number of frames kept.
+     */
+    public int frameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return The number of frames evicted unacknowledged because the ring was full.
+     */
+    public long evictedFrames() {
+        return mEvicted;
+    }
+
+    /**
+     * Keep a copy of an encoded frame that may be evicted.
+     */
+    public boolean add(long sequence, byte[] frame, int offset, int length) {
+        return add(sequence, false, frame, offset, length);
+    }
+
+    /**
+     * Keep a copy of an encoded frame, evicting the oldest frames if there is no room.
+     * @param sequence The sequence number of the frame, or 0 if it has none.
+     * @param pinned Whether the frame may never be evicted.
+     * @param frame The buffer holding the frame.
+     * @param offset The index of the first byte.
+     * @param length The length of the frame.
+     * @return false if room could only be made by evicting a pinned frame; nothing changed.
+     */
+    public boolean add(long sequence, boolean pinned, byte[] frame, int offset, int length) {
+        int record = RECORD_HEADER + length;
+        if (record > mRing.length) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes exceeds buffer capacity");
+        }
+        // find out first whether enough unpinned frames can go
+        long head = mHead;
+        while (mTail + record - head > mRing.length) {
+            if ((readInt(head + 8) & PINNED) != 0) {
+                return false;
+            }
+            head += RECORD_HEADER + lengthAt(head);
+        }
+        while (mHead < head) {
+            removeFirst();
+            mEvicted++;
+        }
+        writeLong(mTail, sequence);
+        writeInt(mTail + 8, pinned ? length | PINNED : length);
+        copyIn(mTail + RECORD_HEADER, frame, offset, length);
+        mTail += record;
+        mFrames++;
+        return true;
+    }
+
+    /**
+     * Drop the frames the server has.
+     * @param sequence The highest sequence number the server acknowledged.
+     * @return The number of frames dropped.
+     */
+    public int acknowledge(long sequence) {
+        int dropped = 0;
+        while (mFrames > 0 && readLong(mHead) <= sequence) {
+            removeFirst();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Drop every frame kept without a sequence number, wherever it is; the others keep their
+     * order.
+     * @return The number of frames dropped.
+     */
+    public int dropUnsequenced() {
+        int dropped = 0;
+        long write = mHead;
+        for (long read = mHead; read < mTail; ) {
+            int record = RECORD_HEADER + lengthAt(read);
+            if (readLong(read) == 0) {
+                dropped++;
+            } else {
+                if (write != read) {
+                    // moving towards the head, so a byte is read before it is overwritten
+                    for (int i = 0; i < record; i++) {
+                        mRing[(int) (write + i) & mMask] = mRing[(int) (read + i) & mMask];
+                    }
+                }
+                write += record;
+            }
+            read += record;
+        }
+        mTail = write;
+        mFrames -= dropped;
+        return dropped;
+    }
+
+    /**
+     * Copy every kept frame, back to back and without record headers, into a batch buffer.
+     * The frames stay kept.
+     * @param dst The batch buffer, at least {@link #capacity()} bytes long.
+     * @return The number of bytes written to dst.
+     */
+    public int copyTo(byte[] dst) {
+        if (dst.length < mRing.length) {
+            throw new IllegalArgumentException("Batch buffer smaller than buffer capacity");
+        }
+        int written = 0;
+        for (long position = mHead; position < mTail; ) {
+            int length = lengthAt(position);
+            copyOut(position + RECORD_HEADER, dst, written, length);
+            written += length;
+            position += RECORD_HEADER + length;
+        }
+        return written;
+    }
+
+    public void clear() {
+        mHead = mTail;
+        mFrames = 0;
+    }
+
+    private void removeFirst() {
+        mHead += RECORD_HEADER + lengthAt(mHead);
+        mFrames--;
+    }
+
+    private int lengthAt(long position) {
+        return readInt(position + 8) & ~PINNED;
+    }
+
+    private long readLong(long position) {
+        return ((long) readInt(position) << 32) | (readInt(position + 4) & 0xFFFFFFFFL);
+    }
+
+    private void writeLong(long position, long value) {
+        writeInt(position, (int) (value >>> 32));
+        writeInt(position + 4, (int) value);
+    }
+
+    private int readInt(long position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (mRing[(int) (position + i) & mMask] & 0xFF);
+        }
+        return value;
+    }
+
+    private void writeInt(long position, int value) {
+        for (int i = 3; i >= 0; i--) {
+            mRing[(int) (position + i) & mMask] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private void copyIn(long position, byte[] src, int offset, int length) {
+        int index = (int) position & mMask;
+        int first = Math.min(length, mRing.length - index);
+        System.arraycopy(src, offset, mRing, index, first);
+        System.arraycopy(src, offset + first, mRing, 0, length - first);
+    }
+
+    private void copyOut(long position, byte[] dst, int offset, int length) {
+        int index = (int) position & mMask;
+        int first = Math.min(length, mRing.length - index);
+        System.arraycopy(mRing, index, dst, offset, first);
+        System.arraycopy(mRing, 0, dst, offset + first, length - first);
+    }
+}
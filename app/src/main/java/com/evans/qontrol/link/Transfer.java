@@ -0,0 +1,188 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.transfer.TransferSource;
+
+import java.io.IOException;
+
+/**
+ * Created by evans on 3/30/17.
+ *
+ * A bulk transfer to the server, started with {@link QLinkService#startTransfer}. Data goes
+ * out on the transfer's channel only as far as the server has granted credit, so neither
+ * side buffers more than the server's window. Each connection offers the transfer again and
+ * the server's first credit says how much it already has, so after a reconnect the transfer
+ * resumes from there instead of starting over.
+ */
+
+public class Transfer implements ChannelMux.Source {
+
+    // states
+    public static final int STATE_WAITING = 0;
+    public static final int STATE_SENDING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    // bulk channels; clipboard text is small and gets its own so it never waits for a file
+    public static final int CHANNEL_CLIPBOARD = 1;
+    public static final int CHANNEL_FILE = 2;
+
+    private final TransferManager mManager;
+    private final int mId;
+    private final int mKind;
+    private final int mChannel;
+    private final String mName;
+    private final TransferSource mSource;
+    private final long mSize;
+
+    // guarded by this
+    private int mState = STATE_WAITING;
+    // the connection the transfer was last offered on
+    private Object mOfferedOn;
+    // next byte to send, bytes the server may receive, bytes the server has
+    private long mPosition;
+    private long mLimit;
+    private long mAcked;
+
+    Transfer(TransferManager manager, int id, int kind, int channel, String name,
+             TransferSource source) {
+        mManager = manager;
+        mId = id;
+        mKind = kind;
+        mChannel = channel;
+        mName = name;
+        mSource = source;
+        mSize = source.size();
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return The Opcodes.TRANSFER_* kind of the transfer.
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    public int getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return The name shown to the server, e.g. the file name, or null.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    /**
+     * @return The number of bytes the server has confirmed.
+     */
+    public synchronized long getBytesAcked() {
+        return mAcked;
+    }
+
+    public synchronized boolean isFinished() {
+        return mState >= STATE_DONE;
+    }
+
+    /**
+     * Prepare to offer the transfer on a connection.
+     * @return false if it is finished or was already offered on that connection.
+     */
+    synchronized boolean prepareOffer(Object connection) {
+        if (mState >= STATE_DONE || mOfferedOn == connection) {
+            return false;
+        }
+        mOfferedOn = connection;
+        mState = STATE_WAITING;
+        mLimit = 0;
+        return true;
+    }
+
+    /**
+     * Apply a TRANSFER_CREDIT from the server. The first credit after an offer also sets
+     * where sending starts.
+     * @param connection The connection the credit came in on.
+     * @param received The number of bytes the server has.
+     * @param limit The offset the server will receive up to.
+     * @return true if the server has more of the transfer than before.
+     */
+    synchronized boolean credit(Object connection, long received, long limit) {
+        // late credit from a dropped connection refers to an offer that is gone
+        if (mState >= STATE_DONE || connection != mOfferedOn) {
+            return false;
+        }
+        received = Math.min(received, mSize);
+        if (mState == STATE_WAITING) {
+            mPosition = received;
+            mState = STATE_SENDING;
+        }
+        mLimit = Math.max(mLimit, Math.min(limit, mSize));
+        boolean progress = received > mAcked;
+        mAcked = Math.max(mAcked, received);
+        if (mAcked == mSize) {
+            finish(STATE_DONE);
+        }
+        return progress;
+    }
+
+    /**
+     * Move to a final state and release the source.
+     * @return false if the transfer had already finished.
+     */
+    synchronized boolean finish(int state) {
+        if (mState >= STATE_DONE) {
+            return false;
+        }
+        mState = state;
+        mSource.close();
+        return true;
+    }
+
+    @Override
+    public synchronized int available() {
+        if (mState >= STATE_DONE) {
+            return -1;
+        }
+        if (mState != STATE_SENDING) {
+            return 0;
+        }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, mLimit - mPosition));
+    }
+
+    @Override
+    public synchronized int read(byte[] dst, int offset, int length) {
+        if (mState != STATE_SENDING) {
+            return mState >= STATE_DONE ? -1 : 0;
+        }
+        length = (int) Math.min(length, mLimit - mPosition);
+        try {
+            int count = mSource.read(mPosition, dst, offset, length);
+            if (count < 0) {
+                throw new IOException("Source ended at " + mPosition + " of " + mSize);
+            }
+            mPosition += count;
+            return count;
+        } catch (IOException e) {
+            finish(STATE_FAILED);
+            mManager.transferFailed(this, e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized boolean atEnd() {
+        return mState == STATE_SENDING && mPosition == mSize;
+    }
+}
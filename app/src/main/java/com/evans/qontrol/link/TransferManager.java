@@ -0,0 +1,247 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transfer.TransferSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Created by evans on 4/21/17.
+ *
+ * Keeps the {@link Transfer}s of a {@link QLinkService} and the weights of its bulk channels.
+ * Unfinished transfers are offered again on every new connection, in the order they were
+ * started, and each connection's {@link ChannelMux} gets the current weights.
+ *
+ * The transfer list is locked ahead of the manager's encoder; see {@link QLinkService} for
+ * where both come in the service's lock order.
+ */
+
+class TransferManager {
+
+    /**
+     * A connection transfers are offered on.
+     */
+    interface Link {
+        /**
+         * Queue a frame on this connection only; it is neither kept nor replayed.
+         */
+        boolean write(byte[] buffer, int offset, int length, int flags);
+
+        ChannelMux getChannels();
+    }
+
+    // clipboard text is short and someone is waiting to paste it
+    private static final int CLIPBOARD_WEIGHT = 4;
+
+    private final QLinkService mService;
+    private final LinkEventDispatcher mEvents;
+    private final LinkExecutor mExecutor;
+    // guarded by itself; applied to every new connection
+    private final int[] mChannelWeights = new int[ChannelMux.MAX_CHANNELS];
+    // unfinished transfers in the order they were started; guarded by itself
+    private final List<Transfer> mTransfers = new ArrayList<>();
+    private int mNextTransferId = 1;
+    // guarded by itself
+    private final FrameEncoder mEncoder = new FrameEncoder();
+
+    TransferManager(QLinkService service, LinkEventDispatcher events, LinkExecutor executor) {
+        mService = service;
+        mEvents = events;
+        mExecutor = executor;
+        Arrays.fill(mChannelWeights, 1);
+        mChannelWeights[Transfer.CHANNEL_CLIPBOARD] = CLIPBOARD_WEIGHT;
+    }
+
+    /**
+     * @see QLinkService#setChannelWeight(int, int)
+     */
+    void setChannelWeight(int channel, int weight) {
+        if (channel < 1 || channel >= ChannelMux.MAX_CHANNELS
+                || weight < 1 || weight > ChannelMux.MAX_WEIGHT) {
+            throw new IllegalArgumentException("Bad weight " + weight + " for channel " + channel);
+        }
+        synchronized (mChannelWeights) {
+            mChannelWeights[channel] = weight;
+            Link link = mService.getLink();
+            if (link != null) {
+                link.getChannels().setWeight(channel, weight);
+            }
+        }
+    }
+
+    /**
+     * Give a new connection's channels the current weights.
+     */
+    void applyWeights(ChannelMux channels) {
+        synchronized (mChannelWeights) {
+            for (int i = 1; i < ChannelMux.MAX_CHANNELS; i++) {
+                channels.setWeight(i, mChannelWeights[i]);
+            }
+        }
+    }
+
+    /**
+     * @see QLinkService#startTransfer(int, String, TransferSource)
+     */
+    Transfer start(int kind, String name, TransferSource source) {
+        Transfer transfer;
+        synchronized (mTransfers) {
+            int channel = kind == Opcodes.TRANSFER_CLIPBOARD
+                    ? Transfer.CHANNEL_CLIPBOARD : Transfer.CHANNEL_FILE;
+            transfer = new Transfer(this, mNextTransferId++, kind, channel, name, source);
+            // checked under the lock, so finishAll() after a stop() cannot miss it
+            if (mService.getState() != QLinkService.STATE_NONE) {
+                mTransfers.add(transfer);
+                // a connection published after this offers it with offerAll()
+                Link link = mService.getLink();
+                if (link != null) {
+                    offer(link, transfer);
+                }
+                return transfer;
+            }
+        }
+        transfer.finish(Transfer.STATE_FAILED);
+        mEvents.post(LinkEventDispatcher.EVENT_TRANSFER_FINISHED, transfer.getId(),
+                Transfer.STATE_FAILED);
+        return transfer;
+    }
+
+    /**
+     * Stop a transfer and tell the server to discard what it has.
+     */
+    void cancel(Transfer transfer) {
+        if (!transfer.finish(Transfer.STATE_CANCELLED)) {
+            return;
+        }
+        sendCancel(transfer, Opcodes.CANCEL_BY_USER);
+        finished(transfer);
+    }
+
+    /**
+     * Called from the writer thread when a transfer's source could not be read.
+     */
+    void transferFailed(final Transfer transfer, final IOException e) {
+        // the writer holds the mux; tell the server from another thread
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mService.onError("Transfer " + transfer.getId() + " failed", e);
+                    sendCancel(transfer, Opcodes.CANCEL_FAILED);
+                    finished(transfer);
+                }
+            }, 0);
+        } catch (RejectedExecutionException e1) {
+            // shut down
+        }
+    }
+
+    /**
+     * Apply a TRANSFER_CREDIT that came in on a connection.
+     * @return true if the transfer may now have data for the writer.
+     */
+    boolean onCredit(Link link, int id, long received, long limit) {
+        Transfer transfer = find(id);
+        if (transfer == null) {
+            return false;
+        }
+        if (transfer.credit(link, received, limit)) {
+            mEvents.post(LinkEventDispatcher.EVENT_TRANSFER_PROGRESS,
+                    transfer.getId(), transfer.getBytesAcked());
+        }
+        if (transfer.isFinished()) {
+            finished(transfer);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Apply a TRANSFER_CANCEL from the server.
+     */
+    void onCancel(int id, int reason) {
+        Transfer transfer = find(id);
+        if (transfer != null && transfer.finish(reason == Opcodes.CANCEL_BY_USER
+                ? Transfer.STATE_CANCELLED : Transfer.STATE_FAILED)) {
+            finished(transfer);
+        }
+    }
+
+    /**
+     * Offer every unfinished transfer on a new connection, in the order they were started.
+     */
+    void offerAll(Link link) {
+        synchronized (mTransfers) {
+            for (Transfer transfer : mTransfers) {
+                offer(link, transfer);
+            }
+        }
+    }
+
+    /**
+     * End every unfinished transfer, e.g. when the connection is gone for good.
+     */
+    void finishAll(int state) {
+        Transfer[] transfers;
+        synchronized (mTransfers) {
+            if (mTransfers.isEmpty()) {
+                return;
+            }
+            transfers = mTransfers.toArray(new Transfer[mTransfers.size()]);
+        }
+        for (Transfer transfer : transfers) {
+            transfer.finish(state);
+            finished(transfer);
+        }
+    }
+
+    private Transfer find(int id) {
+        synchronized (mTransfers) {
+            for (Transfer transfer : mTransfers) {
+                if (transfer.getId() == id) {
+                    return transfer;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void offer(Link link, Transfer transfer) {
+        if (!transfer.prepareOffer(link)) {
+            return;
+        }
+        synchronized (mEncoder) {
+            mEncoder.encodeTransferOffer(transfer.getId(), transfer.getChannel(),
+                    transfer.getKind(), transfer.getSize(), transfer.getName());
+            link.write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+        }
+        // blocked until the server's first credit
+        link.getChannels().add(transfer.getChannel(), transfer);
+    }
+
+    private void sendCancel(Transfer transfer, int reason) {
+        synchronized (mEncoder) {
+            mEncoder.encodeTransferCancel(transfer.getId(), reason);
+            mService.write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+        }
+    }
+
+    /**
+     * Forget a finished transfer and report how it ended, once.
+     */
+    private void finished(Transfer transfer) {
+        boolean removed;
+        synchronized (mTransfers) {
+            removed = mTransfers.remove(transfer);
+        }
+        if (removed) {
+            mEvents.post(LinkEventDispatcher.EVENT_TRANSFER_FINISHED, transfer.getId(),
+                    transfer.getState());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.evans.qontrol.macro;
+
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Protocol;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Created by evans on 4/12/17.
+ *
+ * A key and pointer sequence compiled into a compact program the server runs by itself, so a
+ * shortcut of fifty events crosses the link as one frame. Instructions are an op byte followed
+ * by varint operands (zigzag for signed ones); waits between events are part of the program.
+ * Build one with a {@link Builder} and send it with
+ * {@link com.evans.qontrol.link.QLinkService#sendMacro(Macro)}.
+ *
+ * Macros are immutable and compare by content, through a 64-bit FNV-1a hash of the program.
+ */
+
+public final class Macro {
+
+    // ops: key code, modifiers
+    public static final int OP_KEY_DOWN = 0x01;
+    public static final int OP_KEY_UP = 0x02;
+    // op: utf-8 length, bytes
+    public static final int OP_TEXT = 0x03;
+    // ops: signed dx, signed dy
+    public static final int OP_MOVE = 0x04;
+    public static final int OP_SCROLL = 0x05;
+    // ops: button
+    public static final int OP_BUTTON_DOWN = 0x06;
+    public static final int OP_BUTTON_UP = 0x07;
+    // op: milliseconds
+    public static final int OP_WAIT = 0x08;
+
+    // longest program that fits a frame with its slot number
+    public static final int MAX_PROGRAM_LENGTH = Protocol.MAX_BODY_LENGTH - 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mProgram;
+    private final int mEvents;
+    private final long mHash;
+
+    private Macro(byte[] program, int events) {
+        mProgram = program;
+        mEvents = events;
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : program) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        mHash = hash;
+    }
+
+    /**
+     * @return A copy of the program.
+     */
+    public byte[] getProgram() {
+        return mProgram.clone();
+    }
+
+    /**
+     * Encode a MACRO frame that stores the program in a server slot and runs it.
+     * @return The length of the frame.
+     */
+    public int encode(FrameEncoder encoder, int slot) {
+        return encoder.encodeMacro(slot, mProgram, 0, mProgram.length);
+    }
+
+    public int length() {
+        return mProgram.length;
+    }
+
+    /**
+     * @return The number of key, text and pointer events, not counting waits.
+     */
+    public int eventCount() {
+        return mEvents;
+    }
+
+    public long contentHash() {
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Macro)) {
+            return false;
+        }
+        Macro macro = (Macro) o;
+        return mHash == macro.mHash && Arrays.equals(mProgram, macro.mProgram);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mHash ^ (mHash >>> 32));
+    }
+
+    public static class Builder {
+        private byte[] mmProgram = new byte[64];
+        private int mmLength;
+        private int mmEvents;
+
+        public Builder keyDown(int keyCode, int modifiers) {
+            return op(OP_KEY_DOWN).varint(keyCode).varint(modifiers).event();
+        }
+
+        public Builder keyUp(int keyCode, int modifiers) {
+            return op(OP_KEY_UP).varint(keyCode).varint(modifiers).event();
+        }
+
+        /**
+         * Press and release a key, e.g. a shortcut with its modifiers.
+         */
+        public Builder tap(int keyCode, int modifiers) {
+            return keyDown(keyCode, modifiers).keyUp(keyCode, modifiers);
+        }
+
+        public Builder text(String text) {
+            byte[] bytes = text.getBytes(UTF_8);
+            op(OP_TEXT).varint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mmProgram, mmLength, bytes.length);
+            mmLength += bytes.length;
+            return event();
+        }
+
+        public Builder move(int dx, int dy) {
+            return op(OP_MOVE).varint(Protocol.zigZagEncode(dx))
+                    .varint(Protocol.zigZagEncode(dy)).event();
+        }
+
+        public Builder scroll(int dx, int dy) {
+            return op(OP_SCROLL).varint(Protocol.zigZagEncode(dx))
+                    .varint(Protocol.zigZagEncode(dy)).event();
+        }
+
+        public Builder buttonDown(int button) {
+            return op(OP_BUTTON_DOWN).varint(button).event();
+        }
+
+        public Builder buttonUp(int button) {
+            return op(OP_BUTTON_UP).varint(button).event();
+        }
+
+        public Builder click(int button) {
+            return buttonDown(button).buttonUp(button);
+        }
+
+        /**
+         * Press a button, move in even steps and release it.
+         * @param steps The number of moves, at least 1.
+         * @param stepMillis The wait after each move.
+         */
+        public Builder drag(int button, int dx, int dy, int steps, int stepMillis) {
+            buttonDown(button);
+            int movedX = 0;
+            int movedY = 0;
+            for (int i = 1; i <= steps; i++) {
+                int x = (int) ((long) dx * i / steps);
+                int y = (int) ((long) dy * i / steps);
+                move(x - movedX, y - movedY);
+                movedX = x;
+                movedY = y;
+                delay(stepMillis);
+            }
+            return buttonUp(button);
+        }
+
+        /**
+         * Wait before the next event.
+         */
+        public Builder delay(int millis) {
+            if (millis > 0) {
+                op(OP_WAIT).varint(millis);
+            }
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException if the program is empty or too long for a frame.
+         */
+        public Macro build() {
+            if (mmEvents == 0) {
+                throw new IllegalStateException("Macro has no events");
+            }
+            if (mmLength > MAX_PROGRAM_LENGTH) {
+                throw new IllegalStateException("Macro of " + mmLength + " bytes exceeds "
+                        + MAX_PROGRAM_LENGTH);
+            }
+            return new Macro(Arrays.copyOf(mmProgram, mmLength), mmEvents);
+        }
+
+        private Builder op(int op) {
+            ensure(1);
+            mmProgram[mmLength++] = (byte) op;
+            return this;
+        }
+
+        private Builder varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                mmProgram[mmLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mmProgram[mmLength++] = (byte) value;
+            return this;
+        }
+
+        private Builder event() {
+            mmEvents++;
+            return this;
+        }
+
+        private void ensure(int bytes) {
+            if (mmLength + bytes > mmProgram.length) {
+                mmProgram = Arrays.copyOf(mmProgram,
+                        Math.max(mmLength + bytes, mmProgram.length * 2));
+            }
+        }
+    }
+}
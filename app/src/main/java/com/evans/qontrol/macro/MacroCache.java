@@ -0,0 +1,81 @@
+package com.evans.qontrol.macro;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by evans on 4/12/17.
+ *
+ * Tracks which macros the server holds in its slots, so a macro sent before goes out as just
+ * its slot number. The server keeps whatever it was last sent in a slot and never evicts by
+ * itself, so this side alone decides: once all slots are used, the least recently sent macro
+ * gives up its slot. Lookups go by the macro's content hash. Not thread safe.
+ */
+
+public class MacroCache {
+
+    private final int mSlots;
+    // access ordered, least recently used first
+    private final LinkedHashMap<Macro, Integer> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<Integer> mFreeSlots = new ArrayDeque<>();
+    private int mNextSlot;
+
+    /**
+     * @param slots The number of slots the server keeps.
+     */
+    public MacroCache(int slots) {
+        mSlots = slots;
+    }
+
+    /**
+     * @return The slot holding the macro, or -1 if the server does not have it.
+     */
+    public int lookup(Macro macro) {
+        Integer slot = mEntries.get(macro);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * Give a macro a slot, taking the least recently used one if all are taken.
+     * @return The slot to define the macro in.
+     */
+    public int assign(Macro macro) {
+        int slot;
+        if (!mFreeSlots.isEmpty()) {
+            slot = mFreeSlots.poll();
+        } else if (mNextSlot < mSlots) {
+            slot = mNextSlot++;
+        } else {
+            Iterator<Map.Entry<Macro, Integer>> eldest = mEntries.entrySet().iterator();
+            slot = eldest.next().getValue();
+            eldest.remove();
+        }
+        mEntries.put(macro, slot);
+        return slot;
+    }
+
+    /**
+     * Forget a macro, e.g. when defining it could not be sent.
+     */
+    public void remove(Macro macro) {
+        Integer slot = mEntries.remove(macro);
+        if (slot != null) {
+            mFreeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Forget every macro, e.g. when the server started a new session.
+     */
+    public void clear() {
+        mEntries.clear();
+        mFreeSlots.clear();
+        mNextSlot = 0;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,99 @@
+package com.evans.qontrol.macro;
+
+import com.evans.qontrol.protocol.Frame;
+
+import java.net.ProtocolException;
+
+/**
+ * Created by evans on 4/12/17.
+ *
+ * Decodes a {@link Macro} program into calls on a {@link Handler}, e.g. on the server, which
+ * injects the events and sleeps through the waits.
+ */
+
+public final class MacroInterpreter {
+
+    public interface Handler {
+        void onKey(boolean down, int keyCode, int modifiers);
+
+        void onText(String text);
+
+        void onMove(int dx, int dy);
+
+        void onScroll(int dx, int dy);
+
+        void onButton(boolean down, int button);
+
+        void onWait(int millis);
+    }
+
+    private MacroInterpreter() {
+    }
+
+    /**
+     * Run a program to its end.
+     * @param program A frame whose remaining payload is the program.
+     * @return The number of events run, not counting waits.
+     * @throws ProtocolException if the program is malformed; events before the error have run.
+     */
+    public static int run(Frame program, Handler handler) throws ProtocolException {
+        int events = 0;
+        while (program.remaining() > 0) {
+            int wait = step(program, handler);
+            if (wait >= 0) {
+                handler.onWait(wait);
+            } else {
+                events++;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Run a program up to its next wait, e.g. so a server can schedule the rest rather than
+     * sleep on its read loop. {@link Handler#onWait(int)} is not called.
+     * @param program A frame whose remaining payload is the program; left just past the wait.
+     * @return The wait in milliseconds, or -1 if the program ran to its end.
+     * @throws ProtocolException if the program is malformed; events before the error have run.
+     */
+    public static int runToWait(Frame program, Handler handler) throws ProtocolException {
+        while (program.remaining() > 0) {
+            int wait = step(program, handler);
+            if (wait >= 0) {
+                return wait;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The wait in milliseconds if the op was a wait, otherwise -1.
+     */
+    private static int step(Frame program, Handler handler) throws ProtocolException {
+        int op = program.readByte();
+        switch (op) {
+            case Macro.OP_KEY_DOWN:
+            case Macro.OP_KEY_UP:
+                handler.onKey(op == Macro.OP_KEY_DOWN, program.readInt(), program.readInt());
+                break;
+            case Macro.OP_TEXT:
+                handler.onText(program.readString());
+                break;
+            case Macro.OP_MOVE:
+                handler.onMove(program.readSignedInt(), program.readSignedInt());
+                break;
+            case Macro.OP_SCROLL:
+                handler.onScroll(program.readSignedInt(), program.readSignedInt());
+                break;
+            case Macro.OP_BUTTON_DOWN:
+            case Macro.OP_BUTTON_UP:
+                handler.onButton(op == Macro.OP_BUTTON_DOWN, program.readInt());
+                break;
+            case Macro.OP_WAIT:
+                return Math.max(0, program.readInt());
+            default:
+                throw new ProtocolException("Unknown macro op " + op);
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,115 @@
+package com.evans.qontrol.models;
+
+import com.evans.qontrol.discovery.MacAddress;
+
+/**
+ * Created by evans on 3/20/17.
+ *
+ * A Bluetooth device as shown in the device dialogs. Immutable; updates create a new Device.
+ * The MAC address is kept packed in a long, which also serves as the stable id of its row.
+ */
+
+public final class Device {
+
+    /**
+     * Signal strength of a device not seen by discovery; sorts after every real value.
+     */
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private final long mMac;
+    private final String mName;
+    private final int mRssi;
+    private final int mBondState;
+    private final long mLastSeen;
+    // formatted on first use, like String's hash
+    private String mAddress;
+
+    /**
+     * @param mac The address packed by {@link MacAddress#parse(String)}.
+     * @param name The name of the device, or null if not known.
+     * @param rssi The signal strength in dBm, or {@link #RSSI_UNKNOWN}.
+     * @param bondState One of the BluetoothDevice.BOND_* constants.
+     * @param lastSeen When the device was last reported, in elapsed realtime milliseconds.
+     */
+    public Device(long mac, String name, int rssi, int bondState, long lastSeen) {
+        mMac = mac;
+        // many devices share a few names, e.g. a fleet of identical laptops
+        mName = name != null ? name.intern() : null;
+        mRssi = rssi;
+        mBondState = bondState;
+        mLastSeen = lastSeen;
+    }
+
+    public long getMac() {
+        return mMac;
+    }
+
+    /**
+     * @return The address in "00:11:22:AA:BB:CC" form.
+     */
+    public String getAddress() {
+        String address = mAddress;
+        if (address == null) {
+            address = MacAddress.toString(mMac);
+            mAddress = address;
+        }
+        return address;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public int getBondState() {
+        return mBondState;
+    }
+
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    /**
+     * Merge a newer report of the same device into this one.
+     * @param report The newer report; its unknown name or signal keep the known ones.
+     * @return The merged Device, or this if nothing changed.
+     */
+    public Device merge(Device report) {
+        String name = report.mName != null ? report.mName : mName;
+        int rssi = report.mRssi != RSSI_UNKNOWN ? report.mRssi : mRssi;
+        long lastSeen = Math.max(mLastSeen, report.mLastSeen);
+        // names are interned, so identity is enough
+        if (name == mName && rssi == mRssi && report.mBondState == mBondState
+                && lastSeen == mLastSeen) {
+            return this;
+        }
+        return new Device(mMac, name, rssi, report.mBondState, lastSeen);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Device)) {
+            return false;
+        }
+        Device device = (Device) o;
+        return mMac == device.mMac && mRssi == device.mRssi
+                && mBondState == device.mBondState && mLastSeen == device.mLastSeen
+                && (mName == null ? device.mName == null : mName.equals(device.mName));
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mMac ^ (mMac >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return getAddress() + " " + mName;
+    }
+}
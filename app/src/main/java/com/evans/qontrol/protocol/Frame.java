@@ -0,0 +1,116 @@
+package com.evans.qontrol.protocol;
+
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+
+/**
+ * Created by evans on 1/14/17.
+ *
+ * A decoded frame. The payload is a view into the decoder's buffer and is only valid until
+ * the next frame is decoded into the same instance, so one Frame can be reused for every
+ * message on a connection.
+ */
+
+public class Frame {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private int mOpcode;
+    private byte[] mBuffer;
+    private int mOffset;
+    private int mLength;
+    private int mPosition;
+
+    /**
+     * Point this frame at a payload.
+     * @param opcode The opcode of the frame.
+     * @param buffer The buffer holding the payload.
+     * @param offset The index of the first payload byte.
+     * @param length The number of payload bytes.
+     */
+    public void set(int opcode, byte[] buffer, int offset, int length) {
+        mOpcode = opcode;
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        mPosition = offset;
+    }
+
+    public int opcode() {
+        return mOpcode;
+    }
+
+    public byte[] buffer() {
+        return mBuffer;
+    }
+
+    public int offset() {
+        return mOffset;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int remaining() {
+        return mOffset + mLength - mPosition;
+    }
+
+    /**
+     * Move the read cursor back to the start of the payload.
+     */
+    public void rewind() {
+        mPosition = mOffset;
+    }
+
+    public int readByte() throws ProtocolException {
+        if (remaining() < 1) {
+            throw new ProtocolException("Payload truncated");
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    public long readVarint() throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint");
+    }
+
+    public long readSignedVarint() throws ProtocolException {
+        return Protocol.zigZagDecode(readVarint());
+    }
+
+    public int readInt() throws ProtocolException {
+        return (int) readVarint();
+    }
+
+    public int readSignedInt() throws ProtocolException {
+        return (int) readSignedVarint();
+    }
+
+    /**
+     * Step over a range of payload bytes without copying them.
+     * @param length The number of bytes to skip.
+     * @return The index of the first skipped byte in {@link #buffer()}.
+     */
+    public int skipBytes(int length) throws ProtocolException {
+        if (length < 0 || remaining() < length) {
+            throw new ProtocolException("Payload truncated");
+        }
+        int start = mPosition;
+        mPosition += length;
+        return start;
+    }
+
+    public String readString() throws ProtocolException {
+        int length = readInt();
+        int start = skipBytes(length);
+        return new String(mBuffer, start, length, UTF_8);
+    }
+}
@@ -0,0 +1,99 @@
+package com.evans.qontrol.protocol;
+
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+
+/**
+ * Created by evans on 4/2/17.
+ *
+ * Deflates frame bodies into COMPRESSED frames. Each frame is compressed on its own against a
+ * preset dictionary of common text, so frames can still be dropped or reordered by priority
+ * without the server losing its place, and even short text compresses. Bodies under the
+ * threshold, which includes every key and pointer frame, are never compressed, and a frame
+ * is only replaced when that makes it smaller.
+ *
+ * One Deflater and one output buffer are reused for every frame; call {@link #end()} to free
+ * the native memory. Thread safe.
+ */
+
+public class FrameCompressor {
+
+    // shorter bodies gain a few bytes at most; see CompressionBenchmark
+    public static final int DEFAULT_THRESHOLD = 24;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Shared with the server; a new dictionary needs a new HELLO_COMPRESS flag. Deflate
+     * matches nearby strings more cheaply, so the most common text comes last.
+     */
+    static final byte[] DICTIONARY = (
+            "sudo apt-get install git status git commit -m git push origin master "
+            + "cd ~/ ls -la mkdir cp -r rm -rf cat grep -rn echo exit python npm run "
+            + "ssh http://localhost:8080/ https://github.com/ .html .json .txt .pdf .jpg "
+            + "Dear Sir or Madam, Kind regards, Best regards, Thank you for your email. "
+            + "Please find attached Looking forward to hearing from you. Hi, Hello, "
+            + "password username @gmail.com www. .com .org "
+            + "would could should about there their which when what with from have this "
+            + "that will your you and for are but not all can the of to in is it a "
+    ).getBytes(UTF_8);
+
+    private final Deflater mDeflater;
+    private final int mThreshold;
+    private final byte[] mOut = new byte[Protocol.MAX_BODY_LENGTH];
+
+    public FrameCompressor() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold The shortest body worth compressing.
+     */
+    public FrameCompressor(int threshold) {
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        mThreshold = threshold;
+    }
+
+    public int getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * Compress a frame body.
+     * @param body The buffer holding the opcode and payload.
+     * @param offset The index of the opcode.
+     * @param length The length of the body.
+     * @param out The encoder to write the COMPRESSED frame to.
+     * @return The length of the COMPRESSED frame, or 0 if the body is better sent as it is;
+     * out is then untouched.
+     */
+    public synchronized int compress(byte[] body, int offset, int length, FrameEncoder out) {
+        if (length < mThreshold) {
+            return 0;
+        }
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(body, offset, length);
+        mDeflater.finish();
+        // a result no shorter than the body is of no use, so do not deflate further
+        int limit = length - 1 - Protocol.varintSize(length);
+        int compressed = 0;
+        while (!mDeflater.finished() && compressed < limit) {
+            compressed += mDeflater.deflate(mOut, compressed, limit - compressed);
+        }
+        if (!mDeflater.finished()) {
+            return 0;
+        }
+        return out.begin(Opcodes.COMPRESSED)
+                .putVarint(length)
+                .putBytes(mOut, 0, compressed)
+                .finish();
+    }
+
+    /**
+     * Free the native memory of the Deflater. The compressor cannot be used afterwards.
+     */
+    public synchronized void end() {
+        mDeflater.end();
+    }
+}
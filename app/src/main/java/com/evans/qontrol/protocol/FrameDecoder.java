@@ -0,0 +1,89 @@
+package com.evans.qontrol.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Created by evans on 1/14/17.
+ *
+ * Reads frames one at a time from a blocking stream into a reusable buffer.
+ */
+
+public class FrameDecoder {
+
+    private final InputStream mInStream;
+    private final byte[] mBuffer = new byte[Protocol.MAX_FRAME_LENGTH];
+
+    public FrameDecoder(InputStream in) {
+        mInStream = in;
+    }
+
+    /**
+     * Block until a whole frame has been read.
+     * @param frame The Frame to decode into. Its payload stays valid until the next call.
+     * @return false if the stream ended cleanly before a new frame started.
+     * @throws ProtocolException if the frame is malformed or fails its checksum.
+     */
+    public boolean readFrame(Frame frame) throws IOException {
+        int header = mInStream.read();
+        if (header < 0) {
+            return false;
+        }
+        if (Protocol.version(header) != Protocol.VERSION) {
+            throw new ProtocolException("Unsupported protocol version " + Protocol.version(header));
+        }
+        mBuffer[0] = (byte) header;
+        int position = 1;
+
+        int bodyLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readByte();
+            mBuffer[position++] = (byte) b;
+            bodyLength |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (position == Protocol.MAX_PREFIX_LENGTH) {
+                throw new ProtocolException("Malformed frame length");
+            }
+        }
+        if (bodyLength < 1 || bodyLength > Protocol.MAX_BODY_LENGTH) {
+            throw new ProtocolException("Invalid frame length " + bodyLength);
+        }
+
+        boolean checksum = (Protocol.flags(header) & Protocol.FLAG_CHECKSUM) != 0;
+        int remaining = bodyLength + (checksum ? 1 : 0);
+        readFully(position, remaining);
+
+        if (checksum) {
+            int end = position + bodyLength;
+            if (Protocol.crc8(mBuffer, 0, end) != (mBuffer[end] & 0xFF)) {
+                throw new ProtocolException("Frame checksum mismatch");
+            }
+        }
+
+        frame.set(mBuffer[position] & 0xFF, mBuffer, position + 1, bodyLength - 1);
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        int b = mInStream.read();
+        if (b < 0) {
+            throw new EOFException("Stream ended inside a frame");
+        }
+        return b;
+    }
+
+    private void readFully(int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = mInStream.read(mBuffer, offset, length);
+            if (read < 0) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
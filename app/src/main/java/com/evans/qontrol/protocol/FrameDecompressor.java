@@ -0,0 +1,67 @@
+package com.evans.qontrol.protocol;
+
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Created by evans on 4/2/17.
+ *
+ * Inflates the COMPRESSED frames made by a {@link FrameCompressor} back into the frames they
+ * hold. One Inflater and one output buffer are reused for every frame, and the result is a
+ * view into that buffer, valid until the next frame. Not thread safe.
+ */
+
+public class FrameDecompressor {
+
+    private final Inflater mInflater = new Inflater(true);
+    private final byte[] mBody = new byte[Protocol.MAX_BODY_LENGTH + 1];
+
+    /**
+     * Point a frame at the frame held by a COMPRESSED frame.
+     * @param compressed The COMPRESSED frame, positioned at the start of its payload.
+     * @param out The Frame to set.
+     * @throws ProtocolException if the payload does not inflate to the announced length.
+     */
+    public void decompress(Frame compressed, Frame out) throws ProtocolException {
+        int length = compressed.readInt();
+        if (length < 1 || length > Protocol.MAX_BODY_LENGTH) {
+            throw new ProtocolException("Invalid compressed body length " + length);
+        }
+        int remaining = compressed.remaining();
+        int start = compressed.skipBytes(remaining);
+
+        mInflater.reset();
+        mInflater.setDictionary(FrameCompressor.DICTIONARY);
+        mInflater.setInput(compressed.buffer(), start, remaining);
+        int inflated = 0;
+        try {
+            // one byte of room beyond the announced length catches a body that is too long
+            while (!mInflater.finished() && inflated <= length) {
+                int count = mInflater.inflate(mBody, inflated, length + 1 - inflated);
+                if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Malformed compressed frame: " + e.getMessage());
+        }
+        if (!mInflater.finished() || inflated != length) {
+            throw new ProtocolException("Compressed frame inflated to " + inflated
+                    + " bytes, expected " + length);
+        }
+        int opcode = mBody[0] & 0xFF;
+        if (opcode == Opcodes.COMPRESSED) {
+            throw new ProtocolException("Nested compressed frame");
+        }
+        out.set(opcode, mBody, 1, length - 1);
+    }
+
+    /**
+     * Free the native memory of the Inflater. The decompressor cannot be used afterwards.
+     */
+    public void end() {
+        mInflater.end();
+    }
+}
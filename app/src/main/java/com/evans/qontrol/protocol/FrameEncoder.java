@@ -0,0 +1,261 @@
+package com.evans.qontrol.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Created by evans on 1/14/17.
+ *
+ * Builds frames in a reusable buffer. The body is written after space reserved for the
+ * longest possible prefix, and the prefix is filled in backwards by {@link #finish()}, so
+ * encoding never copies or allocates. Not thread safe.
+ */
+
+public class FrameEncoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mBuffer = new byte[Protocol.MAX_FRAME_LENGTH];
+    private final boolean mChecksum;
+    private int mStart;
+    private int mPosition;
+    private boolean mOpen;
+
+    public FrameEncoder() {
+        this(false);
+    }
+
+    /**
+     * @param checksum The Boolean to check whether frames carry a trailing CRC-8.
+     */
+    public FrameEncoder(boolean checksum) {
+        mChecksum = checksum;
+    }
+
+    /**
+     * Start a new frame, discarding any frame previously held in the buffer.
+     * @param opcode The opcode of the frame, see {@link Opcodes}.
+     */
+    public FrameEncoder begin(int opcode) {
+        mPosition = Protocol.MAX_PREFIX_LENGTH;
+        mBuffer[mPosition++] = (byte) opcode;
+        mOpen = true;
+        return this;
+    }
+
+    public FrameEncoder putByte(int value) {
+        ensure(1);
+        mBuffer[mPosition++] = (byte) value;
+        return this;
+    }
+
+    public FrameEncoder putVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            mBuffer[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mPosition++] = (byte) value;
+        return this;
+    }
+
+    public FrameEncoder putSignedVarint(long value) {
+        return putVarint(Protocol.zigZagEncode(value));
+    }
+
+    public FrameEncoder putBytes(byte[] src, int offset, int length) {
+        ensure(length);
+        System.arraycopy(src, offset, mBuffer, mPosition, length);
+        mPosition += length;
+        return this;
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.
+     */
+    public FrameEncoder putString(String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        putVarint(bytes.length);
+        return putBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Complete the frame started by {@link #begin(int)}.
+     * @return The length of the encoded frame.
+     */
+    public int finish() {
+        if (!mOpen) {
+            throw new IllegalStateException("No frame in progress");
+        }
+        int bodyLength = mPosition - Protocol.MAX_PREFIX_LENGTH;
+        int start = Protocol.MAX_PREFIX_LENGTH - 1 - Protocol.varintSize(bodyLength);
+
+        int i = start;
+        mBuffer[i++] = (byte) Protocol.header(mChecksum ? Protocol.FLAG_CHECKSUM : 0);
+        long length = bodyLength;
+        while ((length & ~0x7FL) != 0) {
+            mBuffer[i++] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        mBuffer[i] = (byte) length;
+
+        if (mChecksum) {
+            mBuffer[mPosition] = (byte) Protocol.crc8(mBuffer, start, mPosition - start);
+            mPosition++;
+        }
+        mStart = start;
+        mOpen = false;
+        return mPosition - mStart;
+    }
+
+    /**
+     * Replace the last finished frame with a COMPRESSED frame if the compressor finds that
+     * worthwhile.
+     * @return The length of the frame now held.
+     */
+    public int compress(FrameCompressor compressor) {
+        if (mOpen) {
+            throw new IllegalStateException("Frame in progress");
+        }
+        int bodyLength = mPosition - (mChecksum ? 1 : 0) - Protocol.MAX_PREFIX_LENGTH;
+        int length = compressor.compress(mBuffer, Protocol.MAX_PREFIX_LENGTH, bodyLength, this);
+        return length > 0 ? length : length();
+    }
+
+    /**
+     * Encode a SEQUENCED frame carrying an already encoded frame.
+     * @param sequence The sequence number, 1 or above.
+     * @param frame The buffer holding the frame; not this encoder's own.
+     * @param offset The index of its header byte.
+     * @return The length of the SEQUENCED frame.
+     */
+    public int encodeSequenced(long sequence, byte[] frame, int offset) {
+        int bodyLength = Protocol.bodyLength(frame, offset);
+        return begin(Opcodes.SEQUENCED)
+                .putVarint(sequence)
+                .putBytes(frame, offset + Protocol.prefixLength(bodyLength), bodyLength)
+                .finish();
+    }
+
+    /**
+     * @return The buffer holding the last finished frame, starting at {@link #offset()}.
+     */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    public int offset() {
+        return mStart;
+    }
+
+    public int length() {
+        return mPosition - mStart;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, mStart, mPosition - mStart);
+    }
+
+    public int encodeHello(int flags, long sessionToken) {
+        return begin(Opcodes.HELLO)
+                .putVarint(Protocol.VERSION)
+                .putVarint(flags)
+                .putVarint(sessionToken)
+                .finish();
+    }
+
+    public int encodeAck(long sequence) {
+        return begin(Opcodes.ACK).putVarint(sequence).finish();
+    }
+
+    public int encodePing(long timestamp) {
+        return begin(Opcodes.PING).putVarint(timestamp).finish();
+    }
+
+    public int encodePong(long timestamp) {
+        return begin(Opcodes.PONG).putVarint(timestamp).finish();
+    }
+
+    public int encodeKey(boolean down, int keyCode, int modifiers) {
+        return begin(down ? Opcodes.KEY_DOWN : Opcodes.KEY_UP)
+                .putVarint(keyCode)
+                .putVarint(modifiers)
+                .finish();
+    }
+
+    public int encodeText(String text) {
+        return begin(Opcodes.TEXT).putString(text).finish();
+    }
+
+    public int encodePointerMove(int dx, int dy) {
+        return begin(Opcodes.POINTER_MOVE).putSignedVarint(dx).putSignedVarint(dy).finish();
+    }
+
+    public int encodeButton(boolean down, int button) {
+        return begin(down ? Opcodes.BUTTON_DOWN : Opcodes.BUTTON_UP).putVarint(button).finish();
+    }
+
+    public int encodeScroll(int dx, int dy) {
+        return begin(Opcodes.SCROLL).putSignedVarint(dx).putSignedVarint(dy).finish();
+    }
+
+    /**
+     * Encode one chunk of a bulk message.
+     * @param channel The bulk channel, 1 or above.
+     * @param flags The Opcodes.CHANNEL_* flags of the chunk.
+     */
+    public int encodeChannelData(int channel, int flags, byte[] src, int offset, int length) {
+        return begin(Opcodes.CHANNEL_DATA)
+                .putVarint(channel)
+                .putVarint(flags)
+                .putBytes(src, offset, length)
+                .finish();
+    }
+
+    /**
+     * @param name The name of the transfer, e.g. the file name, or null.
+     */
+    public int encodeTransferOffer(int id, int channel, int kind, long size, String name) {
+        return begin(Opcodes.TRANSFER_OFFER)
+                .putVarint(id)
+                .putVarint(channel)
+                .putVarint(kind)
+                .putVarint(size)
+                .putString(name != null ? name : "")
+                .finish();
+    }
+
+    public int encodeTransferCredit(int id, long received, long limit) {
+        return begin(Opcodes.TRANSFER_CREDIT)
+                .putVarint(id)
+                .putVarint(received)
+                .putVarint(limit)
+                .finish();
+    }
+
+    public int encodeTransferCancel(int id, int reason) {
+        return begin(Opcodes.TRANSFER_CANCEL).putVarint(id).putVarint(reason).finish();
+    }
+
+    /**
+     * @param program The buffer holding a macro program, see com.evans.qontrol.macro.Macro.
+     */
+    public int encodeMacro(int slot, byte[] program, int offset, int length) {
+        return begin(Opcodes.MACRO).putVarint(slot).putBytes(program, offset, length).finish();
+    }
+
+    public int encodeMacroRun(int slot) {
+        return begin(Opcodes.MACRO_RUN).putVarint(slot).finish();
+    }
+
+    private void ensure(int bytes) {
+        if (!mOpen) {
+            throw new IllegalStateException("No frame in progress");
+        }
+        // one byte is kept free for the checksum
+        if (mPosition + bytes > mBuffer.length - 1) {
+            throw new IllegalArgumentException("Frame body exceeds " + Protocol.MAX_BODY_LENGTH + " bytes");
+        }
+    }
+}
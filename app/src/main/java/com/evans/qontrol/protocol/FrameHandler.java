@@ -0,0 +1,14 @@
+package com.evans.qontrol.protocol;
+
+import java.io.IOException;
+
+/**
+ * Created by evans on 2/4/17.
+ *
+ * Receives frames from a {@link FrameParser}. The frame and its payload are only valid for the
+ * duration of the call.
+ */
+
+public interface FrameHandler {
+    void onFrame(Frame frame) throws IOException;
+}
@@ -0,0 +1,204 @@
+package com.evans.qontrol.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Created by evans on 2/4/17.
+ *
+ * Incremental frame parser for a read loop. Bytes are read straight into a reusable ring, and
+ * every complete frame in it is dispatched to the handler registered for its opcode, so a
+ * frame split across reads waits for the rest and a read holding many frames dispatches them
+ * all. Frames are handed out as views into the ring; only a frame that wraps around the end
+ * of the ring is copied, into a reusable scratch buffer. Nothing is allocated per frame.
+ * With a {@link FrameDecompressor} set, COMPRESSED frames are inflated and the frames they
+ * hold dispatched in their place.
+ *
+ * Not thread safe; feed it from the read loop only.
+ */
+
+public class FrameParser {
+
+    private static final int CAPACITY = Integer.highestOneBit(Protocol.MAX_FRAME_LENGTH - 1) << 1;
+
+    private final byte[] mRing = new byte[CAPACITY];
+    private final byte[] mScratch = new byte[Protocol.MAX_FRAME_LENGTH];
+    private final FrameHandler[] mHandlers = new FrameHandler[256];
+    private final Frame mFrame = new Frame();
+    private FrameHandler mDefaultHandler;
+    private FrameDecompressor mDecompressor;
+    private FrameHandler mTap;
+    private long mHead;
+    private long mTail;
+    private long mFrames;
+
+    /**
+     * @param opcode The opcode to handle, see {@link Opcodes}.
+     * @param handler The FrameHandler to call, or null to ignore the opcode.
+     */
+    public void register(int opcode, FrameHandler handler) {
+        mHandlers[opcode & 0xFF] = handler;
+    }
+
+    /**
+     * @param handler The FrameHandler called for opcodes without a registered handler.
+     */
+    public void setDefaultHandler(FrameHandler handler) {
+        mDefaultHandler = handler;
+    }
+
+    /**
+     * @param decompressor The FrameDecompressor for COMPRESSED frames, or null to dispatch
+     * them like any other frame.
+     */
+    public void setDecompressor(FrameDecompressor decompressor) {
+        mDecompressor = decompressor;
+    }
+
+    /**
+     * @param tap The handler to show every frame before it is dispatched, e.g. to record it,
+     * or null. Whatever it reads is rewound.
+     */
+    public void setTap(FrameHandler tap) {
+        mTap = tap;
+    }
+
+    /**
+     * @return The number of frames dispatched so far.
+     */
+    public long frameCount() {
+        return mFrames;
+    }
+
+    /**
+     * @return The number of buffered bytes that do not yet form a whole frame.
+     */
+    public int bufferedBytes() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * Discard any partial frame, e.g. before reusing the parser for a new connection.
+     */
+    public void reset() {
+        mHead = mTail = 0;
+    }
+
+    /**
+     * Perform one read from the stream and dispatch every frame it completes.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     * @throws ProtocolException if the stream holds a malformed frame.
+     */
+    public int readFrom(InputStream in) throws IOException {
+        int index = (int) mTail & (CAPACITY - 1);
+        int free = CAPACITY - (int) (mTail - mHead);
+        int read = in.read(mRing, index, Math.min(free, CAPACITY - index));
+        if (read > 0) {
+            mTail += read;
+            parse();
+        }
+        return read;
+    }
+
+    /**
+     * Append bytes and dispatch every frame they complete.
+     * @throws ProtocolException if the bytes hold a malformed frame.
+     */
+    public void feed(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int index = (int) mTail & (CAPACITY - 1);
+            int free = CAPACITY - (int) (mTail - mHead);
+            int count = Math.min(length, Math.min(free, CAPACITY - index));
+            System.arraycopy(buffer, offset, mRing, index, count);
+            mTail += count;
+            offset += count;
+            length -= count;
+            parse();
+        }
+    }
+
+    private void parse() throws IOException {
+        while (true) {
+            long available = mTail - mHead;
+            if (available < 2) {
+                return;
+            }
+
+            int header = byteAt(mHead);
+            if (Protocol.version(header) != Protocol.VERSION) {
+                throw new ProtocolException("Unsupported protocol version " + Protocol.version(header));
+            }
+
+            int bodyLength = 0;
+            int prefixLength = 1;
+            while (true) {
+                if (prefixLength >= available) {
+                    return;
+                }
+                int b = byteAt(mHead + prefixLength++);
+                bodyLength |= (b & 0x7F) << (7 * (prefixLength - 2));
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (prefixLength == Protocol.MAX_PREFIX_LENGTH) {
+                    throw new ProtocolException("Malformed frame length");
+                }
+            }
+            if (bodyLength < 1 || bodyLength > Protocol.MAX_BODY_LENGTH) {
+                throw new ProtocolException("Invalid frame length " + bodyLength);
+            }
+
+            boolean checksum = (Protocol.flags(header) & Protocol.FLAG_CHECKSUM) != 0;
+            int frameLength = prefixLength + bodyLength + (checksum ? 1 : 0);
+            if (available < frameLength) {
+                return;
+            }
+
+            byte[] buffer = mRing;
+            int start = (int) mHead & (CAPACITY - 1);
+            if (start + frameLength > CAPACITY) {
+                // the frame wraps around the end of the ring
+                int first = CAPACITY - start;
+                System.arraycopy(mRing, start, mScratch, 0, first);
+                System.arraycopy(mRing, 0, mScratch, first, frameLength - first);
+                buffer = mScratch;
+                start = 0;
+            }
+
+            if (checksum) {
+                int end = start + frameLength - 1;
+                if (Protocol.crc8(buffer, start, frameLength - 1) != (buffer[end] & 0xFF)) {
+                    throw new ProtocolException("Frame checksum mismatch");
+                }
+            }
+
+            int opcodeIndex = start + prefixLength;
+            int opcode = buffer[opcodeIndex] & 0xFF;
+            mHead += frameLength;
+            mFrames++;
+
+            mFrame.set(opcode, buffer, opcodeIndex + 1, bodyLength - 1);
+            if (opcode == Opcodes.COMPRESSED && mDecompressor != null) {
+                mDecompressor.decompress(mFrame, mFrame);
+                opcode = mFrame.opcode();
+            }
+            if (mTap != null) {
+                mTap.onFrame(mFrame);
+                mFrame.rewind();
+            }
+
+            FrameHandler handler = mHandlers[opcode];
+            if (handler == null) {
+                handler = mDefaultHandler;
+            }
+            if (handler != null) {
+                handler.onFrame(mFrame);
+            }
+        }
+    }
+
+    private int byteAt(long position) {
+        return mRing[(int) position & (CAPACITY - 1)] & 0xFF;
+    }
+}
@@ -0,0 +1,89 @@
+package com.evans.qontrol.protocol;
+
+/**
+ * Created by evans on 1/14/17.
+ *
+ * Frame opcodes and the payload each one carries. Unsigned fields are varints, signed fields
+ * are zigzag varints.
+ */
+
+public final class Opcodes {
+
+    // session: version, flags, session token (0 for a new session)
+    public static final int HELLO = 0x00;
+    // link: timestamp
+    public static final int PING = 0x01;
+    // link: echoed timestamp
+    public static final int PONG = 0x02;
+    // session, from the server: session token
+    public static final int SESSION = 0x03;
+    // session, from the server: the HELLO flags it accepts
+    public static final int FEATURES = 0x04;
+    // link: body length, then the deflated body (opcode and payload) of another frame
+    public static final int COMPRESSED = 0x05;
+    // link, to the server: sequence number, then the body of another frame
+    public static final int SEQUENCED = 0x06;
+    // link, from the server: highest sequence number handled
+    public static final int ACK = 0x07;
+
+    // HELLO flags
+    public static final int HELLO_RESUME = 0x01;
+    // COMPRESSED frames with the preset dictionary of FrameCompressor
+    public static final int HELLO_COMPRESS = 0x02;
+    // SEQUENCED frames, acknowledged with ACK and replayed after a reconnect
+    public static final int HELLO_SEQUENCE = 0x04;
+    // MACRO and MACRO_RUN frames
+    public static final int HELLO_MACRO = 0x08;
+
+    // keyboard: key code, modifiers
+    public static final int KEY_DOWN = 0x10;
+    public static final int KEY_UP = 0x11;
+    // keyboard: utf-8 text
+    public static final int TEXT = 0x12;
+
+    // pointer: signed dx, signed dy
+    public static final int POINTER_MOVE = 0x20;
+    // pointer: button
+    public static final int BUTTON_DOWN = 0x21;
+    public static final int BUTTON_UP = 0x22;
+    // pointer: signed dx, signed dy
+    public static final int SCROLL = 0x23;
+
+    // bulk: channel, flags, data to the end of the payload
+    public static final int CHANNEL_DATA = 0x30;
+
+    // CHANNEL_DATA flags
+    public static final int CHANNEL_END = 0x01;
+
+    // transfer, to the server: transfer id, channel, kind, size, name
+    public static final int TRANSFER_OFFER = 0x31;
+    // transfer, from the server: transfer id, bytes received, offset it will receive up to
+    public static final int TRANSFER_CREDIT = 0x32;
+    // transfer, either way: transfer id, reason
+    public static final int TRANSFER_CANCEL = 0x33;
+
+    // macro: slot, then the program to store in the slot and run
+    public static final int MACRO = 0x40;
+    // macro: slot of a stored program to run
+    public static final int MACRO_RUN = 0x41;
+
+    // slots a server keeps macros in, for the whole session
+    public static final int MACRO_SLOTS = 64;
+
+    // transfer kinds
+    public static final int TRANSFER_CLIPBOARD = 0;
+    public static final int TRANSFER_FILE = 1;
+
+    // TRANSFER_CANCEL reasons
+    public static final int CANCEL_BY_USER = 0;
+    public static final int CANCEL_FAILED = 1;
+    public static final int CANCEL_REFUSED = 2;
+
+    // pointer buttons
+    public static final int BUTTON_LEFT = 0;
+    public static final int BUTTON_RIGHT = 1;
+    public static final int BUTTON_MIDDLE = 2;
+
+    private Opcodes() {
+    }
+}
@@ -0,0 +1,129 @@
+package com.evans.qontrol.protocol;
+
+/**
+ * Created by evans on 1/14/17.
+ *
+ * Wire format shared with the server(computer). Every message is a single frame:
+ *
+ * <pre>
+ * +--------+--------------+--------+-----------------+---------+
+ * | header | body length  | opcode | payload         | [crc-8] |
+ * | 1 byte | varint (1-3) | 1 byte | body length - 1 | 1 byte  |
+ * +--------+--------------+--------+-----------------+---------+
+ * </pre>
+ *
+ * The high nibble of the header is the protocol version, the low nibble holds flags. Payload
+ * fields are LEB128 varints (zigzag encoded when signed), so a key press or a pointer move
+ * takes four to six bytes on the wire. Nothing in this package depends on Android.
+ */
+
+public final class Protocol {
+
+    public static final int VERSION = 1;
+
+    // header flags
+    public static final int FLAG_CHECKSUM = 0x01;
+
+    // largest opcode + payload a frame may carry
+    public static final int MAX_BODY_LENGTH = 0xFFFF;
+    // header byte + body length varint
+    public static final int MAX_PREFIX_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = MAX_PREFIX_LENGTH + MAX_BODY_LENGTH + 1;
+
+    private static final int[] CRC8_TABLE = new int[256];
+
+    static {
+        // CRC-8/ATM, polynomial x^8 + x^2 + x + 1
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) : (crc << 1);
+            }
+            CRC8_TABLE[i] = crc & 0xFF;
+        }
+    }
+
+    private Protocol() {
+    }
+
+    static int header(int flags) {
+        return (VERSION << 4) | (flags & 0x0F);
+    }
+
+    static int version(int header) {
+        return (header >>> 4) & 0x0F;
+    }
+
+    static int flags(int header) {
+        return header & 0x0F;
+    }
+
+    /**
+     * Compute the CRC-8 of a range of bytes.
+     * @param buffer The bytes to checksum.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @return The checksum in the range 0-255.
+     */
+    public static int crc8(byte[] buffer, int offset, int length) {
+        int crc = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            crc = CRC8_TABLE[(crc ^ buffer[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * @return The number of bytes needed to write the value as an unsigned varint.
+     */
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Read the body length from the prefix of an encoded frame.
+     * @param frame The buffer holding the frame.
+     * @param offset The index of the header byte.
+     * @return The length of the opcode and payload.
+     */
+    public static int bodyLength(byte[] frame, int offset) {
+        int length = 0;
+        for (int i = 0, shift = 0; i < MAX_PREFIX_LENGTH - 1; i++, shift += 7) {
+            int b = frame[offset + 1 + i] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Read the opcode of an encoded frame.
+     * @param frame The buffer holding the frame.
+     * @param offset The index of the header byte.
+     */
+    public static int opcode(byte[] frame, int offset) {
+        return frame[offset + prefixLength(bodyLength(frame, offset))] & 0xFF;
+    }
+
+    /**
+     * @return The length of the header and body length varint of a frame.
+     */
+    public static int prefixLength(int bodyLength) {
+        return 1 + varintSize(bodyLength);
+    }
+
+    public static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
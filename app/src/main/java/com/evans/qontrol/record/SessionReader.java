@@ -0,0 +1,116 @@
+package com.evans.qontrol.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Created by evans on 4/10/17.
+ *
+ * Reads back a log written by {@link SessionRecorder}, one record at a time. The file is
+ * mapped read-only and each body is copied into one reusable buffer, valid until the next
+ * call to {@link #next()}. Not thread safe.
+ */
+
+public class SessionReader {
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final long mStartMillis;
+    private byte[] mBody = new byte[256];
+    private int mDirection;
+    private long mTimestamp;
+    private int mBodyLength;
+
+    public SessionReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        FileChannel channel = mFile.getChannel();
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Session log of " + channel.size() + " bytes is too large");
+            }
+            mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mMap.remaining() < SessionRecorder.HEADER_LENGTH
+                    || mMap.getInt() != SessionRecorder.MAGIC) {
+                throw new ProtocolException("Not a session log");
+            }
+            int version = mMap.getInt();
+            if (version != SessionRecorder.FORMAT_VERSION) {
+                throw new ProtocolException("Unsupported session log version " + version);
+            }
+            mStartMillis = mMap.getLong();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The wall clock time the recording started, in ms.
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /**
+     * Move to the next record.
+     * @return false at the end of the log, including a record cut short by a crash.
+     */
+    public boolean next() {
+        if (mMap.remaining() < SessionRecorder.RECORD_HEADER) {
+            return false;
+        }
+        int start = mMap.position();
+        int direction = mMap.get();
+        long timestamp = mMap.getLong();
+        int length = mMap.getInt();
+        if (length < 1 || length > mMap.remaining()) {
+            mMap.position(start);
+            return false;
+        }
+        if (length > mBody.length) {
+            mBody = new byte[Math.max(length, mBody.length * 2)];
+        }
+        mMap.get(mBody, 0, length);
+        mDirection = direction;
+        mTimestamp = timestamp;
+        mBodyLength = length;
+        return true;
+    }
+
+    /**
+     * @return SessionRecorder.DIRECTION_OUT or DIRECTION_IN.
+     */
+    public int direction() {
+        return mDirection;
+    }
+
+    /**
+     * @return The time of the record since the start of the recording.
+     */
+    public long timestampNanos() {
+        return mTimestamp;
+    }
+
+    public int opcode() {
+        return mBody[0] & 0xFF;
+    }
+
+    /**
+     * @return The buffer holding the body (opcode and payload) of the record, from index 0.
+     */
+    public byte[] body() {
+        return mBody;
+    }
+
+    public int bodyLength() {
+        return mBodyLength;
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,163 @@
+package com.evans.qontrol.record;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Created by evans on 4/10/17.
+ *
+ * Appends the frames of a live session to a binary log for {@link SessionReplayer}. The file
+ * is memory-mapped a segment at a time, so recording a frame is a lock and a copy into the
+ * page cache with no system call; the kernel writes the pages out in its own time.
+ *
+ * The log starts with a header (magic, format version, wall clock start time in ms) followed
+ * by one record per frame:
+ *
+ * <pre>
+ * +-----------+-----------------+-------------+---------------------+
+ * | direction | timestamp (ns)  | body length | body                |
+ * | 1 byte    | 8 bytes         | 4 bytes     | opcode and payload  |
+ * +-----------+-----------------+-------------+---------------------+
+ * </pre>
+ *
+ * Timestamps count from the start of the recording. Numbers are big-endian. A recorder that
+ * fails to grow its file stops recording rather than disturb the connection.
+ */
+
+public class SessionRecorder {
+
+    public static final int MAGIC = 0x51524543; // "QREC"
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+    public static final int RECORD_HEADER = 13;
+
+    // record directions
+    public static final int DIRECTION_OUT = 0;
+    public static final int DIRECTION_IN = 1;
+
+    // how much of the file is mapped at once
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mStart;
+
+    private MappedByteBuffer mSegment;
+    private long mSegmentStart;
+    private long mPosition;
+    private long mRecords;
+    private boolean mClosed;
+    private IOException mError;
+
+    public SessionRecorder(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mStart = System.nanoTime();
+        mChannel.truncate(0);
+        map(0, SEGMENT_SIZE);
+        mSegment.putInt(MAGIC);
+        mSegment.putInt(FORMAT_VERSION);
+        mSegment.putLong(System.currentTimeMillis());
+        mPosition = HEADER_LENGTH;
+    }
+
+    /**
+     * Record the frames in a buffer about to be sent. The buffer may hold several encoded
+     * frames back to back, e.g. a replayed batch.
+     */
+    public synchronized void recordOutbound(byte[] frames, int offset, int length) {
+        long now = System.nanoTime() - mStart;
+        int end = offset + length;
+        while (offset < end) {
+            int bodyLength = Protocol.bodyLength(frames, offset);
+            int prefixLength = Protocol.prefixLength(bodyLength);
+            int frameLength = prefixLength + bodyLength
+                    + ((frames[offset] & Protocol.FLAG_CHECKSUM) != 0 ? 1 : 0);
+            if (!append(DIRECTION_OUT, now, -1, frames, offset + prefixLength, bodyLength)) {
+                return;
+            }
+            offset += frameLength;
+        }
+    }
+
+    /**
+     * Record a frame received from the server. The frame's read cursor is left alone.
+     */
+    public synchronized void recordInbound(Frame frame) {
+        append(DIRECTION_IN, System.nanoTime() - mStart, frame.opcode(),
+                frame.buffer(), frame.offset(), frame.length());
+    }
+
+    /**
+     * @return The number of frames recorded.
+     */
+    public synchronized long recordCount() {
+        return mRecords;
+    }
+
+    /**
+     * @return The error that stopped recording, or null.
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Stop recording and cut the file to the recorded length.
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mSegment = null;
+        try {
+            mChannel.truncate(mPosition);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    /**
+     * @param opcode The opcode to write ahead of the bytes, or -1 if they start with it.
+     * @return false if the recorder is closed or failed.
+     */
+    private boolean append(int direction, long timestamp, int opcode, byte[] src, int offset,
+                           int length) {
+        if (mClosed || mError != null) {
+            return false;
+        }
+        int bodyLength = length + (opcode >= 0 ? 1 : 0);
+        int record = RECORD_HEADER + bodyLength;
+        try {
+            if (mPosition + record > mSegmentStart + mSegment.capacity()) {
+                map(mPosition, Math.max(SEGMENT_SIZE, record));
+            }
+        } catch (IOException e) {
+            mError = e;
+            return false;
+        }
+        mSegment.position((int) (mPosition - mSegmentStart));
+        mSegment.put((byte) direction);
+        mSegment.putLong(timestamp);
+        mSegment.putInt(bodyLength);
+        if (opcode >= 0) {
+            mSegment.put((byte) opcode);
+        }
+        mSegment.put(src, offset, length);
+        mPosition += record;
+        mRecords++;
+        return true;
+    }
+
+    private void map(long position, int size) throws IOException {
+        mSegment = mChannel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        mSegmentStart = position;
+    }
+}
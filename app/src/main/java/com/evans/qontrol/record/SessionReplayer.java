@@ -0,0 +1,136 @@
+package com.evans.qontrol.record;
+
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecompressor;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Created by evans on 4/10/17.
+ *
+ * Feeds the input of a recorded session back through a {@link QLinkService}, at the recorded
+ * pace or faster, for realistic and repeatable load. Only keyboard and pointer frames are
+ * replayed; they are unwrapped from COMPRESSED and SEQUENCED frames and sent through the
+ * service's own send path, so coalescing, sequencing and compression apply again. Link and
+ * transfer frames belong to the recorded connection and are skipped.
+ */
+
+public class SessionReplayer {
+
+    private final QLinkService mService;
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private final Frame mFrame = new Frame();
+    private final Frame mInflated = new Frame();
+    private FrameDecompressor mDecompressor;
+    private volatile boolean mCancelled;
+
+    public SessionReplayer(QLinkService service) {
+        mService = service;
+    }
+
+    /**
+     * Replay the outbound input frames of a log on the calling thread.
+     * @param reader The log, positioned before its first record.
+     * @param speed How many times faster than recorded to send, or 0 for as fast as possible.
+     * @return The number of frames sent.
+     */
+    public long replay(SessionReader reader, double speed) throws IOException,
+            InterruptedException {
+        mCancelled = false;
+        long sent = 0;
+        long first = -1;
+        long start = System.nanoTime();
+        try {
+            while (!mCancelled && reader.next()) {
+                if (reader.direction() != SessionRecorder.DIRECTION_OUT) {
+                    continue;
+                }
+                Frame frame = unwrap(reader);
+                if (frame == null) {
+                    continue;
+                }
+                if (first < 0) {
+                    first = reader.timestampNanos();
+                }
+                if (speed > 0) {
+                    waitUntil(start + (long) ((reader.timestampNanos() - first) / speed));
+                }
+                send(frame);
+                sent++;
+            }
+        } finally {
+            if (mDecompressor != null) {
+                mDecompressor.end();
+                mDecompressor = null;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Stop a replay in progress after the current frame.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return The input frame the record carries, or null if it carries none.
+     */
+    private Frame unwrap(SessionReader reader) throws IOException {
+        byte[] body = reader.body();
+        Frame frame = mFrame;
+        frame.set(reader.opcode(), body, 1, reader.bodyLength() - 1);
+        if (frame.opcode() == Opcodes.COMPRESSED) {
+            if (mDecompressor == null) {
+                mDecompressor = new FrameDecompressor();
+            }
+            mDecompressor.decompress(frame, mInflated);
+            frame = mInflated;
+        }
+        if (frame.opcode() == Opcodes.SEQUENCED) {
+            frame.readVarint();
+            int opcode = frame.readByte();
+            int length = frame.remaining();
+            frame.set(opcode, frame.buffer(), frame.skipBytes(length), length);
+        }
+        // keyboard and pointer opcodes
+        int opcode = frame.opcode();
+        return opcode >= Opcodes.KEY_DOWN && opcode < Opcodes.CHANNEL_DATA ? frame : null;
+    }
+
+    private void send(Frame frame) throws IOException {
+        switch (frame.opcode()) {
+            case Opcodes.POINTER_MOVE:
+                mService.sendPointerMove(frame.readSignedInt(), frame.readSignedInt());
+                break;
+            case Opcodes.SCROLL:
+                mService.sendScroll(frame.readSignedInt(), frame.readSignedInt());
+                break;
+            case Opcodes.BUTTON_DOWN:
+            case Opcodes.BUTTON_UP:
+                mService.sendButton(frame.opcode() == Opcodes.BUTTON_DOWN, frame.readInt());
+                break;
+            default:
+                int length = frame.remaining();
+                int offset = frame.skipBytes(length);
+                mEncoder.begin(frame.opcode()).putBytes(frame.buffer(), offset, length).finish();
+                mService.write(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+                break;
+        }
+    }
+
+    private void waitUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0 && !mCancelled) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
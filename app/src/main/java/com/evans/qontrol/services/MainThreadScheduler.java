@@ -0,0 +1,35 @@
+package com.evans.qontrol.services;
+
+import android.view.Choreographer;
+
+import com.evans.qontrol.link.LinkEventDispatcher;
+
+/**
+ * Created by evans on 3/4/17.
+ *
+ * Runs link event delivery at the start of the next main thread frame, so a burst of events
+ * costs one pass over the listeners per frame. Must be created on the main thread.
+ */
+
+public class MainThreadScheduler implements LinkEventDispatcher.Scheduler {
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private volatile Runnable mDrain;
+
+    // one callback for every frame, so scheduling does not allocate
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            Runnable drain = mDrain;
+            if (drain != null) {
+                drain.run();
+            }
+        }
+    };
+
+    @Override
+    public void schedule(Runnable drain) {
+        mDrain = drain;
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+}
@@ -2,240 +2,226 @@ package com.evans.qontrol.services;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.content.Intent;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.evans.qontrol.DeviceActivity;
+import com.evans.qontrol.hosts.HostRecord;
+import com.evans.qontrol.hosts.HostStore;
+import com.evans.qontrol.link.PingHandshake;
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.transport.RacingTransport;
+import com.evans.qontrol.transport.Transport;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.UUID;
 
 /**
  * Created by evans on 12/29/16.
  *
- * Manage bluetooth connection with the server(computer). Has a thread for connecting to the
- * server and a thread for performing data transmissions when connected.
+ * Manage bluetooth connection with the server(computer). The connection itself is run by
+ * {@link QLinkService}; this class creates RFCOMM transports and delivers connection events
+ * on the main thread. The outcome of every attempt is kept in the {@link HostStore}, which
+ * also supplies the RFCOMM channel to dial on the first attempt.
  */
 
-public class QBluetoothService {
+public class QBluetoothService extends QLinkService {
 
     // uuid for this application (same as server)
     private static final UUID Q_UUID = UUID.fromString("94f39d29-7d6d-437d-973b-fba39e49d4ee");
 
-    private BluetoothAdapter mBluetoothAdapter;
-    private Context mContext;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
+    private static final String HOST_STORE_FILE = "hosts.bin";
+    private static HostStore sHostStore;
 
-    // connection states
-    public static final int STATE_NONE = 0;
-    public static final int STATE_CONNECTING = 1;
-    public static final int STATE_CONNECTED = 2;
+    private BluetoothAdapter mBluetoothAdapter;
+    private final HostStore mHosts;
+    // when the current connection attempt started, in elapsed realtime
+    private volatile long mConnectStarted;
+    private volatile BluetoothDevice mConnectedDevice;
 
-    public QBluetoothService(Context context) {
+    /**
+     * Must be created on the main thread; listeners are called there.
+     * @param hosts The HostStore to remember connections in.
+     */
+    public QBluetoothService(HostStore hosts) {
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mContext = context;
-    }
-
-    private synchronized void setState(int state) {
-        mState = state;
+        mHosts = hosts;
+        setEventScheduler(new MainThreadScheduler());
     }
 
-    public synchronized int getState() {
-        return mState;
+    /**
+     * @return The HostStore of the app. It is not loaded yet; call load() off the main thread.
+     */
+    public static synchronized HostStore getHostStore(Context context) {
+        if (sHostStore == null) {
+            File file = new File(context.getApplicationContext().getFilesDir(), HOST_STORE_FILE);
+            sHostStore = new HostStore(file);
+        }
+        return sHostStore;
     }
 
     /**
-     * Cancel thread attempting to make a connection.
+     * Connect to the device, reconnecting automatically if the connection drops.
      */
-    private synchronized void cancelConnectThread() {
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+    public void connect(BluetoothDevice device) {
+        connect(Collections.singletonList(device));
     }
 
     /**
-     * Cancel any thread running a connection
+     * Connect to whichever of the devices answers a PING first, e.g. the one of several paired
+     * computers that is switched on. Reconnects go to that device only.
+     * @param devices The devices to race, most likely first.
      */
-    private synchronized void cancelConnectedThread() {
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    public void connect(List<BluetoothDevice> devices) {
+        List<RfcommTransport.Factory> factories = new ArrayList<>(devices.size());
+        for (BluetoothDevice device : devices) {
+            factories.add(new RfcommTransport.Factory(mBluetoothAdapter, device, Q_UUID));
         }
+        connect(new HostFactory(factories));
     }
 
-    public synchronized void start() {
-        cancelConnectThread();
-        cancelConnectedThread();
+    /**
+     * @return The device of the current or last connection, or null if none yet.
+     */
+    public BluetoothDevice getConnectedDevice() {
+        return mConnectedDevice;
     }
 
-    public synchronized void connect(BluetoothDevice device) {
-        if (mState == STATE_CONNECTING) {
-            cancelConnectThread();
+    @Override
+    protected void onConnected(Transport transport) {
+        if (transport instanceof RacingTransport) {
+            // candidates that failed before this one won count against their hosts too
+            recordRaceFailures((RacingTransport) transport);
+            transport = ((RacingTransport) transport).getWinner();
         }
-        cancelConnectedThread();
-
-        // start thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
-    }
-
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
-        // cancel thread that completed the connection
-        cancelConnectThread();
-        // cancel any thread running a connection
-        cancelConnectedThread();
-
-        // show that connection has been made
-        sendMessage(DeviceActivity.CONNECTION_STATUS, DeviceActivity.CONN_SUCCESSFUL);
-
-        // start thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
-
-        setState(STATE_CONNECTED);
+        if (!(transport instanceof RfcommTransport)) {
+            return;
+        }
+        mConnectedDevice = ((RfcommTransport) transport).getDevice();
+        int connectMillis = (int) (SystemClock.elapsedRealtime() - mConnectStarted);
+        RfcommTransport rfcomm = (RfcommTransport) transport;
+        mHosts.recordSuccess(transport.getAddress(), rfcomm.getDevice().getName(),
+                transport.getType(), rfcomm.getChannel(), connectMillis,
+                System.currentTimeMillis());
+        saveHosts();
     }
 
-    public synchronized void stop() {
-        cancelConnectThread();
-        cancelConnectedThread();
-        setState(STATE_NONE);
+    @Override
+    protected void onConnectionFailed(Transport transport, IOException e) {
+        Log.e("QSERVICE", e.getMessage());
+        if (transport instanceof RacingTransport) {
+            // a lost race has no address of its own
+            recordRaceFailures((RacingTransport) transport);
+        } else if (transport != null && transport.getAddress() != null) {
+            mHosts.recordFailure(transport.getAddress(), null, System.currentTimeMillis());
+            saveHosts();
+        }
     }
 
-    private void connectionFailed() {
-        sendMessage(DeviceActivity.CONNECTION_STATUS, DeviceActivity.CONN_FAILED);
-
-        setState(STATE_NONE);
+    @Override
+    protected void onConnectionLost(IOException e) {
+        Log.e("QSERVICE", e.getMessage());
     }
 
-    private void connectionLost() {
-        sendMessage(DeviceActivity.CONNECTION_STATUS, DeviceActivity.CONN_LOST);
-
-        setState(STATE_NONE);
+    @Override
+    protected void onReconnecting(int attempt, long delayMillis) {
+        Log.d("QSERVICE", "Reconnect attempt " + attempt + " in " + delayMillis + "ms");
     }
 
-    private void sendMessage(String name, String message) {
-        Intent intent = new Intent("QEvents");
-        intent.putExtra(name, message);
-        LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+    @Override
+    protected void onError(String message, IOException e) {
+        Log.e("QSERVICE", message + ":: " + e.getMessage());
     }
 
-    private class ConnectThread extends Thread {
-        private BluetoothSocket mmSocket;
-        private BluetoothDevice mmDevice;
-
-        ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
-
-            // get a BluetoothSocket for a connection with the given BluetoothDevice
-            try {
-                tmp = device.createRfcommSocketToServiceRecord(Q_UUID);
-            } catch (IOException e) {
-                Log.e("QSERVICE", e.getMessage());
-            }
-            mmSocket = tmp;
-        }
-
-        public void run() {
-            setName("ConnectThread");
-            mBluetoothAdapter.cancelDiscovery();
-
-            // make a connection to the BluetoothSocket
-            try {
-                mmSocket.connect();
-            } catch (IOException e) {
-                Log.e("QSERVICE", e.getMessage());
-
-                try {
-                    mmSocket.close();
-                } catch (IOException e1) {
-                    Log.e("QSERVICE", "Unable to close socket:: " + e.getMessage());
-                }
-
-                connectionFailed();
-                return;
-
-                // QBluetoothService.this.start();
+    /**
+     * @return The factories ordered best host first; hosts never connected to go last.
+     */
+    private List<RfcommTransport.Factory> sortByScore(List<RfcommTransport.Factory> factories) {
+        final long now = System.currentTimeMillis();
+        List<RfcommTransport.Factory> sorted = new ArrayList<>(factories);
+        Collections.sort(sorted, new Comparator<RfcommTransport.Factory>() {
+            @Override
+            public int compare(RfcommTransport.Factory a, RfcommTransport.Factory b) {
+                return Double.compare(score(b), score(a));
             }
 
-            synchronized (QBluetoothService.this) {
-                mConnectThread = null;
+            private double score(RfcommTransport.Factory factory) {
+                HostRecord host = mHosts.get(factory.getDevice().getAddress());
+                return host != null ? host.getScore(now) : 0;
             }
+        });
+        return sorted;
+    }
 
-            connected(mmSocket, mmDevice);
+    private void recordRaceFailures(RacingTransport race) {
+        List<String> failed = race.getFailedAddresses();
+        if (failed.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String address : failed) {
+            mHosts.recordFailure(address, null, now);
         }
+        saveHosts();
+    }
 
-        void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e("QSERVICE", "Connect:: " + e.getMessage());
-            }
+    private void saveHosts() {
+        try {
+            mHosts.save();
+        } catch (IOException e) {
+            onError("Unable to save hosts", e);
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private BluetoothSocket mmSocket;
-        private InputStream mmInStream;
-        private OutputStream mmOutStream;
-
-        ConnectedThread(BluetoothSocket socket) {
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
-
-            // get BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e("QSERVICE", e.getMessage());
-            }
+    /**
+     * Starts the RFCOMM factories on the channels the HostStore remembers, and times attempts.
+     * With several factories their transports are raced until one wins. Runs on the connect
+     * thread, so the store can be loaded here.
+     */
+    private class HostFactory implements Transport.Factory {
+        private List<RfcommTransport.Factory> mmFactories;
+        private boolean mmLookedUp;
+        private RacingTransport mmRace;
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+        HostFactory(List<RfcommTransport.Factory> factories) {
+            mmFactories = factories;
         }
 
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
-
-            // keep listening to the input stream while connected
-            while (true) {
-                try {
-                    bytes = mmInStream.read(buffer);
-                } catch (IOException e) {
-                    Log.e("QSERVICE", e.getMessage());
-                    connectionLost();
-                    break;
+        @Override
+        public Transport newTransport() throws IOException {
+            if (!mmLookedUp) {
+                mmLookedUp = true;
+                mHosts.load();
+                for (RfcommTransport.Factory factory : mmFactories) {
+                    HostRecord host = mHosts.get(factory.getDevice().getAddress());
+                    if (host != null && factory.getChannel() <= 0) {
+                        factory.setChannel(host.getChannel());
+                    }
                 }
+                mmFactories = sortByScore(mmFactories);
             }
-        }
 
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
-            } catch (IOException e) {
-                Log.e("QSERVICE", e.getMessage());
+            // once a race is won, stay with the winner so the session can be resumed
+            if (mmRace != null && mmRace.getWinnerIndex() >= 0) {
+                mmFactories = Collections.singletonList(mmFactories.get(mmRace.getWinnerIndex()));
             }
-        }
+            mmRace = null;
 
-        void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e("QSERVICE", "close() of connect socket failed", e);
+            mConnectStarted = SystemClock.elapsedRealtime();
+            if (mmFactories.size() == 1) {
+                return mmFactories.get(0).newTransport();
             }
+            List<Transport.Factory> candidates = new ArrayList<Transport.Factory>(mmFactories);
+            // a host that accepts but does not answer must not win
+            mmRace = new RacingTransport(candidates, RacingTransport.DEFAULT_STAGGER_MS,
+                    new PingHandshake(), RacingTransport.DEFAULT_HANDSHAKE_TIMEOUT_MS,
+                    getExecutor().getRaceExecutor());
+            return mmRace;
         }
     }
 }
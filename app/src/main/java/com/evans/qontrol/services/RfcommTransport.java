@@ -0,0 +1,177 @@
+package com.evans.qontrol.services;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import com.evans.qontrol.transport.Transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Created by evans on 2/11/17.
+ *
+ * Bluetooth RFCOMM connection to the server. The first connection finds the server's channel
+ * through an SDP lookup of the service uuid; the {@link Factory} remembers that channel so
+ * reconnects can dial it directly and skip SDP.
+ */
+
+public class RfcommTransport implements Transport {
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final BluetoothDevice mDevice;
+    private final BluetoothSocket mSocket;
+    private final Factory mFactory;
+    private volatile int mChannel;
+
+    public RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device, UUID uuid)
+            throws IOException {
+        this(adapter, device, device.createRfcommSocketToServiceRecord(uuid), null, -1);
+    }
+
+    private RfcommTransport(BluetoothAdapter adapter, BluetoothDevice device,
+                            BluetoothSocket socket, Factory factory, int channel) {
+        mBluetoothAdapter = adapter;
+        mDevice = device;
+        mSocket = socket;
+        mFactory = factory;
+        mChannel = channel;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @return The RFCOMM channel dialed, or once connected the one SDP found; -1 if unknown.
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_RFCOMM;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // discovery slows down the connection
+        mBluetoothAdapter.cancelDiscovery();
+        try {
+            mSocket.connect();
+        } catch (IOException e) {
+            if (mFactory != null && mChannel > 0) {
+                // the server may have moved to another channel, look it up next time
+                mFactory.setChannel(-1);
+            }
+            throw e;
+        }
+        if (mChannel <= 0) {
+            mChannel = getChannel(mSocket);
+            if (mFactory != null) {
+                mFactory.setChannel(mChannel);
+            }
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    /**
+     * @return The RFCOMM channel of a connected socket, or -1 if the platform hides it.
+     */
+    private static int getChannel(BluetoothSocket socket) {
+        try {
+            Field port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+            return port.getInt(socket);
+        } catch (Exception e) {
+            Log.w("QSERVICE", "RFCOMM channel not available:: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return A socket for the given RFCOMM channel, or null if the platform does not allow it.
+     */
+    private static BluetoothSocket createChannelSocket(BluetoothDevice device, int channel) {
+        try {
+            Method method = BluetoothDevice.class.getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) method.invoke(device, channel);
+        } catch (Exception e) {
+            Log.w("QSERVICE", "Direct RFCOMM channel not available:: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates transports to one device, reusing the RFCOMM channel of the last connection.
+     */
+    public static class Factory implements Transport.Factory {
+        private final BluetoothAdapter mBluetoothAdapter;
+        private final BluetoothDevice mDevice;
+        private final UUID mUuid;
+        private volatile int mChannel = -1;
+
+        public Factory(BluetoothAdapter adapter, BluetoothDevice device, UUID uuid) {
+            mBluetoothAdapter = adapter;
+            mDevice = device;
+            mUuid = uuid;
+        }
+
+        public BluetoothDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * @return The RFCOMM channel of the last connection, or -1 if unknown.
+         */
+        public int getChannel() {
+            return mChannel;
+        }
+
+        /**
+         * @param channel A known RFCOMM channel of the server, or -1 to use SDP.
+         */
+        public void setChannel(int channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public Transport newTransport() throws IOException {
+            int channel = mChannel;
+            if (channel > 0) {
+                BluetoothSocket socket = createChannelSocket(mDevice, channel);
+                if (socket != null) {
+                    return new RfcommTransport(mBluetoothAdapter, mDevice, socket, this, channel);
+                }
+            }
+            BluetoothSocket socket = mDevice.createRfcommSocketToServiceRecord(mUuid);
+            return new RfcommTransport(mBluetoothAdapter, mDevice, socket, this, -1);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.evans.qontrol.transfer;
+
+/**
+ * Created by evans on 3/30/17.
+ *
+ * Transfer source for data already in memory, e.g. clipboard text.
+ */
+
+public class ByteArraySource implements TransferSource {
+
+    private final byte[] mData;
+
+    public ByteArraySource(byte[] data) {
+        mData = data;
+    }
+
+    @Override
+    public long size() {
+        return mData.length;
+    }
+
+    @Override
+    public int read(long position, byte[] dst, int offset, int length) {
+        if (position >= mData.length) {
+            return -1;
+        }
+        int count = (int) Math.min(length, mData.length - position);
+        System.arraycopy(mData, (int) position, dst, offset, count);
+        return count;
+    }
+
+    @Override
+    public void close() {
+    }
+}
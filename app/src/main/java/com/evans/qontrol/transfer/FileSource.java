@@ -0,0 +1,103 @@
+package com.evans.qontrol.transfer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Created by evans on 3/30/17.
+ *
+ * Transfer source streaming a file from disk. The file is memory-mapped a window at a time,
+ * so a chunk is one copy out of the page cache and only one window of address space is in
+ * use however large the file. Files that cannot be mapped, e.g. some content provider
+ * descriptors, are read through the channel instead.
+ */
+
+public class FileSource implements TransferSource {
+
+    // how much of the file is mapped at once
+    private static final int MAP_WINDOW = 1024 * 1024;
+
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final Closeable mOwner;
+
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+    private boolean mMappable = true;
+    private ByteBuffer mWrapped;
+
+    public FileSource(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    private FileSource(FileInputStream in) throws IOException {
+        this(in.getChannel(), in.getChannel().size(), in);
+    }
+
+    /**
+     * @param channel The channel to read from; only positional reads are used.
+     * @param size The number of bytes to send.
+     * @param owner What to close once the transfer is over, e.g. the descriptor the channel
+     * came from.
+     */
+    public FileSource(FileChannel channel, long size, Closeable owner) {
+        mChannel = channel;
+        mSize = size;
+        mOwner = owner;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized int read(long position, byte[] dst, int offset, int length)
+            throws IOException {
+        if (position >= mSize) {
+            return -1;
+        }
+        length = (int) Math.min(length, mSize - position);
+
+        if (mMappable && (mWindow == null || position < mWindowStart
+                || position + length > mWindowStart + mWindow.capacity())) {
+            try {
+                mWindowStart = position;
+                mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_WINDOW, mSize - position));
+            } catch (IOException e) {
+                // not a regular file; read through the channel from now on
+                mMappable = false;
+                mWindow = null;
+            }
+        }
+        if (mWindow != null) {
+            int start = (int) (position - mWindowStart);
+            length = Math.min(length, mWindow.capacity() - start);
+            mWindow.position(start);
+            mWindow.get(dst, offset, length);
+            return length;
+        }
+
+        if (mWrapped == null || mWrapped.array() != dst) {
+            mWrapped = ByteBuffer.wrap(dst);
+        }
+        mWrapped.limit(offset + length).position(offset);
+        return mChannel.read(mWrapped, position);
+    }
+
+    @Override
+    public synchronized void close() {
+        mWindow = null;
+        try {
+            mOwner.close();
+        } catch (IOException e) {
+            // nothing useful to do
+        }
+    }
+}
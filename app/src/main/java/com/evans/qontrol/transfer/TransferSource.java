@@ -0,0 +1,33 @@
+package com.evans.qontrol.transfer;
+
+import java.io.IOException;
+
+/**
+ * Created by evans on 3/30/17.
+ *
+ * The bytes of a bulk transfer, read by position so a transfer can restart from any offset
+ * after a reconnect. Sources stream their data rather than holding it all in memory.
+ */
+
+public interface TransferSource {
+
+    /**
+     * @return The total number of bytes.
+     */
+    long size();
+
+    /**
+     * Copy bytes starting at a position.
+     * @param position The offset of the first byte in the source.
+     * @param dst The buffer to copy to.
+     * @param offset The index in dst of the first byte.
+     * @param length The most bytes to copy.
+     * @return The number of bytes copied, or -1 if position is at the end.
+     */
+    int read(long position, byte[] dst, int offset, int length) throws IOException;
+
+    /**
+     * Release the source, e.g. its file. It is not read after this.
+     */
+    void close();
+}
@@ -0,0 +1,102 @@
+package com.evans.qontrol.transport;
+
+/**
+ * Created by evans on 4/18/17.
+ *
+ * How bad a {@link SimulatedTransport} is: one-way delay and jitter, a bandwidth cap, stalls
+ * and abrupt drops. Stalls model interference, e.g. a microwave or a person walking between
+ * phone and computer, during which nothing gets through in either direction. Setters return
+ * this so conditions read as one expression.
+ */
+
+public class LinkConditions {
+
+    private long mDelayMillis;
+    private long mJitterMillis;
+    private int mBytesPerSecond;
+    private double mStallsPerMinute;
+    private long mStallMillis;
+    private long mDropAfterMillis;
+
+    /**
+     * @return A clean classic Bluetooth link: a few milliseconds each way and RFCOMM's
+     * practical throughput.
+     */
+    public static LinkConditions rfcomm() {
+        return new LinkConditions()
+                .setDelay(8, 4)
+                .setBandwidth(80 * 1024);
+    }
+
+    /**
+     * @return A crowded 2.4 GHz link that stalls every few seconds and drops about once a
+     * minute.
+     */
+    public static LinkConditions noisyRfcomm() {
+        return new LinkConditions()
+                .setDelay(20, 40)
+                .setBandwidth(16 * 1024)
+                .setStalls(12, 300)
+                .setDropAfter(60000);
+    }
+
+    /**
+     * @param delayMillis The time each byte takes from one end to the other.
+     * @param jitterMillis The most a byte may arrive later than that; bytes stay in order.
+     */
+    public LinkConditions setDelay(long delayMillis, long jitterMillis) {
+        mDelayMillis = delayMillis;
+        mJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond The throughput of each direction, or 0 for no limit.
+     */
+    public LinkConditions setBandwidth(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param perMinute How often the link stalls on average, or 0 for never.
+     * @param millis How long a stall lasts on average.
+     */
+    public LinkConditions setStalls(double perMinute, long millis) {
+        mStallsPerMinute = perMinute;
+        mStallMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis How long a connection lasts on average before it drops, or 0 for ever.
+     */
+    public LinkConditions setDropAfter(long millis) {
+        mDropAfterMillis = millis;
+        return this;
+    }
+
+    public long getDelayMillis() {
+        return mDelayMillis;
+    }
+
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    public int getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public double getStallsPerMinute() {
+        return mStallsPerMinute;
+    }
+
+    public long getStallMillis() {
+        return mStallMillis;
+    }
+
+    public long getDropAfterMillis() {
+        return mDropAfterMillis;
+    }
+}
@@ -0,0 +1,134 @@
+package com.evans.qontrol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Created by evans on 2/11/17.
+ *
+ * Bounded in-memory byte pipe. Unlike java.io.PipedInputStream it wakes a blocked reader as
+ * soon as bytes are written instead of polling once a second, so it can stand in for a
+ * socket in latency measurements.
+ */
+
+class LoopbackPipe {
+
+    private final byte[] mBuffer;
+    private long mRead;
+    private long mWritten;
+    private boolean mClosed;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return LoopbackPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return LoopbackPipe.this.available();
+        }
+
+        @Override
+        public void close() {
+            LoopbackPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            LoopbackPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            LoopbackPipe.this.close();
+        }
+    };
+
+    LoopbackPipe(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    synchronized int available() {
+        return (int) (mWritten - mRead);
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (mWritten == mRead) {
+            if (mClosed) {
+                return -1;
+            }
+            waitForChange();
+        }
+        int count = (int) Math.min(len, mWritten - mRead);
+        for (int i = 0; i < count; ) {
+            int index = (int) (mRead % mBuffer.length);
+            int chunk = Math.min(count - i, mBuffer.length - index);
+            System.arraycopy(mBuffer, index, b, off + i, chunk);
+            mRead += chunk;
+            i += chunk;
+        }
+        notifyAll();
+        return count;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mClosed) {
+                throw new IOException("Pipe closed");
+            }
+            int free = mBuffer.length - (int) (mWritten - mRead);
+            if (free == 0) {
+                waitForChange();
+                continue;
+            }
+            int index = (int) (mWritten % mBuffer.length);
+            int chunk = Math.min(len, Math.min(free, mBuffer.length - index));
+            System.arraycopy(b, off, mBuffer, index, chunk);
+            mWritten += chunk;
+            off += chunk;
+            len -= chunk;
+            notifyAll();
+        }
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.evans.qontrol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Created by evans on 2/11/17.
+ *
+ * One end of an in-memory connection. {@link #pair(int)} returns two connected ends, one for
+ * the phone side and one for a simulated server, so the whole connection path can be driven
+ * on a plain JVM. Closing either end closes both, as with a socket.
+ */
+
+public class LoopbackTransport implements Transport {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final String mAddress;
+    private final LoopbackPipe mIn;
+    private final LoopbackPipe mOut;
+
+    private LoopbackTransport(String address, LoopbackPipe in, LoopbackPipe out) {
+        mAddress = address;
+        mIn = in;
+        mOut = out;
+    }
+
+    /**
+     * @param bufferSize The number of bytes each direction can hold before the writer blocks.
+     * @return The client end at index 0 and the server end at index 1.
+     */
+    public static LoopbackTransport[] pair(int bufferSize) {
+        LoopbackPipe up = new LoopbackPipe(bufferSize);
+        LoopbackPipe down = new LoopbackPipe(bufferSize);
+        return new LoopbackTransport[]{
+                new LoopbackTransport("loopback:client", down, up),
+                new LoopbackTransport("loopback:server", up, down)
+        };
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_LOOPBACK;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // both ends are connected from the start
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        mIn.close();
+        mOut.close();
+    }
+}
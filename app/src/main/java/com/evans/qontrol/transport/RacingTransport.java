@@ -0,0 +1,332 @@
+package com.evans.qontrol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Created by evans on 3/26/17.
+ *
+ * Connects to several candidate servers at once and keeps whichever completes its handshake
+ * first, in the style of happy eyeballs: candidates are started in order, each one a stagger
+ * delay after the previous or as soon as the previous fails. A candidate that connects but
+ * does not finish the {@link Handshake} in time fails, so a socket that accepts and then never
+ * answers cannot win. Once one wins, the others are closed. The winner then stands in for this
+ * transport.
+ */
+
+public class RacingTransport implements Transport {
+
+    /**
+     * Delay between starting candidates, as recommended for happy eyeballs.
+     */
+    public static final long DEFAULT_STAGGER_MS = 250;
+    // a few round trips on a slow RFCOMM link
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MS = 2000;
+
+    /**
+     * Proves that a connected candidate is a working server, e.g. with a protocol round trip.
+     */
+    public interface Handshake {
+        /**
+         * Called on the candidate's thread once it connected. Closing the transport must make
+         * it return.
+         * @throws IOException if the candidate is not a working server.
+         */
+        void perform(Transport transport) throws IOException;
+    }
+
+    private final List<Transport.Factory> mCandidates;
+    private final long mStaggerMillis;
+    private final Handshake mHandshake;
+    private final long mHandshakeTimeoutNanos;
+    private final Executor mExecutor;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private final Transport[] mAttempts;
+    // when each connected candidate's handshake runs out
+    private final boolean[] mHandshaking;
+    private final long[] mHandshakeDeadlines;
+    private long mNextStart;
+    private int mStarted;
+    private int mFailed;
+    private int mWinnerIndex = -1;
+    private IOException mLastError;
+    private boolean mClosed;
+    private final List<String> mFailedAddresses = new ArrayList<>();
+
+    private volatile Transport mWinner;
+
+    /**
+     * Race on connect() alone; the first candidate to connect wins.
+     */
+    public RacingTransport(List<Transport.Factory> candidates, long staggerMillis,
+                           Executor executor) {
+        this(candidates, staggerMillis, null, 0, executor);
+    }
+
+    /**
+     * @param candidates The servers to race, most likely first.
+     * @param staggerMillis How long to give a candidate before starting the next.
+     * @param handshake Run on each candidate once it connected, or null to race on connect().
+     * @param handshakeTimeoutMillis How long a connected candidate has to finish it.
+     * @param executor Runs the attempts; needs a thread per candidate racing at once.
+     */
+    public RacingTransport(List<Transport.Factory> candidates, long staggerMillis,
+                           Handshake handshake, long handshakeTimeoutMillis, Executor executor) {
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No candidates to race");
+        }
+        mCandidates = candidates;
+        mStaggerMillis = staggerMillis;
+        mHandshake = handshake;
+        mHandshakeTimeoutNanos = handshakeTimeoutMillis * 1000000L;
+        mExecutor = executor;
+        mAttempts = new Transport[candidates.size()];
+        mHandshaking = new boolean[candidates.size()];
+        mHandshakeDeadlines = new long[candidates.size()];
+    }
+
+    /**
+     * @return The transport that won the race, or null before connect() succeeded.
+     */
+    public Transport getWinner() {
+        return mWinner;
+    }
+
+    /**
+     * @return The index of the candidate that won, or -1 before connect() succeeded.
+     */
+    public int getWinnerIndex() {
+        synchronized (mLock) {
+            return mWinnerIndex;
+        }
+    }
+
+    /**
+     * @return The addresses of the candidates that failed to connect or to finish the handshake
+     * before the race was decided; losers closed because another won are not among them.
+     */
+    public List<String> getFailedAddresses() {
+        synchronized (mLock) {
+            return new ArrayList<>(mFailedAddresses);
+        }
+    }
+
+    @Override
+    public int getType() {
+        Transport winner = mWinner;
+        return winner != null ? winner.getType() : 0;
+    }
+
+    @Override
+    public String getAddress() {
+        Transport winner = mWinner;
+        return winner != null ? winner.getAddress() : null;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (!race()) {
+            closeAttempts(-1);
+            throw new IOException("Race cancelled");
+        }
+    }
+
+    /**
+     * @return false if closed before any candidate won.
+     */
+    private boolean race() throws IOException {
+        while (true) {
+            Transport expired = null;
+            synchronized (mLock) {
+                while (mWinnerIndex < 0 && !mClosed && expired == null) {
+                    int count = mCandidates.size();
+                    if (mFailed == count) {
+                        throw new IOException("All " + count + " candidates failed", mLastError);
+                    }
+
+                    // start the next candidate when the stagger is up or every running one failed
+                    long now = System.nanoTime();
+                    if (mStarted < count && (mStarted == 0 || now - mNextStart >= 0
+                            || mFailed == mStarted)) {
+                        start(mStarted++);
+                        mNextStart = now + mStaggerMillis * 1000000L;
+                        continue;
+                    }
+
+                    // give up on a candidate that connected but does not answer
+                    long wake = mStarted < count ? mNextStart : now + Long.MAX_VALUE / 2;
+                    for (int i = 0; i < mHandshaking.length && expired == null; i++) {
+                        if (!mHandshaking[i]) {
+                            continue;
+                        }
+                        if (now - mHandshakeDeadlines[i] >= 0) {
+                            // its handshake fails once the transport is closed
+                            mHandshaking[i] = false;
+                            expired = mAttempts[i];
+                        } else if (mHandshakeDeadlines[i] - wake < 0) {
+                            wake = mHandshakeDeadlines[i];
+                        }
+                    }
+                    if (expired != null) {
+                        break;
+                    }
+
+                    try {
+                        long waitMillis = (wake - now) / 1000000L;
+                        mLock.wait(Math.max(1, waitMillis));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mClosed = true;
+                    }
+                }
+
+                if (expired == null) {
+                    if (mWinnerIndex < 0) {
+                        return false;
+                    }
+                    mWinner = mAttempts[mWinnerIndex];
+                    return true;
+                }
+            }
+            closeQuietly(expired);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return winner().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return winner().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        int winnerIndex;
+        Transport winner;
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+            winnerIndex = mWinnerIndex;
+            winner = winnerIndex >= 0 ? mAttempts[winnerIndex] : null;
+        }
+        closeAttempts(winnerIndex);
+        if (winner != null) {
+            winner.close();
+        }
+    }
+
+    private Transport winner() throws IOException {
+        Transport winner = mWinner;
+        if (winner == null) {
+            throw new IOException("Not connected");
+        }
+        return winner;
+    }
+
+    private void start(final int index) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(index);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            failed(index, null, new IOException("No thread for candidate " + index, e));
+        }
+    }
+
+    private void attempt(int index) {
+        Transport transport = null;
+        try {
+            transport = mCandidates.get(index).newTransport();
+            synchronized (mLock) {
+                if (mWinnerIndex >= 0 || mClosed) {
+                    // decided before this one got going
+                    transport.close();
+                    return;
+                }
+                mAttempts[index] = transport;
+            }
+            transport.connect();
+            if (mHandshake != null) {
+                synchronized (mLock) {
+                    mHandshaking[index] = true;
+                    mHandshakeDeadlines[index] = System.nanoTime() + mHandshakeTimeoutNanos;
+                    mLock.notifyAll();
+                }
+                mHandshake.perform(transport);
+            }
+        } catch (IOException e) {
+            failed(index, transport, e);
+            return;
+        }
+
+        boolean won;
+        synchronized (mLock) {
+            mHandshaking[index] = false;
+            won = mWinnerIndex < 0 && !mClosed;
+            if (won) {
+                mWinnerIndex = index;
+                mLock.notifyAll();
+            }
+        }
+        if (won) {
+            closeAttempts(index);
+        } else {
+            closeQuietly(transport);
+        }
+    }
+
+    private void failed(int index, Transport transport, IOException e) {
+        closeQuietly(transport);
+        String address = transport != null ? transport.getAddress() : null;
+        synchronized (mLock) {
+            mAttempts[index] = null;
+            mHandshaking[index] = false;
+            // a loser closed after the race was decided did not fail on its own
+            if (address != null && mWinnerIndex < 0 && !mClosed) {
+                mFailedAddresses.add(address);
+            }
+            mFailed++;
+            mLastError = e;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Close every attempt except the winner, which unblocks their connect().
+     */
+    private void closeAttempts(int winnerIndex) {
+        Transport[] attempts;
+        synchronized (mLock) {
+            attempts = mAttempts.clone();
+        }
+        for (int i = 0; i < attempts.length; i++) {
+            if (i != winnerIndex) {
+                closeQuietly(attempts[i]);
+            }
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // losing attempts are thrown away anyway
+        }
+    }
+}
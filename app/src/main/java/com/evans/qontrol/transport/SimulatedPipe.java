@@ -0,0 +1,270 @@
+package com.evans.qontrol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/18/17.
+ *
+ * One direction of a {@link SimulatedTransport}. Writes are cut into RFCOMM-sized segments
+ * that leave one after another at the link's bandwidth, never during a stall, and arrive
+ * after the delay plus a random share of the jitter. Arrival times only grow, so bytes stay
+ * in order as on a real RFCOMM channel. Bytes count against the buffer until they are read,
+ * so a writer blocks once the link is full the way a socket write does.
+ *
+ * Times are System.nanoTime() values; the randomness comes from seeds, so the same seeds and
+ * the same writes give the same schedule.
+ */
+
+class SimulatedPipe {
+
+    // an RFCOMM frame at the default MTU
+    private static final int SEGMENT_SIZE = 990;
+
+    private final byte[] mBuffer;
+    private final LinkConditions mConditions;
+    private final Random mJitter;
+    private final Random mStalls;
+    private final long mDropAt;
+
+    private long mRead;
+    private long mWritten;
+    // arrival time and length of each segment in flight, a ring from mFirst
+    private long[] mArrivals = new long[16];
+    private int[] mLengths = new int[16];
+    private int mFirst;
+    private int mSegments;
+    private long mLinkFree;
+    private long mLastArrival;
+    private long mStallStart;
+    private long mStallEnd;
+    private boolean mClosed;
+    private boolean mDropped;
+
+    private final InputStream mInputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return SimulatedPipe.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            SimulatedPipe.this.close();
+        }
+    };
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            SimulatedPipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            SimulatedPipe.this.close();
+        }
+    };
+
+    /**
+     * @param jitterSeed Seeds the jitter of this direction.
+     * @param stallSeed Seeds the stalls; both directions of a link get the same one, so they
+     * stall together.
+     * @param dropAt When the link drops, or Long.MAX_VALUE for never.
+     */
+    SimulatedPipe(int capacity, LinkConditions conditions, long jitterSeed, long stallSeed,
+                  long start, long dropAt) {
+        mBuffer = new byte[capacity];
+        mConditions = conditions;
+        mJitter = new Random(jitterSeed);
+        mStalls = new Random(stallSeed);
+        mLinkFree = start;
+        mLastArrival = start;
+        mStallEnd = start;
+        mStallStart = start;
+        mDropAt = dropAt;
+    }
+
+    InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * Close gracefully; bytes in flight still arrive, then reads see the end of the stream.
+     */
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * Drop the link; reads and writes fail from now on and bytes in flight are lost.
+     */
+    synchronized void drop() {
+        mDropped = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            long now = checkLink();
+            int count = 0;
+            while (count < len && mSegments > 0 && mArrivals[mFirst] <= now) {
+                int chunk = Math.min(len - count, mLengths[mFirst]);
+                copyOut(b, off + count, chunk);
+                count += chunk;
+                mLengths[mFirst] -= chunk;
+                if (mLengths[mFirst] == 0) {
+                    mFirst = (mFirst + 1) % mArrivals.length;
+                    mSegments--;
+                }
+            }
+            if (count > 0) {
+                notifyAll();
+                return count;
+            }
+            if (mSegments == 0 && mClosed) {
+                return -1;
+            }
+            waitUntil(mSegments > 0 ? mArrivals[mFirst] : Long.MAX_VALUE);
+        }
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long now = checkLink();
+            if (mClosed) {
+                throw new IOException("Link closed");
+            }
+            int free = mBuffer.length - (int) (mWritten - mRead);
+            if (free == 0) {
+                waitUntil(Long.MAX_VALUE);
+                continue;
+            }
+            int chunk = Math.min(len, Math.min(free, SEGMENT_SIZE));
+            copyIn(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+
+            long departure = afterStalls(Math.max(now, mLinkFree));
+            int bandwidth = mConditions.getBytesPerSecond();
+            mLinkFree = departure + (bandwidth > 0
+                    ? chunk * TimeUnit.SECONDS.toNanos(1) / bandwidth : 0);
+            long jitter = TimeUnit.MILLISECONDS.toNanos(mConditions.getJitterMillis());
+            long arrival = mLinkFree + TimeUnit.MILLISECONDS.toNanos(mConditions.getDelayMillis())
+                    + (long) (mJitter.nextDouble() * jitter);
+            mLastArrival = Math.max(mLastArrival, arrival);
+            addSegment(mLastArrival, chunk);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return The current time.
+     * @throws IOException if the link has dropped.
+     */
+    private long checkLink() throws IOException {
+        long now = System.nanoTime();
+        if (mDropAt != Long.MAX_VALUE && now - mDropAt >= 0) {
+            mDropped = true;
+        }
+        if (mDropped) {
+            throw new IOException("Link dropped");
+        }
+        return now;
+    }
+
+    /**
+     * @return The first time from the given one that is not in a stall.
+     */
+    private long afterStalls(long time) {
+        double perMinute = mConditions.getStallsPerMinute();
+        if (perMinute <= 0) {
+            return time;
+        }
+        while (true) {
+            if (time - mStallEnd < 0) {
+                return time - mStallStart >= 0 ? mStallEnd : time;
+            }
+            // stalls come as a Poisson process, each lasting half to one and a half times
+            // the average
+            double gapMillis = -Math.log(1 - mStalls.nextDouble()) * 60000 / perMinute;
+            double stallMillis = mConditions.getStallMillis() * (0.5 + mStalls.nextDouble());
+            mStallStart = mStallEnd + (long) (gapMillis * 1e6);
+            mStallEnd = mStallStart + (long) (stallMillis * 1e6);
+        }
+    }
+
+    private void waitUntil(long time) throws InterruptedIOException {
+        long deadline = time == Long.MAX_VALUE ? mDropAt
+                : mDropAt == Long.MAX_VALUE ? time : Math.min(time, mDropAt);
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                wait();
+            } else {
+                long nanos = deadline - System.nanoTime();
+                if (nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void addSegment(long arrival, int length) {
+        if (mSegments == mArrivals.length) {
+            long[] arrivals = new long[mSegments * 2];
+            int[] lengths = new int[mSegments * 2];
+            for (int i = 0; i < mSegments; i++) {
+                arrivals[i] = mArrivals[(mFirst + i) % mSegments];
+                lengths[i] = mLengths[(mFirst + i) % mSegments];
+            }
+            mArrivals = arrivals;
+            mLengths = lengths;
+            mFirst = 0;
+        }
+        int index = (mFirst + mSegments) % mArrivals.length;
+        mArrivals[index] = arrival;
+        mLengths[index] = length;
+        mSegments++;
+    }
+
+    private void copyIn(byte[] src, int offset, int length) {
+        int index = (int) (mWritten % mBuffer.length);
+        int first = Math.min(length, mBuffer.length - index);
+        System.arraycopy(src, offset, mBuffer, index, first);
+        System.arraycopy(src, offset + first, mBuffer, 0, length - first);
+        mWritten += length;
+    }
+
+    private void copyOut(byte[] dst, int offset, int length) {
+        int index = (int) (mRead % mBuffer.length);
+        int first = Math.min(length, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, dst, offset, first);
+        System.arraycopy(mBuffer, 0, dst, offset + first, length - first);
+        mRead += length;
+    }
+}
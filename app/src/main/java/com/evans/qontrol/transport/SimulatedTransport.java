@@ -0,0 +1,116 @@
+package com.evans.qontrol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/18/17.
+ *
+ * One end of an in-memory connection that behaves like a bad Bluetooth link, under the
+ * given {@link LinkConditions}. Like {@link LoopbackTransport}, {@link #pair} returns a
+ * phone end and a server end, so reconnects, backpressure and coalescing can be tested and
+ * benchmarked without a radio. When a link drops, reads and writes at both ends fail with an
+ * IOException, the way a Bluetooth socket fails when the remote device goes out of range.
+ *
+ * Every random choice is drawn from seeds taken from the Random passed to pair(), so a
+ * seeded Random gives the same jitter, stalls and drops on every run.
+ */
+
+public class SimulatedTransport implements Transport {
+
+    private final String mAddress;
+    private final SimulatedPipe mIn;
+    private final SimulatedPipe mOut;
+    private final long mLifetimeMillis;
+
+    private SimulatedTransport(String address, SimulatedPipe in, SimulatedPipe out,
+                               long lifetimeMillis) {
+        mAddress = address;
+        mIn = in;
+        mOut = out;
+        mLifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * @param bufferSize The number of bytes each direction can hold before the writer blocks.
+     * @param random The source of the link's seeds; seed it for a reproducible link.
+     * @return The client end at index 0 and the server end at index 1.
+     */
+    public static SimulatedTransport[] pair(int bufferSize, LinkConditions conditions,
+                                            Random random) {
+        long upSeed;
+        long downSeed;
+        long stallSeed;
+        long lifetimeMillis = -1;
+        synchronized (random) {
+            upSeed = random.nextLong();
+            downSeed = random.nextLong();
+            stallSeed = random.nextLong();
+            if (conditions.getDropAfterMillis() > 0) {
+                // exponentially distributed, so a drop is as likely at any moment
+                lifetimeMillis = (long) (-Math.log(1 - random.nextDouble())
+                        * conditions.getDropAfterMillis());
+            }
+        }
+        long start = System.nanoTime();
+        long dropAt = lifetimeMillis >= 0
+                ? start + TimeUnit.MILLISECONDS.toNanos(lifetimeMillis) : Long.MAX_VALUE;
+        SimulatedPipe up = new SimulatedPipe(bufferSize, conditions, upSeed, stallSeed, start,
+                dropAt);
+        SimulatedPipe down = new SimulatedPipe(bufferSize, conditions, downSeed, stallSeed, start,
+                dropAt);
+        return new SimulatedTransport[]{
+                new SimulatedTransport("simulated:client", down, up, lifetimeMillis),
+                new SimulatedTransport("simulated:server", up, down, lifetimeMillis)
+        };
+    }
+
+    /**
+     * @return How long after pair() the link drops, or -1 if it never does on its own.
+     */
+    public long getLifetimeMillis() {
+        return mLifetimeMillis;
+    }
+
+    /**
+     * Drop the link now, for both ends. Bytes in flight are lost.
+     */
+    public void drop() {
+        mIn.drop();
+        mOut.drop();
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_SIMULATED;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // both ends are connected from the start
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        mIn.close();
+        mOut.close();
+    }
+}
@@ -0,0 +1,63 @@
+package com.evans.qontrol.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Created by evans on 2/11/17.
+ *
+ * Connects to the server over TCP, e.g. over Wi-Fi when the computer is on the same network.
+ * Nagle's algorithm is disabled since frames are small and latency matters more than packet
+ * count.
+ */
+
+public class TcpTransport implements Transport {
+
+    public static final int DEFAULT_PORT = 4646;
+
+    private final String mHost;
+    private final int mPort;
+    private final int mConnectTimeoutMillis;
+    private final Socket mSocket = new Socket();
+
+    public TcpTransport(String host, int port, int connectTimeoutMillis) {
+        mHost = host;
+        mPort = port;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_TCP;
+    }
+
+    @Override
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mSocket.setTcpNoDelay(true);
+        mSocket.setKeepAlive(true);
+        mSocket.connect(new InetSocketAddress(mHost, mPort), mConnectTimeoutMillis);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
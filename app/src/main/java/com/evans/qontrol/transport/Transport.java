@@ -0,0 +1,50 @@
+package com.evans.qontrol.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Created by evans on 2/11/17.
+ *
+ * A byte stream connection to the server(computer). A Transport is used for a single
+ * connection attempt: {@link #connect()} blocks until the link is up, and {@link #close()}
+ * may be called from any thread to abort a pending connect or end the connection.
+ */
+
+public interface Transport extends Closeable {
+
+    /**
+     * Creates a fresh Transport to the same server for every connection attempt, so a
+     * dropped connection can be re-established.
+     */
+    interface Factory {
+        Transport newTransport() throws IOException;
+    }
+
+    // transport types
+    int TYPE_RFCOMM = 1;
+    int TYPE_TCP = 2;
+    int TYPE_LOOPBACK = 3;
+    int TYPE_SIMULATED = 4;
+
+    /**
+     * @return One of the TYPE_* constants.
+     */
+    int getType();
+
+    /**
+     * @return The address of the remote end, e.g. a MAC address or host:port.
+     */
+    String getAddress();
+
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,194 @@
+package com.evans.qontrol.discovery;
+
+import com.evans.qontrol.models.Device;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Test
+    public void packsMacAddresses() {
+        long mac = MacAddress.parse("00:1a:7D:DA:71:13");
+        assertEquals(0x001A7DDA7113L, mac);
+        assertEquals("00:1A:7D:DA:71:13", MacAddress.toString(mac));
+        assertEquals("FF:FF:FF:FF:FF:FF", MacAddress.toString(MacAddress.parse("ff:ff:ff:ff:ff:ff")));
+
+        String[] invalid = {null, "", "00:1A:7D:DA:71", "00-1A-7D-DA-71-13", "00:1A:7D:DA:71:1G"};
+        for (String address : invalid) {
+            try {
+                MacAddress.parse(address);
+                fail(address);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void mergesRepeatedReports() {
+        List<Device> rows = new ArrayList<>();
+        DeviceRegistry registry = new DeviceRegistry(rows);
+        RecordingCallback callback = new RecordingCallback();
+
+        assertTrue(registry.upsert(report("00:00:00:00:00:01", null, -60)));
+        assertFalse(registry.upsert(report("00:00:00:00:00:01", null, -60)));
+        assertTrue(registry.upsert(report("00:00:00:00:00:01", "Desktop", Device.RSSI_UNKNOWN)));
+        assertEquals(0, rows.size());
+
+        registry.dispatchUpdates(callback);
+        assertEquals("I0+1", callback.log());
+        assertEquals(1, rows.size());
+        assertEquals("Desktop", rows.get(0).getName());
+        assertEquals("00:00:00:00:00:01", rows.get(0).getAddress());
+
+        // a report without a name keeps the known one
+        assertFalse(registry.upsert(report("00:00:00:00:00:01", null, -60)));
+        assertFalse(registry.hasPendingUpdates());
+    }
+
+    @Test
+    public void batchesInsertsAndMovesByStrength() {
+        List<Device> rows = new ArrayList<>();
+        DeviceRegistry registry = new DeviceRegistry(rows);
+        RecordingCallback callback = new RecordingCallback();
+
+        registry.upsert(report("00:00:00:00:00:01", "a", -50));
+        registry.upsert(report("00:00:00:00:00:02", "b", -60));
+        registry.upsert(report("00:00:00:00:00:03", "c", -70));
+        registry.dispatchUpdates(callback);
+        assertEquals("I0+3", callback.log());
+
+        // c comes closer, b gets a name
+        registry.upsert(report("00:00:00:00:00:03", null, -40));
+        registry.upsert(report("00:00:00:00:00:02", "bee", -60));
+        registry.dispatchUpdates(callback);
+        assertEquals("M2>0 C2+1", callback.log());
+        assertEquals("c", rows.get(0).getName());
+        assertEquals("a", rows.get(1).getName());
+        assertEquals("bee", rows.get(2).getName());
+    }
+
+    @Test
+    public void notificationsReplayToSameRows() {
+        List<Device> rows = new ArrayList<>();
+        DeviceRegistry registry = new DeviceRegistry(rows);
+        ShadowCallback shadow = new ShadowCallback(rows);
+        Random random = new Random(3);
+
+        for (int round = 0; round < 200; round++) {
+            int reports = random.nextInt(20);
+            for (int i = 0; i < reports; i++) {
+                String address = MacAddress.toString(random.nextInt(300));
+                String name = random.nextInt(4) == 0 ? "d" + random.nextInt(5) : null;
+                int rssi = random.nextInt(8) == 0 ? Device.RSSI_UNKNOWN
+                        : -30 - random.nextInt(60);
+                registry.upsert(report(address, name, rssi));
+            }
+            registry.dispatchUpdates(shadow);
+            shadow.verify();
+        }
+
+        // every device has exactly one row, strongest signal first
+        assertTrue(rows.size() <= 300);
+        for (int i = 1; i < rows.size(); i++) {
+            assertTrue(rows.get(i - 1).getRssi() >= rows.get(i).getRssi());
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            for (int j = i + 1; j < rows.size(); j++) {
+                assertFalse(rows.get(i).getAddress().equals(rows.get(j).getAddress()));
+            }
+        }
+    }
+
+    private static Device report(String address, String name, int rssi) {
+        return new Device(MacAddress.parse(address), name, rssi, 0, 0);
+    }
+
+    private static class RecordingCallback implements DeviceRegistry.Callback {
+        private final StringBuilder mLog = new StringBuilder();
+
+        @Override
+        public void onInserted(int position, int count) {
+            append("I" + position + "+" + count);
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            append("C" + position + "+" + count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            append("M" + fromPosition + ">" + toPosition);
+        }
+
+        private void append(String entry) {
+            if (mLog.length() > 0) {
+                mLog.append(' ');
+            }
+            mLog.append(entry);
+        }
+
+        String log() {
+            String log = mLog.toString();
+            mLog.setLength(0);
+            return log;
+        }
+    }
+
+    /**
+     * Applies the notifications to a copy of the rows, the way a RecyclerView would, and
+     * checks the copy ends up the same as the rows.
+     */
+    private static class ShadowCallback implements DeviceRegistry.Callback {
+        private final List<Device> mRows;
+        private final List<String> mShadow = new ArrayList<>();
+        private final List<Boolean> mStale = new ArrayList<>();
+
+        ShadowCallback(List<Device> rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            for (int i = 0; i < count; i++) {
+                mShadow.add(position + i, null);
+                mStale.add(position + i, true);
+            }
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            for (int i = 0; i < count; i++) {
+                mStale.set(position + i, true);
+            }
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mShadow.add(toPosition, mShadow.remove(fromPosition));
+            mStale.add(toPosition, mStale.remove(fromPosition));
+        }
+
+        void verify() {
+            assertEquals(mRows.size(), mShadow.size());
+            for (int i = 0; i < mShadow.size(); i++) {
+                String bound = describe(mRows.get(i));
+                if (mStale.get(i)) {
+                    mShadow.set(i, bound);
+                    mStale.set(i, false);
+                }
+                assertEquals(bound, mShadow.get(i));
+            }
+        }
+
+        private static String describe(Device row) {
+            return row.getAddress() + "/" + row.getName();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.evans.qontrol.hosts;
+
+import com.evans.qontrol.transport.Transport;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HostStoreTest {
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long NOW = 1490000000000L;
+
+    @Test
+    public void savesAndLoadsHosts() throws Exception {
+        File file = File.createTempFile("hosts", ".bin");
+        file.delete();
+        try {
+            HostStore store = new HostStore(file);
+            store.load();
+            assertTrue(store.getHosts(NOW).isEmpty());
+
+            store.recordSuccess("00:1A:7D:DA:71:13", "Desktop", Transport.TYPE_RFCOMM, 5, 800, NOW);
+            store.recordSuccess("00:1A:7D:DA:71:13", null, Transport.TYPE_RFCOMM, 5, 400, NOW);
+            store.recordFailure("00:1A:7D:DA:71:13", null, NOW);
+            store.recordSuccess("192.168.1.20:4646", null, Transport.TYPE_TCP, -1, 50, NOW);
+            store.save();
+
+            HostStore loaded = new HostStore(file);
+            loaded.load();
+            HostRecord host = loaded.get("00:1A:7D:DA:71:13");
+            assertEquals("Desktop", host.getName());
+            assertEquals(Transport.TYPE_RFCOMM, host.getTransportType());
+            assertEquals(5, host.getChannel());
+            assertEquals(700, host.getConnectMillis());
+            assertEquals(3, host.getAttempts());
+            assertEquals(2, host.getSuccesses());
+            assertEquals(NOW, host.getLastUsed());
+            assertNull(loaded.get("192.168.1.20:4646").getName());
+            assertEquals(2, loaded.getHosts(NOW).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void ranksReliableRecentHostsFirst() {
+        HostStore store = new HostStore(new File("unused"));
+        for (int i = 0; i < 5; i++) {
+            store.recordSuccess("old", null, Transport.TYPE_RFCOMM, 1, 500, NOW - 30 * DAY);
+            store.recordSuccess("good", null, Transport.TYPE_RFCOMM, 1, 500, NOW - DAY);
+            store.recordSuccess("flaky", null, Transport.TYPE_RFCOMM, 1, 500, NOW - DAY);
+            store.recordFailure("flaky", null, NOW - DAY);
+            store.recordFailure("flaky", null, NOW - DAY);
+        }
+        // failures of hosts never connected to are not remembered
+        store.recordFailure("unknown", null, NOW);
+
+        List<HostRecord> hosts = store.getHosts(NOW);
+        assertEquals(3, hosts.size());
+        assertEquals("good", hosts.get(0).getAddress());
+        assertEquals("flaky", hosts.get(1).getAddress());
+        assertEquals("old", hosts.get(2).getAddress());
+    }
+
+    @Test
+    public void evictsWorstHostWhenFull() {
+        HostStore store = new HostStore(new File("unused"));
+        store.recordSuccess("worst", null, Transport.TYPE_RFCOMM, 1, 500, NOW - 60 * DAY);
+        for (int i = 0; i < HostStore.MAX_HOSTS; i++) {
+            store.recordSuccess("host" + i, null, Transport.TYPE_RFCOMM, 1, 500, NOW);
+        }
+        assertEquals(HostStore.MAX_HOSTS, store.getHosts(NOW).size());
+        assertNull(store.get("worst"));
+    }
+
+    @Test
+    public void countsOnlyRecentAttempts() {
+        HostStore store = new HostStore(new File("unused"));
+        store.recordSuccess("host", null, Transport.TYPE_RFCOMM, 1, 500, NOW);
+        for (int i = 0; i < 100; i++) {
+            store.recordFailure("host", null, NOW);
+        }
+        HostRecord host = store.get("host");
+        assertTrue(host.getAttempts() <= 20);
+        assertTrue(host.getSuccessRate() < 0.1);
+    }
+
+    @Test
+    public void ignoresDamagedFile() throws Exception {
+        File file = File.createTempFile("hosts", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[]{0x51, 0x48, 0x4f, 0x53, 1, 3, 0, 5});
+            out.close();
+
+            HostStore store = new HostStore(file);
+            store.load();
+            assertTrue(store.getHosts(NOW).isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+}
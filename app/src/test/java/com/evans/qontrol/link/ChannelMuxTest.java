@@ -0,0 +1,170 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChannelMuxTest {
+
+    @Test
+    public void cutsMessagesIntoBoundedChunks() throws Exception {
+        ChannelMux mux = new ChannelMux(512, 4096);
+        byte[] message = new byte[1300];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        assertTrue(mux.send(2, message, 0, message.length));
+        assertTrue(mux.send(2, message, 0, 0));
+        assertFalse(mux.send(2, new byte[4096], 0, 4096));
+
+        byte[] batch = new byte[1024];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int length;
+        while ((length = mux.nextChunk(batch)) > 0) {
+            out.write(batch, 0, length);
+        }
+        assertFalse(mux.hasData());
+        assertEquals(0, mux.pendingBytes());
+
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()));
+        Frame frame = new Frame();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int[] sizes = {512, 512, 276, 0};
+        for (int size : sizes) {
+            assertTrue(decoder.readFrame(frame));
+            assertEquals(Opcodes.CHANNEL_DATA, frame.opcode());
+            assertEquals(2, frame.readInt());
+            int flags = frame.readInt();
+            assertEquals(size, frame.remaining());
+            received.write(frame.buffer(), frame.skipBytes(size), size);
+            // the end of each message is marked
+            assertEquals(size != 512, (flags & Opcodes.CHANNEL_END) != 0);
+        }
+        assertFalse(decoder.readFrame(frame));
+        assertArrayEquals(message, received.toByteArray());
+    }
+
+    @Test
+    public void sharesLinkByWeight() throws Exception {
+        ChannelMux mux = new ChannelMux(100, 100000);
+        mux.setWeight(1, 3);
+        byte[] message = new byte[20000];
+        assertTrue(mux.send(1, message, 0, message.length));
+        assertTrue(mux.send(3, message, 0, message.length));
+
+        byte[] batch = new byte[200];
+        int[] bytes = new int[ChannelMux.MAX_CHANNELS];
+        Frame frame = new Frame();
+        for (int i = 0; i < 100; i++) {
+            int length = mux.nextChunk(batch);
+            FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(batch, 0, length));
+            assertTrue(decoder.readFrame(frame));
+            int channel = frame.readInt();
+            frame.readInt();
+            bytes[channel] += frame.remaining();
+        }
+        assertEquals(7500, bytes[1]);
+        assertEquals(2500, bytes[3]);
+    }
+
+    @Test(timeout = 10000)
+    public void inputWaitsForAtMostOneChunk() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.POLICY_BLOCK, 1000);
+        ChannelMux mux = new ChannelMux(256, 1024 * 1024);
+        RecordingStream out = new RecordingStream();
+        OutboundWriter writer = new OutboundWriter(queue, mux, out, new OutboundWriter.Callback() {
+            @Override
+            public void onBatchReady(byte[] batch, int bytes) {
+            }
+
+            @Override
+            public void onBatchWritten(int bytes, long stallNanos) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                fail(e.getMessage());
+            }
+        });
+        Thread writerThread = new Thread(writer);
+        writerThread.start();
+
+        assertTrue(mux.send(1, new byte[64 * 1024], 0, 64 * 1024));
+        queue.signal();
+
+        FrameEncoder encoder = new FrameEncoder();
+        int[] writtenWhenQueued = new int[20];
+        for (int i = 0; i < writtenWhenQueued.length; i++) {
+            Thread.sleep(3);
+            encoder.encodeKey(true, i, 0);
+            assertTrue(queue.offer(encoder.array(), encoder.offset(), encoder.length(), 0));
+            writtenWhenQueued[i] = out.count();
+        }
+        while (mux.hasData() || !queue.isEmpty()) {
+            Thread.sleep(1);
+        }
+        writer.cancel();
+        writerThread.join();
+
+        // each key goes out after at most the chunk being written when it was queued
+        Frame frame = new Frame();
+        List<byte[]> writes = out.writes();
+        int key = 0;
+        for (int i = 0; i < writes.size(); i++) {
+            FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(writes.get(i)));
+            while (decoder.readFrame(frame)) {
+                if (frame.opcode() == Opcodes.KEY_DOWN) {
+                    assertEquals(key, frame.readInt());
+                    assertTrue("key " + key + " waited", i <= writtenWhenQueued[key] + 1);
+                    key++;
+                }
+            }
+        }
+        assertEquals(writtenWhenQueued.length, key);
+    }
+
+    /**
+     * Keeps every write separately, taking a little time over each like a slow link.
+     */
+    private static class RecordingStream extends OutputStream {
+        private final List<byte[]> mWrites = new ArrayList<>();
+
+        @Override
+        public void write(int b) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (this) {
+                mWrites.add(Arrays.copyOfRange(b, off, off + len));
+            }
+        }
+
+        synchronized int count() {
+            return mWrites.size();
+        }
+
+        synchronized List<byte[]> writes() {
+            return new ArrayList<>(mWrites);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HeartbeatTest {
+
+    @Test
+    public void pingsOnlyWhenServerIsQuiet() {
+        Heartbeat heartbeat = new Heartbeat(1000, 0);
+        for (int t = 100; t <= 5000; t += 100) {
+            heartbeat.onReceived(ms(t));
+            assertEquals(Heartbeat.ACTION_NONE, heartbeat.tick(ms(t)));
+        }
+        assertEquals(Heartbeat.ACTION_NONE, heartbeat.tick(ms(5999)));
+        assertEquals(Heartbeat.ACTION_PING, heartbeat.tick(ms(6000)));
+        // not again until the reply is overdue
+        assertEquals(Heartbeat.ACTION_NONE, heartbeat.tick(ms(6500)));
+        assertEquals(Heartbeat.ACTION_PING, heartbeat.tick(ms(7000)));
+    }
+
+    @Test
+    public void intervalAndTimeoutFollowRoundTrip() {
+        Heartbeat heartbeat = new Heartbeat(1000, 0);
+        assertEquals(Heartbeat.INITIAL_TIMEOUT, heartbeat.getTimeout());
+        for (int i = 0; i < 50; i++) {
+            heartbeat.onRttSample(ms(100));
+        }
+        assertEquals(ms(400), heartbeat.getInterval(), ms(5));
+        assertEquals(ms(500), heartbeat.getTimeout());
+
+        // a slow, jittery link gets more time
+        for (int i = 0; i < 50; i++) {
+            heartbeat.onRttSample(ms(i % 2 == 0 ? 200 : 600));
+        }
+        assertEquals(ms(1000), heartbeat.getInterval());
+        assertTrue(heartbeat.getTimeout() > ms(1000));
+        assertTrue(heartbeat.getTimeout() <= ms(5000));
+    }
+
+    @Test
+    public void declaresDeadAfterMissedReplies() {
+        Heartbeat heartbeat = new Heartbeat(1000, 0);
+        heartbeat.onRttSample(ms(50));
+        heartbeat.onReceived(0);
+        long deadline = heartbeat.getDeadline();
+        assertEquals(heartbeat.getInterval() + Heartbeat.MAX_MISSES * heartbeat.getTimeout(),
+                deadline);
+
+        int pings = 0;
+        long now = 0;
+        int action;
+        while ((action = heartbeat.tick(now)) != Heartbeat.ACTION_DEAD) {
+            if (action == Heartbeat.ACTION_PING) {
+                pings++;
+            }
+            now += heartbeat.nextTick(now);
+        }
+        assertEquals(Heartbeat.MAX_MISSES, pings);
+        assertEquals(deadline, now);
+    }
+
+    @Test
+    public void declaresDeadBeforeFirstReply() {
+        // a server that goes silent before any PING was answered
+        Heartbeat heartbeat = new Heartbeat(1000, 0);
+        assertEquals(ms(1000) + Heartbeat.MAX_MISSES * ms(1000), heartbeat.getDeadline());
+
+        int pings = 0;
+        long now = 0;
+        int action;
+        while ((action = heartbeat.tick(now)) != Heartbeat.ACTION_DEAD) {
+            if (action == Heartbeat.ACTION_PING) {
+                pings++;
+            }
+            now += heartbeat.nextTick(now);
+        }
+        assertEquals(Heartbeat.MAX_MISSES, pings);
+        assertEquals(ms(4000), now);
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,33 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (long value = 0; value < 1 << 20; value++) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000000L, histogram.getMax());
+        assertEquals(500, histogram.getPercentile(50) / 1000000.0, 500 / 16.0);
+        assertEquals(990, histogram.getPercentile(99) / 1000000.0, 990 / 16.0);
+        assertEquals(1000000000L, histogram.getPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
@@ -0,0 +1,68 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LinkEventDispatcherTest {
+
+    @Test
+    public void deliversTypedEventsToListeners() {
+        LinkEventDispatcher dispatcher = new LinkEventDispatcher();
+        final StringBuilder events = new StringBuilder();
+        LinkListener listener = new LinkListener() {
+            @Override
+            public void onConnected(int transportType) {
+                events.append("connected ").append(transportType).append(';');
+            }
+
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                events.append("reconnecting ").append(attempt).append(' ').append(delayMillis).append(';');
+            }
+        };
+        dispatcher.addListener(listener);
+        dispatcher.addListener(listener);
+
+        dispatcher.post(LinkEventDispatcher.EVENT_CONNECTED, 2, 0);
+        dispatcher.post(LinkEventDispatcher.EVENT_RECONNECTING, 1, 250);
+        dispatcher.removeListener(listener);
+        dispatcher.post(LinkEventDispatcher.EVENT_CONNECTED, 2, 0);
+
+        assertEquals("connected 2;reconnecting 1 250;", events.toString());
+    }
+
+    @Test(timeout = 10000)
+    public void deliversEveryEventPostedConcurrently() throws Exception {
+        final LinkEventDispatcher dispatcher = new LinkEventDispatcher();
+        final AtomicLong delivered = new AtomicLong();
+        dispatcher.addListener(new LinkListener() {
+            @Override
+            public void onLatencySample(long rttNanos) {
+                delivered.incrementAndGet();
+            }
+        });
+
+        final int perThread = 100000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= perThread; i++) {
+                        dispatcher.post(LinkEventDispatcher.EVENT_LATENCY_SAMPLE, i, 0);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // events dropped on overflow are counted, never silently lost
+        assertEquals(threads.length * perThread, delivered.get() + dispatcher.droppedEvents());
+    }
+}
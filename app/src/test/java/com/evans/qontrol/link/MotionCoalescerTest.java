@@ -0,0 +1,153 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MotionCoalescerTest {
+
+    private final RecordingSink mSink = new RecordingSink();
+    private final MotionCoalescer mCoalescer = new MotionCoalescer(mSink);
+
+    @Test
+    public void passesThroughWhenLinkIsIdle() {
+        mSink.mIdle = true;
+        mCoalescer.move(1, 2);
+        mCoalescer.move(3, 4);
+        assertEquals("move 1 2,move 3 4", mSink.events());
+    }
+
+    @Test
+    public void sumsDeltasWhileLinkIsBusy() {
+        mSink.mIdle = false;
+        for (int i = 0; i < 10; i++) {
+            mCoalescer.move(1, -2);
+            mCoalescer.scroll(0, 1);
+        }
+        assertEquals("", mSink.events());
+
+        mSink.mIdle = true;
+        mCoalescer.onLinkReady();
+        assertEquals("move 10 -20,scroll 0 10", mSink.events());
+        assertEquals(18, mCoalescer.coalescedEvents());
+    }
+
+    @Test
+    public void neverMergesAcrossButtonBoundaries() {
+        mSink.mIdle = false;
+        mCoalescer.move(5, 5);
+        mCoalescer.button(true, 0);
+        mCoalescer.move(7, 7);
+        mCoalescer.button(false, 0);
+        mCoalescer.move(1, 1);
+        assertEquals("move 5 5,down 0,move 7 7,up 0", mSink.events());
+    }
+
+    @Test
+    public void spacesMotionByInterval() {
+        mSink.mIdle = true;
+        mCoalescer.setInterval(TimeUnit.SECONDS.toNanos(10));
+        mCoalescer.move(1, 1);
+        mCoalescer.move(2, 2);
+        assertEquals("", mSink.events());
+        assertTrue(mSink.mScheduled > 0);
+        assertTrue(mSink.mScheduled <= TimeUnit.SECONDS.toNanos(10));
+
+        // the window closes when the rate is raised again
+        mCoalescer.setInterval(0);
+        mCoalescer.onFlushDue();
+        assertEquals("move 3 3", mSink.events());
+        mCoalescer.move(1, 0);
+        assertEquals("move 3 3,move 1 0", mSink.events());
+    }
+
+    @Test(timeout = 10000)
+    public void writerIsNotHeldUpBySink() throws Exception {
+        final CountDownLatch inSink = new CountDownLatch(1);
+        final CountDownLatch writerDone = new CountDownLatch(1);
+        final MotionCoalescer coalescer = new MotionCoalescer(new RecordingSink() {
+            @Override
+            public void onButton(boolean down, int button) {
+                super.onButton(down, button);
+                inSink.countDown();
+                // a full queue waiting for the writer to make room
+                try {
+                    writerDone.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                coalescer.setInterval(1000);
+                coalescer.onLinkReady();
+                writerDone.countDown();
+            }
+        });
+
+        coalescer.move(1, 1);
+        final CountDownLatch pressed = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                coalescer.button(true, 0);
+                pressed.countDown();
+            }
+        });
+        producer.start();
+        assertTrue(inSink.await(5, TimeUnit.SECONDS));
+        writer.start();
+        assertTrue(writerDone.await(5, TimeUnit.SECONDS));
+        assertTrue(pressed.await(5, TimeUnit.SECONDS));
+        assertEquals(1000, coalescer.getInterval());
+    }
+
+    private static class RecordingSink implements MotionCoalescer.Sink {
+        boolean mIdle;
+        long mScheduled;
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public boolean isLinkIdle() {
+            return mIdle;
+        }
+
+        @Override
+        public void onPointerMove(int dx, int dy) {
+            mEvents.add("move " + dx + " " + dy);
+        }
+
+        @Override
+        public void onScroll(int dx, int dy) {
+            mEvents.add("scroll " + dx + " " + dy);
+        }
+
+        @Override
+        public void onButton(boolean down, int button) {
+            mEvents.add((down ? "down " : "up ") + button);
+        }
+
+        @Override
+        public void scheduleFlush(long delayNanos) {
+            mScheduled = delayNanos;
+        }
+
+        String events() {
+            StringBuilder sb = new StringBuilder();
+            for (String event : mEvents) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(event);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void drainsFramesInOrderIntoOneBatch() {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.POLICY_BLOCK, 0);
+        assertTrue(queue.offer(new byte[]{1, 2}, 0, 2, 0));
+        assertTrue(queue.offer(new byte[]{9, 3, 4, 9}, 1, 2, 0));
+
+        byte[] batch = new byte[queue.capacity()];
+        assertEquals(4, queue.drainTo(batch));
+        assertEquals(1, batch[0]);
+        assertEquals(4, batch[3]);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.POLICY_DROP_OLDEST, 0);
+        byte[] frame = new byte[12];
+        for (int i = 0; i < 10; i++) {
+            frame[0] = (byte) i;
+            assertTrue(queue.offer(frame, 0, frame.length, 0));
+        }
+        // 16 bytes per record, 4 records fit
+        assertEquals(6, queue.droppedFrames());
+
+        byte[] batch = new byte[queue.capacity()];
+        assertEquals(48, queue.drainTo(batch));
+        assertEquals(6, batch[0]);
+    }
+
+    @Test
+    public void coalesceEvictsOnlyCoalescibleFrames() {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.POLICY_COALESCE, 0);
+        byte[] frame = new byte[12];
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(frame, 0, frame.length, OutboundQueue.FLAG_COALESCIBLE));
+        }
+        assertTrue(queue.offer(frame, 0, frame.length, 0));
+        assertEquals(1, queue.droppedFrames());
+
+        // the non-coalescible frame is never evicted, so the queue eventually refuses
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer(frame, 0, frame.length, 0));
+        }
+        assertFalse(queue.offer(frame, 0, frame.length, OutboundQueue.FLAG_COALESCIBLE));
+    }
+
+    @Test(timeout = 10000)
+    public void blockWithoutTimeoutRefusesAtOnce() {
+        // no consumer runs, so a producer that waited would wait forever
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.POLICY_BLOCK, 0);
+        byte[] frame = new byte[12];
+        for (int i = 0; i < 4; i++) {
+            frame[0] = (byte) i;
+            assertTrue(queue.offer(frame, 0, frame.length, 0));
+        }
+        assertFalse(queue.offer(frame, 0, frame.length, 0));
+        assertEquals(1, queue.droppedFrames());
+
+        // the queued frames are kept
+        byte[] batch = new byte[queue.capacity()];
+        assertEquals(48, queue.drainTo(batch));
+        assertEquals(0, batch[0]);
+    }
+
+    @Test(timeout = 10000)
+    public void blockingQueueLosesNothingAcrossThreads() throws Exception {
+        final OutboundQueue queue = new OutboundQueue(256, OutboundQueue.POLICY_BLOCK, 10000);
+        final CountingStream out = new CountingStream();
+        OutboundWriter writer = new OutboundWriter(queue, out, new OutboundWriter.Callback() {
+            @Override
+            public void onBatchReady(byte[] batch, int bytes) {
+            }
+
+            @Override
+            public void onBatchWritten(int bytes, long stallNanos) {
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                fail(e.getMessage());
+            }
+        });
+        Thread writerThread = new Thread(writer);
+        writerThread.start();
+
+        final int frames = 200000;
+        byte[] frame = new byte[3];
+        for (int i = 0; i < frames; i++) {
+            frame[0] = (byte) i;
+            frame[1] = (byte) (i >>> 8);
+            frame[2] = (byte) (i >>> 16);
+            assertTrue(queue.offer(frame, 0, frame.length, 0));
+        }
+        while (!queue.isEmpty()) {
+            Thread.sleep(1);
+        }
+        writer.cancel();
+        writerThread.join();
+
+        assertEquals(0, queue.droppedFrames());
+        assertEquals(frames, out.mFrames);
+    }
+
+    /**
+     * Checks frames arrive in sequence and counts them.
+     */
+    private static class CountingStream extends ByteArrayOutputStream {
+        private int mFrames;
+        private int mPartial;
+        private int mValue;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                mValue |= (b[i] & 0xFF) << (8 * mPartial);
+                if (++mPartial == 3) {
+                    assertEquals(mFrames & 0xFFFFFF, mValue);
+                    mFrames++;
+                    mPartial = 0;
+                    mValue = 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.macro.Macro;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameDecompressor;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transport.LoopbackTransport;
+import com.evans.qontrol.transport.Transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QLinkServiceTest {
+
+    @Test(timeout = 10000)
+    public void sendsFramesOverLoopback() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        QLinkService service = new QLinkService();
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+
+        int keys = 10000;
+        for (int i = 0; i < keys; i++) {
+            service.sendKey(true, i, 0);
+        }
+
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        for (int i = 0; i < keys; i++) {
+            assertTrue(decoder.readFrame(frame));
+            assertEquals(Opcodes.KEY_DOWN, frame.opcode());
+            assertEquals(i, frame.readInt());
+        }
+
+        service.stop();
+        assertEquals(QLinkService.STATE_NONE, service.getState());
+        service.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void reconnectsAndResumesSession() throws Exception {
+        final BlockingQueue<LoopbackTransport> servers = new LinkedBlockingQueue<>();
+        QLinkService service = new QLinkService();
+        service.setReconnectPolicy(new ReconnectPolicy(200, 400, 5, new Random(1)));
+        service.connect(new Transport.Factory() {
+            @Override
+            public Transport newTransport() throws IOException {
+                LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+                servers.add(pair[1]);
+                return pair[0];
+            }
+        });
+
+        LoopbackTransport server = servers.poll(5, TimeUnit.SECONDS);
+        FrameDecoder decoder = new FrameDecoder(server.getInputStream());
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        frame.readInt();
+        assertEquals(Opcodes.HELLO_COMPRESS | Opcodes.HELLO_SEQUENCE | Opcodes.HELLO_MACRO,
+                frame.readInt());
+
+        // the server assigns a session, then the link drops
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(Opcodes.SESSION).putVarint(77).finish();
+        encoder.writeTo(server.getOutputStream());
+        while (service.getSessionToken() != 77) {
+            Thread.sleep(1);
+        }
+        server.close();
+        while (service.getState() != QLinkService.STATE_RECONNECTING) {
+            Thread.sleep(1);
+        }
+        service.sendKey(false, 30, 0);
+        service.sendPointerMove(5, 5);
+
+        server = servers.poll(5, TimeUnit.SECONDS);
+        decoder = new FrameDecoder(server.getInputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        frame.readInt();
+        assertEquals(Opcodes.HELLO_RESUME | Opcodes.HELLO_COMPRESS | Opcodes.HELLO_SEQUENCE
+                | Opcodes.HELLO_MACRO,
+                frame.readInt());
+        assertEquals(77, frame.readVarint());
+        encoder.begin(Opcodes.SESSION).putVarint(77).finish();
+        encoder.writeTo(server.getOutputStream());
+
+        // the key release was held, the stale move was not
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.KEY_UP, frame.opcode());
+        assertEquals(QLinkService.STATE_CONNECTED, service.getState());
+        assertEquals(0, server.getInputStream().available());
+
+        service.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void compressesTextOnceAccepted() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        QLinkService service = new QLinkService();
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1000) {
+            text.append("git commit -m \"Fix the thing\" && git push origin master; ");
+        }
+        service.sendText(text.toString());
+
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        // sent before the server answered, so as it is
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.TEXT, frame.opcode());
+
+        // frames are handled in order, so the pong means the features were applied
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(Opcodes.FEATURES).putVarint(Opcodes.HELLO_COMPRESS).finish();
+        encoder.writeTo(pair[1].getOutputStream());
+        encoder.encodePing(9);
+        encoder.writeTo(pair[1].getOutputStream());
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.PONG);
+
+        service.sendText(text.toString());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.COMPRESSED, frame.opcode());
+        assertTrue(frame.remaining() < text.length() / 4);
+        Frame inner = new Frame();
+        new FrameDecompressor().decompress(frame, inner);
+        assertEquals(Opcodes.TEXT, inner.opcode());
+        assertEquals(text.toString(), inner.readString());
+        service.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void dropsSilentLinkWithoutWaitingForRead() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        final CountDownLatch lost = new CountDownLatch(1);
+        QLinkService service = new QLinkService();
+        service.setReconnectPolicy(null);
+        service.setProbeInterval(200);
+        service.addListener(new LinkListener() {
+            @Override
+            public void onConnectionLost() {
+                lost.countDown();
+            }
+        });
+        service.connect(pair[0]);
+
+        // answer the first heartbeat, then go quiet without closing anything
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        FrameEncoder encoder = new FrameEncoder();
+        Frame frame = new Frame();
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.PING);
+        encoder.encodePong(frame.readVarint());
+        encoder.writeTo(pair[1].getOutputStream());
+        long start = System.nanoTime();
+
+        assertTrue(lost.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // the interval plus MAX_MISSES timeouts at the shortest timeout
+        assertTrue("Lost after " + elapsed + " ms", elapsed >= 200 && elapsed < 3000);
+        assertEquals(QLinkService.STATE_NONE, service.getState());
+        service.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void replaysUnacknowledgedFramesAfterDrop() throws Exception {
+        final BlockingQueue<LoopbackTransport> servers = new LinkedBlockingQueue<>();
+        QLinkService service = new QLinkService();
+        service.setReconnectPolicy(new ReconnectPolicy(50, 100, 5, new Random(1)));
+        service.connect(new Transport.Factory() {
+            @Override
+            public Transport newTransport() throws IOException {
+                LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+                servers.add(pair[1]);
+                return pair[0];
+            }
+        });
+        LoopbackTransport server = servers.poll(5, TimeUnit.SECONDS);
+        FrameDecoder decoder = new FrameDecoder(server.getInputStream());
+        FrameEncoder encoder = new FrameEncoder();
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        encoder.begin(Opcodes.SESSION).putVarint(5).finish();
+        encoder.writeTo(server.getOutputStream());
+        encoder.begin(Opcodes.FEATURES).putVarint(Opcodes.HELLO_SEQUENCE).finish();
+        encoder.writeTo(server.getOutputStream());
+        while (service.getSessionToken() != 5) {
+            Thread.sleep(1);
+        }
+        // frames are handled in order, so the pong means sequencing is on
+        encoder.encodePing(1);
+        encoder.writeTo(server.getOutputStream());
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.PONG);
+
+        service.sendKey(true, 30, 0);
+        service.sendKey(false, 30, 0);
+        assertEquals(1, readSequenced(decoder, frame));
+        assertEquals(Opcodes.KEY_DOWN, frame.opcode());
+        assertEquals(2, readSequenced(decoder, frame));
+        assertEquals(Opcodes.KEY_UP, frame.opcode());
+
+        // the server handled the press, but the release was lost with the link
+        encoder.encodeAck(1);
+        encoder.writeTo(server.getOutputStream());
+        // frames are handled in order, so the pong means the ack was too
+        encoder.encodePing(2);
+        encoder.writeTo(server.getOutputStream());
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.PONG);
+        server.close();
+        while (service.getState() != QLinkService.STATE_RECONNECTING) {
+            Thread.sleep(1);
+        }
+        service.sendPointerMove(3, 3);
+        service.sendKey(true, 31, 0);
+
+        server = servers.poll(5, TimeUnit.SECONDS);
+        decoder = new FrameDecoder(server.getInputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        encoder.begin(Opcodes.SESSION).putVarint(5).finish();
+        encoder.writeTo(server.getOutputStream());
+        assertEquals(2, readSequenced(decoder, frame));
+        assertEquals(Opcodes.KEY_UP, frame.opcode());
+        assertEquals(30, frame.readInt());
+        assertEquals(3, readSequenced(decoder, frame));
+        assertEquals(Opcodes.KEY_DOWN, frame.opcode());
+        assertEquals(31, frame.readInt());
+        // the replay went out before the pong, so nothing else was replayed
+        encoder.encodePing(3);
+        encoder.writeTo(server.getOutputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.PONG, frame.opcode());
+        service.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void dropsHeldInputWhenSessionIsNotResumed() throws Exception {
+        final BlockingQueue<LoopbackTransport> servers = new LinkedBlockingQueue<>();
+        QLinkService service = new QLinkService();
+        service.setReconnectPolicy(new ReconnectPolicy(50, 100, 5, new Random(1)));
+        service.connect(new Transport.Factory() {
+            @Override
+            public Transport newTransport() throws IOException {
+                LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+                servers.add(pair[1]);
+                return pair[0];
+            }
+        });
+        LoopbackTransport server = servers.poll(5, TimeUnit.SECONDS);
+        FrameDecoder decoder = new FrameDecoder(server.getInputStream());
+        FrameEncoder encoder = new FrameEncoder();
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        startSession(server, decoder, frame, 5);
+
+        Macro macro = new Macro.Builder().tap(29, 0).build();
+        service.sendKey(true, 30, 0);
+        assertTrue(service.sendMacro(macro));
+        assertTrue(service.sendMacro(macro));
+        assertEquals(1, readSequenced(decoder, frame));
+        assertEquals(2, readSequenced(decoder, frame));
+        assertEquals(Opcodes.MACRO, frame.opcode());
+        assertEquals(3, readSequenced(decoder, frame));
+        assertEquals(Opcodes.MACRO_RUN, frame.opcode());
+
+        // nothing acknowledged, then the server restarts and forgets the session
+        server.close();
+        while (service.getState() != QLinkService.STATE_RECONNECTING) {
+            Thread.sleep(1);
+        }
+        service.sendKey(false, 30, 0);
+
+        server = servers.poll(5, TimeUnit.SECONDS);
+        decoder = new FrameDecoder(server.getInputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        frame.readInt();
+        assertTrue((frame.readInt() & Opcodes.HELLO_RESUME) != 0);
+        assertEquals(5, frame.readVarint());
+        // none of the old session's frames come before the pong
+        startSession(server, decoder, frame, 9);
+        assertEquals(9, service.getSessionToken());
+
+        // numbering starts over, and the macro goes out whole again
+        service.sendKey(true, 31, 0);
+        assertTrue(service.sendMacro(macro));
+        assertEquals(1, readSequenced(decoder, frame));
+        assertEquals(Opcodes.KEY_DOWN, frame.opcode());
+        assertEquals(31, frame.readInt());
+        assertEquals(2, readSequenced(decoder, frame));
+        assertEquals(Opcodes.MACRO, frame.opcode());
+        service.shutdown();
+    }
+
+    /**
+     * Answer HELLO with a session, sequencing and macros, and wait until the service has
+     * applied them.
+     */
+    private static void startSession(LoopbackTransport server, FrameDecoder decoder,
+                                     Frame frame, long token) throws IOException {
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(Opcodes.SESSION).putVarint(token).finish();
+        encoder.writeTo(server.getOutputStream());
+        encoder.begin(Opcodes.FEATURES)
+                .putVarint(Opcodes.HELLO_SEQUENCE | Opcodes.HELLO_MACRO).finish();
+        encoder.writeTo(server.getOutputStream());
+        // frames are handled in order, so the pong means both were applied
+        encoder.encodePing(1);
+        encoder.writeTo(server.getOutputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.PONG, frame.opcode());
+    }
+
+    /**
+     * Read a SEQUENCED frame and point the frame at the frame it carries.
+     * @return The sequence number.
+     */
+    private static long readSequenced(FrameDecoder decoder, Frame frame) throws IOException {
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.SEQUENCED, frame.opcode());
+        long sequence = frame.readVarint();
+        int opcode = frame.readByte();
+        int length = frame.remaining();
+        frame.set(opcode, frame.buffer(), frame.skipBytes(length), length);
+        return sequence;
+    }
+
+    @Test(timeout = 10000)
+    public void serializesConcurrentProducers() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        final QLinkService service = new QLinkService();
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+
+        // raw writes, as a SessionReplayer makes them, alongside coalescible ones, which take
+        // none of the service's locks
+        final int frames = 20000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final int[] accepted = new int[1];
+        final Thread keys = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FrameEncoder encoder = new FrameEncoder();
+                awaitQuietly(start);
+                for (int i = 1; i <= frames; i++) {
+                    encoder.encodeKey(true, i, 0);
+                    if (service.write(encoder.array(), encoder.offset(), encoder.length(), 0)) {
+                        accepted[0]++;
+                    }
+                }
+            }
+        });
+        final Thread motion = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FrameEncoder encoder = new FrameEncoder();
+                awaitQuietly(start);
+                for (int i = 0; i < frames; i++) {
+                    encoder.encodePointerMove(1, -1);
+                    service.write(encoder.array(), encoder.offset(), encoder.length(),
+                            OutboundQueue.FLAG_COALESCIBLE);
+                }
+            }
+        });
+        Thread end = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    keys.join();
+                    motion.join();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // marks the end of the burst
+                service.sendKey(false, 0, 0);
+            }
+        });
+        keys.start();
+        motion.start();
+        end.start();
+        start.countDown();
+
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        int received = 0;
+        int lastKey = 0;
+        while (true) {
+            assertTrue(decoder.readFrame(frame));
+            if (frame.opcode() == Opcodes.KEY_UP) {
+                break;
+            }
+            if (frame.opcode() == Opcodes.KEY_DOWN) {
+                int key = frame.readInt();
+                assertTrue(key > lastKey);
+                lastKey = key;
+                received++;
+            }
+        }
+        end.join();
+        assertEquals(accepted[0], received);
+        service.shutdown();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void survivesConcurrentConnectAndStop() throws Exception {
+        LinkExecutor executor = new LinkExecutor();
+        final QLinkService service = new QLinkService(executor);
+        final Transport.Factory factory = new Transport.Factory() {
+            @Override
+            public Transport newTransport() throws IOException {
+                return LoopbackTransport.pair(1024)[0];
+            }
+        };
+
+        // hammer the lifecycle from several threads while others send
+        int threads = 8;
+        final int rounds = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < rounds; i++) {
+                            if (id % 4 == 0) {
+                                service.stop();
+                            } else if (id % 4 == 1) {
+                                service.sendKey(true, i, 0);
+                                service.sendPointerMove(1, 1);
+                                service.getState();
+                            } else {
+                                service.connect(factory);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        assertNull(failure[0]);
+
+        service.stop();
+        assertEquals(QLinkService.STATE_NONE, service.getState());
+
+        // every connection of every generation winds down, on a bounded number of threads
+        long deadline = System.currentTimeMillis() + 10000;
+        while (executor.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getActiveCount());
+        assertTrue(executor.getPoolSize() <= LinkExecutor.MAX_IO_THREADS + 2);
+        assertEquals(QLinkService.STATE_NONE, service.getState());
+
+        // and the service still connects afterwards
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        service.sendKey(true, 42, 0);
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.KEY_DOWN, frame.opcode());
+        assertEquals(42, frame.readInt());
+
+        // shutdown leaves no worker behind; a terminated worker may take a moment to die
+        assertTrue(service.shutdown());
+        deadline = System.currentTimeMillis() + 1000;
+        while (countWorkerThreads() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, countWorkerThreads());
+    }
+
+    private static int countWorkerThreads() {
+        Thread[] threads = new Thread[Thread.activeCount() * 2 + 16];
+        int count = Thread.enumerate(threads);
+        int workers = 0;
+        for (int i = 0; i < count; i++) {
+            if (threads[i].getName().startsWith("QLink-")) {
+                workers++;
+            }
+        }
+        return workers;
+    }
+}
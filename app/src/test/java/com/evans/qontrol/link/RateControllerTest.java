@@ -0,0 +1,50 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RateControllerTest {
+
+    @Test
+    public void halvesOncePerCongestionEvent() {
+        RateController controller = new RateController();
+        assertEquals(RateController.MAX_RATE, controller.getRate());
+        // a burst of stalled writes within the holdoff is one event
+        for (int i = 0; i < 10; i++) {
+            controller.onWrite(ms(i * 10), ms(40), 0);
+        }
+        assertEquals(RateController.MAX_RATE / 2, controller.getRate());
+        controller.onWrite(ms(300), 0, 4096);
+        assertEquals(RateController.MAX_RATE / 4, controller.getRate());
+        assertEquals(2, controller.decreases());
+        assertEquals(ms(40), controller.maxStallNanos());
+    }
+
+    @Test
+    public void recoversAdditively() {
+        RateController controller = new RateController();
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            controller.onWrite(now += ms(300), ms(100), 0);
+        }
+        assertEquals(RateController.MIN_RATE, controller.getRate());
+        assertEquals(ms(100), controller.getIntervalNanos());
+
+        // a clear link gains a step every 100 ms, not every write
+        for (int i = 0; i < 100; i++) {
+            controller.onWrite(now += ms(10), ms(1), 100);
+        }
+        assertEquals(RateController.MIN_RATE + 10 * 10, controller.getRate());
+        for (int i = 0; i < 1000; i++) {
+            controller.onWrite(now += ms(10), ms(1), 100);
+        }
+        assertEquals(RateController.MAX_RATE, controller.getRate());
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,91 @@
+package com.evans.qontrol.link;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+
+    @Test
+    public void keepsFramesUntilAcknowledged() {
+        ReplayBuffer buffer = new ReplayBuffer(256);
+        for (int i = 1; i <= 5; i++) {
+            buffer.add(i, new byte[]{(byte) i, (byte) i}, 0, 2);
+        }
+        assertEquals(2, buffer.acknowledge(2));
+        assertEquals(0, buffer.acknowledge(2));
+        byte[] batch = new byte[buffer.capacity()];
+        assertEquals(6, buffer.copyTo(batch));
+        assertArrayEquals(new byte[]{3, 3, 4, 4, 5, 5}, Arrays.copyOf(batch, 6));
+        // copying does not consume
+        assertEquals(3, buffer.frameCount());
+        assertEquals(3, buffer.acknowledge(Long.MAX_VALUE));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void heldFramesGoWithFirstAcknowledgement() {
+        ReplayBuffer buffer = new ReplayBuffer(256);
+        buffer.add(0, new byte[1], 0, 1);
+        buffer.add(0, new byte[1], 0, 1);
+        buffer.add(7, new byte[1], 0, 1);
+        assertEquals(2, buffer.acknowledge(0));
+        assertEquals(1, buffer.frameCount());
+    }
+
+    @Test
+    public void dropsUnsequencedFramesAnywhere() {
+        ReplayBuffer buffer = new ReplayBuffer(64);
+        // start near the end of the ring so the kept frames move across the wrap
+        buffer.add(1, new byte[20], 0, 20);
+        buffer.acknowledge(1);
+        for (int i = 1; i <= 4; i++) {
+            buffer.add(i % 2 == 0 ? 0 : i, new byte[]{(byte) i}, 0, 1);
+        }
+        assertEquals(2, buffer.dropUnsequenced());
+        assertEquals(2, buffer.frameCount());
+        byte[] batch = new byte[buffer.capacity()];
+        assertEquals(2, buffer.copyTo(batch));
+        assertArrayEquals(new byte[]{1, 3}, Arrays.copyOf(batch, 2));
+        // and the ring is usable after the compaction
+        assertTrue(buffer.add(5, new byte[]{5}, 0, 1));
+        assertEquals(3, buffer.copyTo(batch));
+        assertArrayEquals(new byte[]{1, 3, 5}, Arrays.copyOf(batch, 3));
+    }
+
+    @Test
+    public void neverEvictsPinnedFrames() {
+        ReplayBuffer buffer = new ReplayBuffer(64);
+        byte[] frame = new byte[10];
+        assertTrue(buffer.add(1, frame, 0, frame.length));
+        assertTrue(buffer.add(2, true, frame, 0, frame.length));
+        // the first frame makes room, the pinned one does not
+        assertTrue(buffer.add(3, frame, 0, frame.length));
+        assertFalse(buffer.add(4, frame, 0, frame.length));
+        assertEquals(1, buffer.evictedFrames());
+        assertEquals(2, buffer.frameCount());
+
+        assertEquals(1, buffer.acknowledge(2));
+        assertTrue(buffer.add(4, frame, 0, frame.length));
+    }
+
+    @Test
+    public void evictsOldestAcrossWrap() {
+        ReplayBuffer buffer = new ReplayBuffer(64);
+        byte[] frame = new byte[10];
+        for (int i = 1; i <= 20; i++) {
+            frame[0] = (byte) i;
+            buffer.add(i, frame, 0, frame.length);
+        }
+        // 22 byte records, two fit in 64 bytes
+        assertEquals(2, buffer.frameCount());
+        assertEquals(18, buffer.evictedFrames());
+        byte[] batch = new byte[buffer.capacity()];
+        assertEquals(20, buffer.copyTo(batch));
+        assertEquals(19, batch[0]);
+        assertEquals(20, batch[10]);
+        assertEquals(1, buffer.acknowledge(19));
+    }
+}
@@ -0,0 +1,181 @@
+package com.evans.qontrol.link;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transfer.ByteArraySource;
+import com.evans.qontrol.transport.LoopbackTransport;
+import com.evans.qontrol.transport.Transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferTest {
+
+    @Test(timeout = 20000)
+    public void streamsFileUnderCreditAndResumes() throws Exception {
+        byte[] content = new byte[300 * 1024];
+        new Random(7).nextBytes(content);
+        File file = File.createTempFile("transfer", ".bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        final BlockingQueue<LoopbackTransport> servers = new LinkedBlockingQueue<>();
+        final BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+        final long[] progress = new long[1];
+        QLinkService service = new QLinkService();
+        service.setReconnectPolicy(new ReconnectPolicy(50, 100, 5, new Random(1)));
+        service.addListener(new LinkListener() {
+            @Override
+            public void onTransferProgress(int transferId, long bytesAcked) {
+                progress[0] = bytesAcked;
+            }
+
+            @Override
+            public void onTransferFinished(int transferId, int state) {
+                finished.add(state);
+            }
+        });
+        service.connect(new Transport.Factory() {
+            @Override
+            public Transport newTransport() throws IOException {
+                LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+                servers.add(pair[1]);
+                return pair[0];
+            }
+        });
+        LoopbackTransport server = servers.poll(5, TimeUnit.SECONDS);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+
+        Transfer transfer = service.sendFile(file);
+        FrameDecoder decoder = new FrameDecoder(server.getInputStream());
+        FrameEncoder encoder = new FrameEncoder();
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        int id = readOffer(decoder, frame, content.length, file.getName());
+
+        // nothing is sent beyond the credit
+        encoder.encodeTransferCredit(id, 0, 64 * 1024);
+        encoder.writeTo(server.getOutputStream());
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        readData(decoder, frame, received, 64 * 1024);
+        // the writer sends a chunk whenever no input waits, so one beyond the credit would
+        // come ahead of the pong
+        encoder.encodePing(1);
+        encoder.writeTo(server.getOutputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.PONG, frame.opcode());
+
+        encoder.encodeTransferCredit(id, 40 * 1024, 100 * 1024);
+        encoder.writeTo(server.getOutputStream());
+        readData(decoder, frame, received, 100 * 1024);
+        while (progress[0] != 40 * 1024) {
+            Thread.sleep(1);
+        }
+
+        // the link drops; the new server kept only the first 80 KB
+        server.close();
+        server = servers.poll(5, TimeUnit.SECONDS);
+        decoder = new FrameDecoder(server.getInputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        assertEquals(id, readOffer(decoder, frame, content.length, file.getName()));
+        assertEquals(Transfer.STATE_WAITING, transfer.getState());
+
+        encoder.encodeTransferCredit(id, 80 * 1024, content.length);
+        encoder.writeTo(server.getOutputStream());
+        received = new ByteArrayOutputStream();
+        received.write(content, 0, 80 * 1024);
+        assertTrue(readData(decoder, frame, received, content.length));
+        assertArrayEquals(content, received.toByteArray());
+
+        encoder.encodeTransferCredit(id, content.length, content.length);
+        encoder.writeTo(server.getOutputStream());
+        assertEquals(Transfer.STATE_DONE, (int) finished.poll(5, TimeUnit.SECONDS));
+        assertEquals(content.length, transfer.getBytesAcked());
+
+        service.shutdown();
+        file.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void serverCancelEndsTransfer() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        QLinkService service = new QLinkService();
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        Transfer transfer = service.sendClipboard("hello");
+        assertEquals(Transfer.CHANNEL_CLIPBOARD, transfer.getChannel());
+
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.encodeTransferCancel(transfer.getId(), Opcodes.CANCEL_REFUSED);
+        encoder.writeTo(pair[1].getOutputStream());
+        while (!transfer.isFinished()) {
+            Thread.sleep(1);
+        }
+        assertEquals(Transfer.STATE_FAILED, transfer.getState());
+        service.shutdown();
+    }
+
+    @Test
+    public void failsWhenNotConnected() {
+        QLinkService service = new QLinkService();
+        Transfer transfer = service.startTransfer(Opcodes.TRANSFER_CLIPBOARD, null,
+                new ByteArraySource(new byte[10]));
+        assertEquals(Transfer.STATE_FAILED, transfer.getState());
+        service.shutdown();
+    }
+
+    private static int readOffer(FrameDecoder decoder, Frame frame, long size, String name)
+            throws IOException {
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.TRANSFER_OFFER, frame.opcode());
+        int id = frame.readInt();
+        assertEquals(Transfer.CHANNEL_FILE, frame.readInt());
+        assertEquals(Opcodes.TRANSFER_FILE, frame.readInt());
+        assertEquals(size, frame.readVarint());
+        assertEquals(name, frame.readString());
+        return id;
+    }
+
+    /**
+     * Read chunks until the received bytes reach the given length.
+     * @return true if the last chunk marked the end of the transfer.
+     */
+    private static boolean readData(FrameDecoder decoder, Frame frame,
+                                    ByteArrayOutputStream received, int length)
+            throws IOException {
+        boolean end = false;
+        while (received.size() < length) {
+            assertTrue(decoder.readFrame(frame));
+            if (frame.opcode() != Opcodes.CHANNEL_DATA) {
+                continue;
+            }
+            assertEquals(Transfer.CHANNEL_FILE, frame.readInt());
+            end = (frame.readInt() & Opcodes.CHANNEL_END) != 0;
+            int count = frame.remaining();
+            assertTrue(count <= ChannelMux.DEFAULT_CHUNK_SIZE);
+            received.write(frame.buffer(), frame.skipBytes(count), count);
+        }
+        assertEquals(length, received.size());
+        return end;
+    }
+}
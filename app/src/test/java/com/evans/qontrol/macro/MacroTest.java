@@ -0,0 +1,137 @@
+package com.evans.qontrol.macro;
+
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transport.LoopbackTransport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class MacroTest {
+
+    private static Macro copyPaste() {
+        return new Macro.Builder()
+                .tap(29, 0x1000)
+                .delay(50)
+                .text("hello")
+                .drag(1, 100, 40, 4, 8)
+                .build();
+    }
+
+    @Test
+    public void interpreterReplaysBuiltEvents() throws Exception {
+        Macro macro = copyPaste();
+        final StringBuilder log = new StringBuilder();
+        Frame program = new Frame();
+        program.set(Opcodes.MACRO, macro.getProgram(), 0, macro.length());
+        int events = MacroInterpreter.run(program, new MacroInterpreter.Handler() {
+            public void onKey(boolean down, int keyCode, int modifiers) {
+                log.append(down ? "D" : "U").append(keyCode).append(' ');
+            }
+
+            public void onText(String text) {
+                log.append('"').append(text).append("\" ");
+            }
+
+            public void onMove(int dx, int dy) {
+                log.append('M').append(dx).append(',').append(dy).append(' ');
+            }
+
+            public void onScroll(int dx, int dy) {
+                log.append('S').append(dx).append(',').append(dy).append(' ');
+            }
+
+            public void onButton(boolean down, int button) {
+                log.append(down ? "B" : "b").append(button).append(' ');
+            }
+
+            public void onWait(int millis) {
+                log.append('W').append(millis).append(' ');
+            }
+        });
+        assertEquals(macro.eventCount(), events);
+        assertEquals("D29 U29 W50 \"hello\" B1 M25,10 W8 M25,10 W8 M25,10 W8 M25,10 W8 b1 ",
+                log.toString());
+    }
+
+    @Test
+    public void equalMacrosShareContentHash() {
+        assertEquals(copyPaste(), copyPaste());
+        assertEquals(copyPaste().contentHash(), copyPaste().contentHash());
+        Macro other = new Macro.Builder().tap(29, 0).build();
+        assertFalse(copyPaste().equals(other));
+
+        // one frame costs less than the frames it replaces
+        FrameEncoder encoder = new FrameEncoder();
+        int separate = 0;
+        for (int i = 0; i < 100; i++) {
+            separate += encoder.encodePointerMove(3, -2);
+        }
+        Macro.Builder builder = new Macro.Builder();
+        for (int i = 0; i < 100; i++) {
+            builder.move(3, -2);
+        }
+        assertTrue(builder.build().encode(encoder, 0) < separate);
+        // running it again costs four bytes
+        assertEquals(4, encoder.encodeMacroRun(0));
+    }
+
+    @Test
+    public void cacheEvictsLeastRecentlyUsed() {
+        MacroCache cache = new MacroCache(2);
+        Macro a = new Macro.Builder().tap(1, 0).build();
+        Macro b = new Macro.Builder().tap(2, 0).build();
+        Macro c = new Macro.Builder().tap(3, 0).build();
+        assertEquals(0, cache.assign(a));
+        assertEquals(1, cache.assign(b));
+        assertEquals(0, cache.lookup(a));
+        // b is the least recently used, so c takes its slot
+        assertEquals(1, cache.assign(c));
+        assertEquals(-1, cache.lookup(b));
+        cache.remove(a);
+        assertEquals(0, cache.assign(b));
+        assertEquals(2, cache.size());
+    }
+
+    @Test(timeout = 10000)
+    public void sendsDefinitionOnceThenSlot() throws Exception {
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        QLinkService service = new QLinkService();
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        // not until the server says it runs macros
+        assertFalse(service.sendMacro(copyPaste()));
+
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(Opcodes.FEATURES).putVarint(Opcodes.HELLO_MACRO).finish();
+        encoder.writeTo(pair[1].getOutputStream());
+        encoder.encodePing(9);
+        encoder.writeTo(pair[1].getOutputStream());
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.PONG);
+
+        assertTrue(service.sendMacro(copyPaste()));
+        assertTrue(service.sendMacro(copyPaste()));
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.MACRO, frame.opcode());
+        long slot = frame.readVarint();
+        assertEquals(copyPaste().length(), frame.remaining());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.MACRO_RUN, frame.opcode());
+        assertEquals(slot, frame.readVarint());
+        service.shutdown();
+    }
+}
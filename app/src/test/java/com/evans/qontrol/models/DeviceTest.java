@@ -0,0 +1,60 @@
+package com.evans.qontrol.models;
+
+import com.evans.qontrol.discovery.MacAddress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceTest {
+
+    private static final long MAC = MacAddress.parse("00:1A:7D:DA:71:13");
+
+    @Test
+    public void mergeReturnsThisWhenNothingChanged() {
+        Device device = new Device(MAC, "Laptop", -60, 10, 100);
+
+        // names come from the system as fresh strings
+        assertSame(device, device.merge(new Device(MAC, new String("Laptop"), -60, 10, 100)));
+        // an older report or one without a name or signal changes nothing either
+        assertSame(device, device.merge(new Device(MAC, null, Device.RSSI_UNKNOWN, 10, 50)));
+    }
+
+    @Test
+    public void mergeKeepsKnownNameAndSignal() {
+        Device device = new Device(MAC, "Laptop", -60, 10, 100);
+
+        Device merged = device.merge(new Device(MAC, null, Device.RSSI_UNKNOWN, 12, 200));
+        assertEquals("Laptop", merged.getName());
+        assertEquals(-60, merged.getRssi());
+        assertEquals(12, merged.getBondState());
+        assertEquals(200, merged.getLastSeen());
+
+        merged = merged.merge(new Device(MAC, "Desktop", -45, 12, 300));
+        assertEquals("Desktop", merged.getName());
+        assertEquals(-45, merged.getRssi());
+    }
+
+    @Test
+    public void formatsAddress() {
+        Device device = new Device(MAC, "Laptop", -60, 10, 100);
+
+        assertEquals("00:1A:7D:DA:71:13", device.getAddress());
+        assertSame(device.getAddress(), device.getAddress());
+        assertEquals("00:00:00:00:00:01", new Device(1, null, -60, 10, 0).getAddress());
+    }
+
+    @Test
+    public void equalsComparesEveryField() {
+        Device device = new Device(MAC, "Laptop", -60, 10, 100);
+        Device same = new Device(MAC, new String("Laptop"), -60, 10, 100);
+
+        assertEquals(device, same);
+        assertEquals(device.hashCode(), same.hashCode());
+        assertFalse(device.equals(new Device(MAC, "Laptop", -61, 10, 100)));
+        assertFalse(device.equals(new Device(MAC, null, -60, 10, 100)));
+        assertFalse(device.equals(new Device(MAC + 1, "Laptop", -60, 10, 100)));
+        // a device keeps its row as its signal changes
+        assertEquals(device.hashCode(), new Device(MAC, "Laptop", -80, 12, 500).hashCode());
+    }
+}
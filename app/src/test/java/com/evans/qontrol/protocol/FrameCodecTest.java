@@ -0,0 +1,110 @@
+package com.evans.qontrol.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    @Test
+    public void inputFramesAreCompact() throws Exception {
+        FrameEncoder encoder = new FrameEncoder();
+        assertEquals(5, encoder.encodeKey(true, 30, 0));
+        assertEquals(5, encoder.encodePointerMove(-3, 7));
+        assertEquals(4, encoder.encodeButton(false, Opcodes.BUTTON_LEFT));
+    }
+
+    @Test
+    public void roundTripsFields() throws Exception {
+        for (boolean checksum : new boolean[]{false, true}) {
+            FrameEncoder encoder = new FrameEncoder(checksum);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            encoder.encodePointerMove(-129, Integer.MAX_VALUE);
+            encoder.writeTo(out);
+            encoder.encodeText("h\u00e9llo");
+            encoder.writeTo(out);
+            encoder.begin(Opcodes.PING).putVarint(Long.MAX_VALUE).putSignedVarint(Long.MIN_VALUE).finish();
+            encoder.writeTo(out);
+
+            FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()));
+            Frame frame = new Frame();
+
+            assertTrue(decoder.readFrame(frame));
+            assertEquals(Opcodes.POINTER_MOVE, frame.opcode());
+            assertEquals(-129, frame.readSignedInt());
+            assertEquals(Integer.MAX_VALUE, frame.readSignedInt());
+            assertEquals(0, frame.remaining());
+
+            assertTrue(decoder.readFrame(frame));
+            assertEquals(Opcodes.TEXT, frame.opcode());
+            assertEquals("h\u00e9llo", frame.readString());
+
+            assertTrue(decoder.readFrame(frame));
+            assertEquals(Long.MAX_VALUE, frame.readVarint());
+            assertEquals(Long.MIN_VALUE, frame.readSignedVarint());
+
+            assertFalse(decoder.readFrame(frame));
+        }
+    }
+
+    @Test
+    public void decodesLargestFrameOneByteAtATime() throws Exception {
+        byte[] payload = new byte[Protocol.MAX_BODY_LENGTH - 1];
+        Arrays.fill(payload, (byte) 0x5A);
+        FrameEncoder encoder = new FrameEncoder(true);
+        encoder.begin(Opcodes.TEXT).putBytes(payload, 0, payload.length).finish();
+        byte[] bytes = Arrays.copyOfRange(encoder.array(), encoder.offset(),
+                encoder.offset() + encoder.length());
+
+        FrameDecoder decoder = new FrameDecoder(new TrickleInputStream(new ByteArrayInputStream(bytes)));
+        Frame frame = new Frame();
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(payload.length, frame.length());
+        assertEquals(0x5A, frame.readByte());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedBody() throws Exception {
+        byte[] payload = new byte[Protocol.MAX_BODY_LENGTH];
+        new FrameEncoder().begin(Opcodes.TEXT).putBytes(payload, 0, payload.length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void detectsCorruption() throws Exception {
+        FrameEncoder encoder = new FrameEncoder(true);
+        encoder.encodeKey(true, 30, 0);
+        byte[] bytes = Arrays.copyOfRange(encoder.array(), encoder.offset(),
+                encoder.offset() + encoder.length());
+        bytes[3] ^= 0x01;
+        new FrameDecoder(new ByteArrayInputStream(bytes)).readFrame(new Frame());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownVersion() throws Exception {
+        byte[] bytes = {(byte) 0x70, 0x01, Opcodes.PING};
+        new FrameDecoder(new ByteArrayInputStream(bytes)).readFrame(new Frame());
+    }
+
+    /**
+     * Hands out at most one byte per read, like a congested socket.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
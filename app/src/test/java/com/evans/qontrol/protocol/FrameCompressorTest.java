@@ -0,0 +1,115 @@
+package com.evans.qontrol.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+
+    private static final String TEXT = "Hi, thank you for your email. I would like to know when "
+            + "the new version will be ready, and whether it works with the old one. ";
+
+    @Test
+    public void compressedFramesParseAsTheOriginal() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        FrameEncoder encoder = new FrameEncoder(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encodeText(TEXT + TEXT);
+        int length = encoder.length();
+        assertTrue(encoder.compress(compressor) < length);
+        encoder.writeTo(out);
+        // short frames are left as they are
+        encoder.encodeText("ls -la");
+        length = encoder.length();
+        assertEquals(length, encoder.compress(compressor));
+        encoder.writeTo(out);
+
+        final StringBuilder received = new StringBuilder();
+        FrameParser parser = new FrameParser();
+        parser.setDecompressor(new FrameDecompressor());
+        parser.register(Opcodes.TEXT, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                received.append(frame.readString()).append('|');
+            }
+        });
+        byte[] bytes = out.toByteArray();
+        parser.feed(bytes, 0, bytes.length);
+        assertEquals(TEXT + TEXT + "|ls -la|", received.toString());
+        compressor.end();
+    }
+
+    @Test
+    public void leavesIncompressibleFrames() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] noise = new byte[1000];
+        new Random(5).nextBytes(noise);
+        int length = encoder.encodeChannelData(2, 0, noise, 0, noise.length);
+        assertEquals(length, encoder.compress(compressor));
+        compressor.end();
+
+        Frame frame = new Frame();
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+                encoder.array(), encoder.offset(), encoder.length()));
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.CHANNEL_DATA, frame.opcode());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsWrongLength() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.encodeText(TEXT);
+        encoder.compress(compressor);
+        compressor.end();
+
+        // claim one byte more than the body inflates to
+        Frame frame = new Frame();
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+                encoder.array(), encoder.offset(), encoder.length()));
+        assertTrue(decoder.readFrame(frame));
+        byte[] payload = new byte[frame.remaining()];
+        System.arraycopy(frame.buffer(), frame.skipBytes(payload.length), payload, 0,
+                payload.length);
+        payload[0]++;
+        frame.set(Opcodes.COMPRESSED, payload, 0, payload.length);
+        new FrameDecompressor().decompress(frame, new Frame());
+    }
+
+    @Test
+    public void roundTripsEverySize() throws Exception {
+        FrameCompressor compressor = new FrameCompressor(1);
+        FrameEncoder encoder = new FrameEncoder();
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4096) {
+            text.append(TEXT);
+        }
+
+        final StringBuilder received = new StringBuilder();
+        FrameParser parser = new FrameParser();
+        parser.setDecompressor(new FrameDecompressor());
+        parser.register(Opcodes.TEXT, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                received.append(frame.readString());
+            }
+        });
+        for (int size : new int[]{1, 16, 32, 48, 64, 128, 512, 4000}) {
+            String body = text.substring(0, size);
+            int original = encoder.encodeText(body);
+            assertTrue(encoder.compress(compressor) <= original);
+
+            received.setLength(0);
+            parser.feed(encoder.array(), encoder.offset(), encoder.length());
+            assertEquals(body, received.toString());
+        }
+        compressor.end();
+    }
+}
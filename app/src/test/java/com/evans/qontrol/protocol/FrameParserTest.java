@@ -0,0 +1,138 @@
+package com.evans.qontrol.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameParserTest {
+
+    @Test
+    public void reassemblesFramesSplitAcrossReads() throws Exception {
+        byte[] stream = syntheticStream(5000, true, new Random(1));
+        Random random = new Random(2);
+
+        FrameParser parser = new FrameParser();
+        SequenceChecker checker = new SequenceChecker(5000);
+        parser.setDefaultHandler(checker);
+
+        int offset = 0;
+        while (offset < stream.length) {
+            // anything from a single byte to many frames at once
+            int length = Math.min(stream.length - offset, 1 + random.nextInt(random.nextBoolean() ? 4 : 4096));
+            parser.feed(stream, offset, length);
+            offset += length;
+        }
+        assertEquals(5000, checker.mNext);
+        assertEquals(0, parser.bufferedBytes());
+    }
+
+    @Test
+    public void dispatchesByOpcode() throws Exception {
+        FrameEncoder encoder = new FrameEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encodePing(42);
+        encoder.writeTo(out);
+        encoder.encodeKey(true, 30, 0);
+        encoder.writeTo(out);
+
+        final long[] ping = new long[1];
+        FrameParser parser = new FrameParser();
+        parser.register(Opcodes.PING, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                ping[0] = frame.readVarint();
+            }
+        });
+        byte[] bytes = out.toByteArray();
+        parser.feed(bytes, 0, bytes.length);
+
+        assertEquals(42, ping[0]);
+        assertEquals(2, parser.frameCount());
+    }
+
+    @Test
+    public void keepsParsingAcrossRepeatedStreams() throws Exception {
+        byte[] stream = syntheticStream(20000, false, new Random(3));
+        int[] chunks = new int[4096];
+        Random random = new Random(4);
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = 1 + random.nextInt(700);
+        }
+
+        FrameParser parser = new FrameParser();
+        SequenceChecker checker = new SequenceChecker(20000);
+        parser.setDefaultHandler(checker);
+
+        // the buffer is reused from one stream to the next; ReadLoopBenchmark measures the cost
+        for (int i = 0; i < 5; i++) {
+            feedChunked(parser, stream, chunks);
+        }
+        assertEquals(5 * 20000, checker.mNext);
+        assertEquals(0, parser.bufferedBytes());
+    }
+
+    private static void feedChunked(FrameParser parser, byte[] stream, int[] chunks)
+            throws IOException {
+        int offset = 0;
+        int chunk = 0;
+        while (offset < stream.length) {
+            int length = Math.min(stream.length - offset, chunks[chunk++ & (chunks.length - 1)]);
+            parser.feed(stream, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Frames of mixed types, each carrying its sequence number as the first field.
+     */
+    private static byte[] syntheticStream(int frames, boolean large, Random random) {
+        FrameEncoder encoder = new FrameEncoder(random.nextBoolean());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] padding = new byte[Protocol.MAX_BODY_LENGTH];
+        for (int i = 0; i < frames; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    encoder.begin(Opcodes.POINTER_MOVE).putVarint(i)
+                            .putSignedVarint(random.nextInt(200) - 100).putSignedVarint(-3);
+                    break;
+                case 1:
+                    encoder.begin(Opcodes.KEY_DOWN).putVarint(i).putVarint(30);
+                    break;
+                case 2:
+                    // now and then a frame close to the maximum size
+                    int length = large && random.nextInt(50) == 0
+                            ? Protocol.MAX_BODY_LENGTH - 8 : random.nextInt(64);
+                    encoder.begin(Opcodes.TEXT).putVarint(i).putBytes(padding, 0, length);
+                    break;
+                default:
+                    encoder.begin(Opcodes.PING).putVarint(i).putVarint(System.nanoTime());
+                    break;
+            }
+            encoder.finish();
+            out.write(encoder.array(), encoder.offset(), encoder.length());
+        }
+        return out.toByteArray();
+    }
+
+    private static class SequenceChecker implements FrameHandler {
+        final int mPeriod;
+        int mNext;
+
+        SequenceChecker(int period) {
+            mPeriod = period;
+        }
+
+        @Override
+        public void onFrame(Frame frame) throws IOException {
+            long sequence = frame.readVarint();
+            if (sequence != mNext % mPeriod) {
+                fail("Expected frame " + mNext + " got " + sequence);
+            }
+            mNext++;
+        }
+    }
+}
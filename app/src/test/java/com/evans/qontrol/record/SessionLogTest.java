@@ -0,0 +1,138 @@
+package com.evans.qontrol.record;
+
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transport.LoopbackTransport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SessionLogTest {
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        File file = File.createTempFile("session", ".qrec");
+        SessionRecorder recorder = new SessionRecorder(file);
+
+        // two frames in one write, one of them with a checksum
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        FrameEncoder encoder = new FrameEncoder(true);
+        encoder.encodeKey(true, 30, 0);
+        encoder.writeTo(batch);
+        encoder = new FrameEncoder();
+        encoder.encodeText("hello");
+        encoder.writeTo(batch);
+        recorder.recordOutbound(batch.toByteArray(), 0, batch.size());
+        Frame frame = new Frame();
+        frame.set(Opcodes.PONG, new byte[]{0, 42}, 1, 1);
+        recorder.recordInbound(frame);
+        assertEquals(3, recorder.recordCount());
+        recorder.close();
+        assertEquals(SessionRecorder.HEADER_LENGTH + 3 * SessionRecorder.RECORD_HEADER + 3 + 7 + 2,
+                file.length());
+
+        SessionReader reader = new SessionReader(file);
+        assertTrue(reader.getStartMillis() > 0);
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.DIRECTION_OUT, reader.direction());
+        assertEquals(Opcodes.KEY_DOWN, reader.opcode());
+        assertEquals(3, reader.bodyLength());
+        assertTrue(reader.next());
+        assertEquals(Opcodes.TEXT, reader.opcode());
+        long sent = reader.timestampNanos();
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.DIRECTION_IN, reader.direction());
+        assertEquals(Opcodes.PONG, reader.opcode());
+        assertEquals(42, reader.body()[1]);
+        assertTrue(reader.timestampNanos() >= sent);
+        assertFalse(reader.next());
+        reader.close();
+        file.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void recordsBulkChunksAsWritten() throws Exception {
+        File file = File.createTempFile("session", ".qrec");
+        SessionRecorder recorder = new SessionRecorder(file);
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        QLinkService service = new QLinkService();
+        service.setRecorder(recorder);
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        // chunks are cut by the writer thread and never pass through write()
+        assertTrue(service.sendBulk(1, new byte[100], 0, 100));
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.CHANNEL_DATA);
+        service.shutdown();
+        recorder.close();
+
+        SessionReader reader = new SessionReader(file);
+        assertTrue(reader.next());
+        assertEquals(Opcodes.HELLO, reader.opcode());
+        // a heartbeat may have gone out in between
+        do {
+            assertTrue(reader.next());
+        } while (reader.opcode() != Opcodes.CHANNEL_DATA);
+        assertEquals(SessionRecorder.DIRECTION_OUT, reader.direction());
+        reader.close();
+        file.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void replaysInputThroughService() throws Exception {
+        File file = File.createTempFile("session", ".qrec");
+        SessionRecorder recorder = new SessionRecorder(file);
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        QLinkService service = new QLinkService();
+        service.setRecorder(recorder);
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        service.sendKey(true, 30, 0);
+        service.sendText("hi");
+        service.sendKey(false, 30, 0);
+        FrameDecoder decoder = new FrameDecoder(pair[1].getInputStream());
+        Frame frame = new Frame();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(decoder.readFrame(frame));
+        }
+        service.shutdown();
+        recorder.close();
+
+        pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        service = new QLinkService();
+        service.connect(pair[0]);
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        SessionReader reader = new SessionReader(file);
+        // the recorded HELLO is not replayed
+        assertEquals(3, new SessionReplayer(service).replay(reader, 4));
+        reader.close();
+
+        decoder = new FrameDecoder(pair[1].getInputStream());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.KEY_DOWN, frame.opcode());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals("hi", frame.readString());
+        assertTrue(decoder.readFrame(frame));
+        assertEquals(Opcodes.KEY_UP, frame.opcode());
+        service.shutdown();
+        file.delete();
+    }
+}
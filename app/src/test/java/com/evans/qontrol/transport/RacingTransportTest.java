@@ -0,0 +1,251 @@
+package com.evans.qontrol.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class RacingTransportTest {
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @Test(timeout = 5000)
+    public void keepsFirstToConnectAndClosesOthers() throws Exception {
+        FakeFactory slow = new FakeFactory(10000, false);
+        FakeFactory fast = new FakeFactory(0, false);
+        RacingTransport race = new RacingTransport(
+                Arrays.<Transport.Factory>asList(slow, fast), 50, mExecutor);
+
+        long start = System.nanoTime();
+        race.connect();
+        assertTrue(System.nanoTime() - start < 2000000000L);
+
+        assertEquals(1, race.getWinnerIndex());
+        assertSame(fast.mCreated.get(0), race.getWinner());
+        assertEquals("fake", race.getAddress());
+        assertTrue(slow.awaitClosed());
+        assertFalse(fast.mCreated.get(0).mClosed);
+        // the slow one lost, it did not fail
+        assertTrue(race.getFailedAddresses().isEmpty());
+
+        race.close();
+        assertTrue(fast.mCreated.get(0).mClosed);
+        mExecutor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void startsNextCandidateWhenOneFails() throws Exception {
+        FakeFactory failing = new FakeFactory(0, true);
+        FakeFactory working = new FakeFactory(0, false);
+        // a stagger this long would fail the test if it were waited out
+        RacingTransport race = new RacingTransport(
+                Arrays.<Transport.Factory>asList(failing, working), 60000, mExecutor);
+
+        race.connect();
+        assertEquals(1, race.getWinnerIndex());
+        assertEquals(Arrays.asList("fake"), race.getFailedAddresses());
+        race.close();
+        mExecutor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void failsWhenEveryCandidateFails() throws Exception {
+        RacingTransport race = new RacingTransport(Arrays.<Transport.Factory>asList(
+                new FakeFactory(0, true), new FakeFactory(20, true)), 10, mExecutor);
+        try {
+            race.connect();
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("2 candidates"));
+        }
+        assertEquals(-1, race.getWinnerIndex());
+        assertNull(race.getWinner());
+        assertEquals(Arrays.asList("fake", "fake"), race.getFailedAddresses());
+        mExecutor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void closeCancelsRace() throws Exception {
+        final FakeFactory first = new FakeFactory(10000, false);
+        final FakeFactory second = new FakeFactory(10000, false);
+        final RacingTransport race = new RacingTransport(
+                Arrays.<Transport.Factory>asList(first, second), 10, mExecutor);
+
+        new Thread() {
+            public void run() {
+                try {
+                    // close only once both are racing
+                    first.mConnecting.await();
+                    second.mConnecting.await();
+                    race.close();
+                } catch (Exception e) {
+                    // the race then runs into the test timeout
+                }
+            }
+        }.start();
+
+        try {
+            race.connect();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(first.awaitClosed());
+        assertTrue(second.awaitClosed());
+        mExecutor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void silentCandidateLosesToOneThatAnswers() throws Exception {
+        // connects at once, but never answers the handshake
+        FakeFactory silent = new FakeFactory(0, false);
+        silent.mSilent = true;
+        FakeFactory answering = new FakeFactory(0, false);
+        RacingTransport race = new RacingTransport(
+                Arrays.<Transport.Factory>asList(silent, answering), 10, HANDSHAKE, 60000,
+                mExecutor);
+
+        race.connect();
+        assertEquals(1, race.getWinnerIndex());
+        assertTrue(silent.awaitClosed());
+        race.close();
+        mExecutor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void failsCandidateThatDoesNotFinishHandshake() throws Exception {
+        FakeFactory silent = new FakeFactory(0, false);
+        silent.mSilent = true;
+        RacingTransport race = new RacingTransport(Arrays.<Transport.Factory>asList(
+                silent, new FakeFactory(0, true)), 10, HANDSHAKE, 50, mExecutor);
+        try {
+            race.connect();
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("2 candidates"));
+        }
+        assertTrue(silent.awaitClosed());
+        assertEquals(2, race.getFailedAddresses().size());
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Answers at once, unless the transport is silent; then it waits until it is closed.
+     */
+    private static final RacingTransport.Handshake HANDSHAKE = new RacingTransport.Handshake() {
+        @Override
+        public void perform(Transport transport) throws IOException {
+            FakeTransport fake = (FakeTransport) transport;
+            synchronized (fake) {
+                while (fake.mSilent && !fake.mClosed) {
+                    try {
+                        fake.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted");
+                    }
+                }
+                if (fake.mClosed) {
+                    throw new IOException("Closed during handshake");
+                }
+            }
+        }
+    };
+
+    private static class FakeFactory implements Transport.Factory {
+        final long mConnectMillis;
+        final boolean mFail;
+        boolean mSilent;
+        // counted down once a transport starts connecting
+        final CountDownLatch mConnecting = new CountDownLatch(1);
+        final List<FakeTransport> mCreated = new ArrayList<>();
+
+        FakeFactory(long connectMillis, boolean fail) {
+            mConnectMillis = connectMillis;
+            mFail = fail;
+        }
+
+        @Override
+        public synchronized Transport newTransport() {
+            FakeTransport transport = new FakeTransport(mConnectMillis, mFail, mConnecting);
+            transport.mSilent = mSilent;
+            mCreated.add(transport);
+            return transport;
+        }
+
+        boolean awaitClosed() throws InterruptedException {
+            for (int i = 0; i < 2000; i++) {
+                synchronized (this) {
+                    if (!mCreated.isEmpty() && mCreated.get(0).mClosed) {
+                        return true;
+                    }
+                }
+                Thread.sleep(1);
+            }
+            return false;
+        }
+    }
+
+    private static class FakeTransport implements Transport {
+        final long mConnectMillis;
+        final boolean mFail;
+        final CountDownLatch mConnecting;
+        volatile boolean mSilent;
+        volatile boolean mClosed;
+
+        FakeTransport(long connectMillis, boolean fail, CountDownLatch connecting) {
+            mConnectMillis = connectMillis;
+            mFail = fail;
+            mConnecting = connecting;
+        }
+
+        @Override
+        public int getType() {
+            return TYPE_LOOPBACK;
+        }
+
+        @Override
+        public String getAddress() {
+            return "fake";
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            mConnecting.countDown();
+            long deadline = System.currentTimeMillis() + mConnectMillis;
+            while (!mClosed && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (mClosed || mFail) {
+                throw new IOException("Connect failed");
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.evans.qontrol.transport;
+
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.link.ReconnectPolicy;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.Opcodes;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimulatedTransportTest {
+
+    @Test(timeout = 5000)
+    public void delaysAndThrottlesInOrder() throws Exception {
+        // 2000 bytes at 20000 bytes a second take 100 ms to send, then 30 to 40 ms to arrive
+        LinkConditions conditions = new LinkConditions().setDelay(30, 10).setBandwidth(20000);
+        SimulatedTransport[] pair = SimulatedTransport.pair(4096, conditions, new Random(1));
+        byte[] sent = new byte[2000];
+        new Random(2).nextBytes(sent);
+
+        long start = System.nanoTime();
+        pair[0].getOutputStream().write(sent);
+        byte[] received = new byte[sent.length];
+        InputStream in = pair[1].getInputStream();
+        long firstByte = 0;
+        for (int count = 0; count < received.length; ) {
+            count += in.read(received, count, received.length - count);
+            if (firstByte == 0) {
+                firstByte = System.nanoTime() - start;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertArrayEquals(sent, received);
+        // the first segment took 49.5 ms to send
+        assertTrue("first byte after " + firstByte, firstByte >= TimeUnit.MILLISECONDS.toNanos(79));
+        assertTrue("all bytes after " + elapsed, elapsed >= TimeUnit.MILLISECONDS.toNanos(130));
+        assertTrue("all bytes after " + elapsed, elapsed < TimeUnit.MILLISECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void sameSeedGivesSameLink() {
+        LinkConditions conditions = LinkConditions.noisyRfcomm();
+        long first = SimulatedTransport.pair(1024, conditions, new Random(7))[0].getLifetimeMillis();
+        long again = SimulatedTransport.pair(1024, conditions, new Random(7))[1].getLifetimeMillis();
+        long other = SimulatedTransport.pair(1024, conditions, new Random(8))[0].getLifetimeMillis();
+        assertEquals(first, again);
+        assertFalse(first == other);
+        assertEquals(-1, SimulatedTransport.pair(1024, LinkConditions.rfcomm(), new Random(7))[0]
+                .getLifetimeMillis());
+    }
+
+    @Test(timeout = 10000)
+    public void serviceReconnectsAfterDrop() throws Exception {
+        final BlockingQueue<SimulatedTransport> servers = new LinkedBlockingQueue<>();
+        final Random random = new Random(3);
+        QLinkService service = new QLinkService();
+        service.setReconnectPolicy(new ReconnectPolicy(50, 100, 5, new Random(1)));
+        service.connect(new Transport.Factory() {
+            @Override
+            public Transport newTransport() throws IOException {
+                SimulatedTransport[] pair = SimulatedTransport.pair(
+                        LoopbackTransport.DEFAULT_BUFFER_SIZE, LinkConditions.rfcomm(), random);
+                servers.add(pair[1]);
+                return pair[0];
+            }
+        });
+
+        SimulatedTransport server = servers.poll(5, TimeUnit.SECONDS);
+        Frame frame = new Frame();
+        assertTrue(new FrameDecoder(server.getInputStream()).readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+
+        server.drop();
+        try {
+            server.getInputStream().read();
+            fail("read from a dropped link");
+        } catch (IOException expected) {
+            // like a Bluetooth socket out of range
+        }
+        server = servers.poll(5, TimeUnit.SECONDS);
+        assertNotNull(server);
+        assertTrue(new FrameDecoder(server.getInputStream()).readFrame(frame));
+        assertEquals(Opcodes.HELLO, frame.opcode());
+        service.shutdown();
+    }
+}
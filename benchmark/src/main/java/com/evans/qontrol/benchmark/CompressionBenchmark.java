@@ -0,0 +1,113 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameCompressor;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameDecompressor;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/14/17.
+ *
+ * What compressing a TEXT frame costs, against what it saves on the wire. Compression pays
+ * when the gap between encodeAndCompress and encodeText is shorter than the saved bytes take
+ * to send; at about 20 KB/s over RFCOMM that is some 49 us a byte. The sizes do not change
+ * from run to run; set up only checks that every text does get smaller:
+ *
+ * <pre>
+ *   text   TEXT frame   COMPRESSED frame
+ *     32         36           15
+ *     64         68           35
+ *    128        134           80
+ *    512        518           85
+ *   4000       4006          110
+ * </pre>
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final String TEXT = "Hi, thank you for your email. I would like to know when "
+            + "the new version will be ready, and whether it works with the old one. ";
+
+    @Param({"32", "64", "128", "512", "4000"})
+    public int size;
+
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    // every size is tried, so the default threshold does not hide the short ones
+    private final FrameCompressor mCompressor = new FrameCompressor(1);
+    private final FrameDecompressor mDecompressor = new FrameDecompressor();
+    private final Frame mFrame = new Frame();
+    private final Frame mOut = new Frame();
+    private String mBody;
+    private byte[] mPayload;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < size) {
+            text.append(TEXT);
+        }
+        mBody = text.substring(0, size);
+
+        int original = mEncoder.encodeText(mBody);
+        int compressed = mEncoder.compress(mCompressor);
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+                mEncoder.array(), mEncoder.offset(), mEncoder.length()));
+        if (compressed >= original || !decoder.readFrame(mFrame)
+                || mFrame.opcode() != Opcodes.COMPRESSED) {
+            throw new IllegalStateException(size + " byte text does not compress");
+        }
+        mPayload = new byte[mFrame.remaining()];
+        System.arraycopy(mFrame.buffer(), mFrame.skipBytes(mPayload.length), mPayload, 0,
+                mPayload.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCompressor.end();
+        mDecompressor.end();
+    }
+
+    @Benchmark
+    public int encodeText() {
+        return mEncoder.encodeText(mBody);
+    }
+
+    @Benchmark
+    public int encodeAndCompress() {
+        mEncoder.encodeText(mBody);
+        return mEncoder.compress(mCompressor);
+    }
+
+    @Benchmark
+    public int decompress() throws IOException {
+        mFrame.set(Opcodes.COMPRESSED, mPayload, 0, mPayload.length);
+        mDecompressor.decompress(mFrame, mOut);
+        return mOut.remaining();
+    }
+}
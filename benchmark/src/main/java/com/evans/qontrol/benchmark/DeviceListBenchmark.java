@@ -0,0 +1,134 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.discovery.DeviceRegistry;
+import com.evans.qontrol.models.Device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/14/17.
+ *
+ * A discovery round: every known device is reported again with a new signal strength, and
+ * the {@link DeviceRegistry} works out the row changes and moves for the adapter. The bind
+ * benchmarks compare what a row reads from a Device with the HashMap rows DeviceAdapter used
+ * to bind; run with -prof gc for the bytes each kind of row allocates.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceListBenchmark {
+
+    @Param({"20", "500"})
+    public int devices;
+
+    // a few rounds of reports, replayed in turn
+    private static final int ROUNDS = 16;
+
+    private DeviceRegistry mRegistry;
+    private Device[][] mReports;
+    private int mRound;
+    private int mNotifications;
+    private List<Map<String, String>> mMaps;
+    private List<Device> mRows;
+
+    private final DeviceRegistry.Callback mCallback = new DeviceRegistry.Callback() {
+        @Override
+        public void onInserted(int position, int count) {
+            mNotifications++;
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            mNotifications++;
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mNotifications++;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mReports = new Device[ROUNDS][devices];
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int i = 0; i < devices; i++) {
+                mReports[r][i] = new Device(0x001A7D000000L + i * 7919L, ("Laptop " + i).intern(),
+                        -40 - random.nextInt(50), 10, r);
+            }
+        }
+        mRegistry = new DeviceRegistry(new ArrayList<Device>(devices));
+        for (Device report : mReports[0]) {
+            mRegistry.upsert(report);
+        }
+        mRegistry.dispatchUpdates(mCallback);
+
+        mMaps = new ArrayList<>(devices);
+        mRows = new ArrayList<>(devices);
+        for (Device device : mReports[0]) {
+            Map<String, String> map = new HashMap<>();
+            map.put("device_name", device.getName());
+            map.put("device_address", device.getAddress());
+            mMaps.add(map);
+            mRows.add(new Device(device.getMac(), device.getName(), device.getRssi(),
+                    device.getBondState(), device.getLastSeen()));
+        }
+    }
+
+    /**
+     * What onBindViewHolder read for each row before Device.
+     */
+    @Benchmark
+    public int bindMaps() {
+        int sum = 0;
+        for (int i = 0; i < mMaps.size(); i++) {
+            Map<String, String> map = mMaps.get(i);
+            sum += map.get("device_name").length();
+            sum += map.get("device_address").length();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int bindDevices() {
+        int sum = 0;
+        for (int i = 0; i < mRows.size(); i++) {
+            Device device = mRows.get(i);
+            sum += device.getName().length();
+            sum += device.getAddress().length();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int discoveryRound() {
+        mRound = (mRound + 1) % ROUNDS;
+        for (Device report : mReports[mRound]) {
+            mRegistry.upsert(report);
+        }
+        mRegistry.dispatchUpdates(mCallback);
+        return mNotifications;
+    }
+}
@@ -0,0 +1,77 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/14/17.
+ *
+ * Encoding single input frames, and decoding a recorded burst of them with the blocking
+ * {@link FrameDecoder} the way a server does.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private final Frame mFrame = new Frame();
+    private ByteArrayInputStream mBurst;
+    private FrameDecoder mDecoder;
+    private int mBurstFrames;
+
+    @Setup
+    public void setUp() throws IOException {
+        mBurstFrames = Workloads.BURST_FRAMES;
+        mBurst = new ByteArrayInputStream(Workloads.inputBurst(mBurstFrames));
+        mDecoder = new FrameDecoder(mBurst);
+    }
+
+    @Benchmark
+    public int encodeKey() {
+        return mEncoder.encodeKey(true, 30, 0);
+    }
+
+    @Benchmark
+    public int encodePointerMove() {
+        return mEncoder.encodePointerMove(-12, 7);
+    }
+
+    @Benchmark
+    public int encodeText() {
+        return mEncoder.encodeText(Workloads.TEXT);
+    }
+
+    /**
+     * Decode the whole burst; divide by {@link Workloads#BURST_FRAMES} for the cost of one
+     * frame.
+     */
+    @Benchmark
+    public void decodeBurst(Blackhole blackhole) throws IOException {
+        mBurst.reset();
+        while (mDecoder.readFrame(mFrame)) {
+            blackhole.consume(mFrame.opcode());
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.host.HostServer;
+import com.evans.qontrol.link.LatencyHistogram;
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.link.ReconnectPolicy;
+import com.evans.qontrol.transport.LinkConditions;
+import com.evans.qontrol.transport.LoopbackTransport;
+import com.evans.qontrol.transport.SimulatedTransport;
+import com.evans.qontrol.transport.TcpTransport;
+import com.evans.qontrol.transport.Transport;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by evans on 4/16/17.
+ *
+ * End-to-end load: many simulated phones, each a {@link QLinkService} on its own TCP
+ * connection, typing and moving the pointer at a fixed rate into a {@link HostServer} in the
+ * same process. Reports the events the host handled per second, the latency of key presses
+ * from sendKey() to the host, and the CPU time the whole process spent per event.
+ *
+ * Each session presses only its own key code, so the host can match every press to the time
+ * it was sent; keys are reliable and in order, while pointer motion may be coalesced on the
+ * way. Since phones and host share the process, CPU per event covers both ends.
+ *
+ * With --link rfcomm or --link noisy the phones reach the host over a
+ * {@link SimulatedTransport} instead of TCP, seeded by --seed, and reconnect whenever their
+ * link drops.
+ *
+ * Usage: LoadGenerator [--sessions 50] [--rate 200] [--seconds 10] [--warmup 2]
+ * [--link tcp|rfcomm|noisy] [--seed 1] [--out file]
+ */
+
+public class LoadGenerator {
+
+    private static final int DRIVER_THREADS = 4;
+    // one event in this many is a key press, and the next one its release
+    private static final int KEY_EVERY = 10;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private int mSessions = 50;
+    private int mRate = 200;
+    private int mSeconds = 10;
+    private int mWarmupSeconds = 2;
+    private String mLink = "tcp";
+    private long mSeed = 1;
+    private File mOut;
+
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicLong mHandled = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private SendTimes[] mSendTimes;
+    private QLinkService[] mServices;
+    private volatile boolean mRunning = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sessions":
+                    generator.mSessions = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    generator.mRate = Integer.parseInt(value);
+                    break;
+                case "--seconds":
+                    generator.mSeconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    generator.mWarmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--link":
+                    generator.mLink = value;
+                    break;
+                case "--seed":
+                    generator.mSeed = Long.parseLong(value);
+                    break;
+                case "--out":
+                    generator.mOut = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        mSendTimes = new SendTimes[mSessions];
+        for (int i = 0; i < mSessions; i++) {
+            mSendTimes[i] = new SendTimes();
+        }
+        final HostServer host = new HostServer(0, new Recorder());
+        host.start();
+
+        final LinkConditions conditions;
+        switch (mLink) {
+            case "tcp":
+                conditions = null;
+                break;
+            case "rfcomm":
+                conditions = LinkConditions.rfcomm();
+                break;
+            case "noisy":
+                conditions = LinkConditions.noisyRfcomm();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown link " + mLink);
+        }
+        mServices = new QLinkService[mSessions];
+        for (int i = 0; i < mSessions; i++) {
+            mServices[i] = new QLinkService();
+            if (conditions == null) {
+                mServices[i].connect(new TcpTransport("127.0.0.1", host.getPort(), 5000));
+                continue;
+            }
+            // a session's links depend on the seed and its index only
+            final Random random = new Random(mSeed * 31 + i);
+            mServices[i].setReconnectPolicy(
+                    new ReconnectPolicy(100, 2000, Integer.MAX_VALUE, random));
+            mServices[i].connect(new Transport.Factory() {
+                @Override
+                public Transport newTransport() throws IOException {
+                    SimulatedTransport[] pair = SimulatedTransport.pair(
+                            LoopbackTransport.DEFAULT_BUFFER_SIZE, conditions, random);
+                    host.accept(pair[1]);
+                    return pair[0];
+                }
+            });
+        }
+        for (QLinkService service : mServices) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (service.getState() != QLinkService.STATE_CONNECTED) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Session did not connect");
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        int drivers = Math.min(DRIVER_THREADS, mSessions);
+        final CountDownLatch done = new CountDownLatch(drivers);
+        for (int d = 0; d < drivers; d++) {
+            final int first = d;
+            final int step = drivers;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drive(first, step);
+                    done.countDown();
+                }
+            }, "load-driver-" + d);
+            thread.start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mWarmupSeconds));
+        mLatency.reset();
+        long sent = mSent.get();
+        long handled = mHandled.get();
+        long connections = host.getAcceptedCount();
+        long cpu = processCpuNanos();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mSeconds));
+        long elapsed = System.nanoTime() - start;
+        sent = mSent.get() - sent;
+        handled = mHandled.get() - handled;
+        connections = host.getAcceptedCount() - connections;
+        cpu = cpu >= 0 ? processCpuNanos() - cpu : -1;
+
+        mRunning = false;
+        done.await();
+        for (QLinkService service : mServices) {
+            service.shutdown();
+        }
+        host.stop();
+        report(elapsed, sent, handled, connections, cpu);
+    }
+
+    /**
+     * Send every session's share of events as they fall due.
+     * @param first The first session to drive.
+     * @param step The distance to the next one.
+     */
+    private void drive(int first, int step) {
+        long start = System.nanoTime();
+        long[] sentBySession = new long[mSessions];
+        while (mRunning) {
+            long due = (System.nanoTime() - start) * mRate / TimeUnit.SECONDS.toNanos(1);
+            for (int i = first; i < mSessions; i += step) {
+                for (long n = sentBySession[i]; n < due; n++) {
+                    sendEvent(i, n);
+                }
+                sentBySession[i] = due;
+            }
+            long sleep = TICK_NANOS - (System.nanoTime() - start) % TICK_NANOS;
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void sendEvent(int session, long n) {
+        QLinkService service = mServices[session];
+        switch ((int) (n % KEY_EVERY)) {
+            case 0:
+                mSendTimes[session].add(System.nanoTime());
+                service.sendKey(true, session, 0);
+                break;
+            case 1:
+                service.sendKey(false, session, 0);
+                break;
+            default:
+                service.sendPointerMove((int) (n % 7) - 3, (int) (n % 5) - 2);
+                break;
+        }
+        mSent.incrementAndGet();
+    }
+
+    /**
+     * @param reconnects The connections the host took while measuring.
+     */
+    private void report(long elapsedNanos, long sent, long handled, long reconnects,
+                        long cpuNanos) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        double cpuPerEvent = cpuNanos >= 0 && handled > 0 ? cpuNanos / (double) handled : -1;
+        System.out.println(String.format(Locale.US,
+                "%d sessions over %s at %d events/s for %.1f s: %d events sent, %d handled "
+                        + "(%.0f/s), %d reconnects",
+                mSessions, mLink, mRate, seconds, sent, handled, handled / seconds, reconnects));
+        System.out.println(String.format(Locale.US,
+                "key latency: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s (%d presses)",
+                micros(mLatency.getPercentile(50)), micros(mLatency.getPercentile(90)),
+                micros(mLatency.getPercentile(99)), micros(mLatency.getPercentile(99.9)),
+                micros(mLatency.getMax()), mLatency.getCount()));
+        System.out.println(String.format(Locale.US,
+                "cpu: %.2f us per event, phones and host together", cpuPerEvent / 1000));
+
+        String json = String.format(Locale.US,
+                "{\"sessions\":%d,\"link\":\"%s\",\"seed\":%d,\"rate\":%d,\"seconds\":%.3f,"
+                        + "\"sent\":%d,\"handled\":%d,\"reconnects\":%d,\"eventsPerSecond\":%.1f,"
+                        + "\"latencyNanos\":{\"p50\":%d,\"p90\":%d,"
+                        + "\"p99\":%d,\"p999\":%d,\"max\":%d,\"count\":%d},"
+                        + "\"cpuNanosPerEvent\":%.1f}",
+                mSessions, mLink, mSeed, mRate, seconds, sent, handled, reconnects,
+                handled / seconds, mLatency.getPercentile(50), mLatency.getPercentile(90),
+                mLatency.getPercentile(99), mLatency.getPercentile(99.9), mLatency.getMax(),
+                mLatency.getCount(), cpuPerEvent);
+        System.out.println(json);
+        if (mOut != null) {
+            File parent = mOut.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            Writer writer = new FileWriter(mOut);
+            try {
+                writer.write(json);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.0f us", nanos / 1000.0);
+    }
+
+    /**
+     * @return The CPU time used by the whole process, or -1 if the JVM cannot tell.
+     */
+    private static long processCpuNanos() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Send times of one session's key presses not yet seen by the host, oldest first.
+     */
+    private static class SendTimes {
+        private final long[] mmTimes = new long[4096];
+        private int mmHead;
+        private int mmTail;
+
+        synchronized void add(long time) {
+            if (mmTail - mmHead == mmTimes.length) {
+                // the host is far behind; its latency shows anyway
+                mmHead++;
+            }
+            mmTimes[mmTail++ & (mmTimes.length - 1)] = time;
+        }
+
+        /**
+         * @return The oldest send time, or 0 if there is none.
+         */
+        synchronized long poll() {
+            if (mmHead == mmTail) {
+                return 0;
+            }
+            return mmTimes[mmHead++ & (mmTimes.length - 1)];
+        }
+    }
+
+    private class Recorder implements HostServer.Listener {
+        @Override
+        public void onKey(long session, boolean down, int keyCode, int modifiers) {
+            if (down && keyCode >= 0 && keyCode < mSendTimes.length) {
+                long sent = mSendTimes[keyCode].poll();
+                if (sent != 0) {
+                    mLatency.record(System.nanoTime() - sent);
+                }
+            }
+            mHandled.incrementAndGet();
+        }
+
+        @Override
+        public void onText(long session, String text) {
+            mHandled.incrementAndGet();
+        }
+
+        @Override
+        public void onMove(long session, int dx, int dy) {
+            mHandled.incrementAndGet();
+        }
+
+        @Override
+        public void onScroll(long session, int dx, int dy) {
+            mHandled.incrementAndGet();
+        }
+
+        @Override
+        public void onButton(long session, boolean down, int button) {
+            mHandled.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameHandler;
+import com.evans.qontrol.protocol.FrameParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/14/17.
+ *
+ * The connection's read loop: a {@link FrameParser} fed from a stream that returns the burst
+ * in reads of a given size, as an RFCOMM socket does, dispatching every frame to a handler.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadLoopBenchmark {
+
+    // bytes a read returns at most; small reads split frames across reads
+    @Param({"16", "990", "65536"})
+    public int readSize;
+
+    private final FrameParser mParser = new FrameParser();
+    private InputStream mStream;
+    private long mChecksum;
+
+    @Setup
+    public void setUp() {
+        final byte[] burst = Workloads.inputBurst(Workloads.BURST_FRAMES);
+        mStream = new ByteArrayInputStream(burst) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, readSize));
+            }
+        };
+        mParser.setDefaultHandler(new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                mChecksum += frame.opcode() + frame.remaining();
+            }
+        });
+    }
+
+    @Benchmark
+    public long parseBurst() throws IOException {
+        mStream.reset();
+        while (mParser.readFrom(mStream) > 0) {
+            // dispatches as it reads
+        }
+        return mChecksum;
+    }
+}
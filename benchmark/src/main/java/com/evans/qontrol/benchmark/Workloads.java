@@ -0,0 +1,60 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.protocol.FrameEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Created by evans on 4/14/17.
+ *
+ * Input the benchmarks share, shaped like a real session: mostly pointer motion, with key
+ * presses, clicks, scrolling and the odd line of text.
+ */
+
+final class Workloads {
+
+    static final int BURST_FRAMES = 1000;
+
+    static final String TEXT = "git commit -m \"Fix the thing\"";
+
+    private Workloads() {
+    }
+
+    /**
+     * @return The given number of encoded input frames, back to back.
+     */
+    static byte[] inputBurst(int frames) {
+        FrameEncoder encoder = new FrameEncoder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (int i = 0; i < frames; i++) {
+                switch (i % 20) {
+                    case 0:
+                        encoder.encodeKey(true, 30 + i % 26, 0);
+                        break;
+                    case 1:
+                        encoder.encodeKey(false, 30 + i % 26, 0);
+                        break;
+                    case 2:
+                        encoder.encodeButton(i % 40 == 2, 1);
+                        break;
+                    case 3:
+                        encoder.encodeScroll(0, -3);
+                        break;
+                    case 4:
+                        encoder.encodeText(TEXT);
+                        break;
+                    default:
+                        encoder.encodePointerMove(i % 17 - 8, i % 11 - 5);
+                        break;
+                }
+                encoder.writeTo(out);
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,115 @@
+package com.evans.qontrol.benchmark;
+
+import com.evans.qontrol.link.OutboundQueue;
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.transport.LoopbackTransport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by evans on 4/14/17.
+ *
+ * The outbound path. {@link #queueAndDrain()} queues a burst of encoded frames and drains it
+ * into one batch write on a single thread, the work the writer does per wakeup.
+ * {@link #sendKey()} goes through a connected {@link QLinkService} over a loopback
+ * transport whose far end is read and discarded, so it includes the hand-off to the writer.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritePathBenchmark {
+
+    private static final int QUEUED_FRAMES = 32;
+
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private OutboundQueue mQueue;
+    private byte[] mBatch;
+    private final OutputStream mSink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private QLinkService mService;
+    private LoopbackTransport[] mPair;
+    private Thread mDrain;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mQueue = new OutboundQueue(64 * 1024, OutboundQueue.POLICY_DROP_OLDEST, 0);
+        mBatch = new byte[mQueue.capacity()];
+        mEncoder.encodeKey(true, 30, 0);
+
+        mPair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        mService = new QLinkService();
+        mService.connect(mPair[0]);
+        while (mService.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        final InputStream in = mPair[1].getInputStream();
+        mDrain = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // closed at tear down
+                }
+            }
+        }, "benchmark-drain");
+        mDrain.setDaemon(true);
+        mDrain.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mService.shutdown();
+        mPair[1].close();
+        mDrain.join(1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUEUED_FRAMES)
+    public int queueAndDrain() throws IOException {
+        for (int i = 0; i < QUEUED_FRAMES; i++) {
+            mQueue.offer(mEncoder.array(), mEncoder.offset(), mEncoder.length(), 0);
+        }
+        int bytes = mQueue.drainTo(mBatch);
+        mSink.write(mBatch, 0, bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public void sendKey() {
+        mService.sendKey(true, 30, 0);
+    }
+}
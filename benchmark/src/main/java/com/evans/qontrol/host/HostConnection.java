@@ -0,0 +1,255 @@
+package com.evans.qontrol.host;
+
+import com.evans.qontrol.macro.MacroInterpreter;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecompressor;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.FrameHandler;
+import com.evans.qontrol.protocol.FrameParser;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.protocol.Protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+
+/**
+ * Created by evans on 4/16/17.
+ *
+ * One phone connected to the {@link HostServer}. The read loop answers HELLO with the
+ * session and the features the host accepts, inflates COMPRESSED frames, drops replayed
+ * SEQUENCED frames it has handled already and runs stored macros. Replies go out from the
+ * read loop itself: a PONG for each PING, and one ACK after each read that handled a
+ * sequenced frame. The read loop never sleeps: a macro runs up to its first wait, and the
+ * rest is scheduled on the server's timer, so input that arrives meanwhile is handled at once.
+ */
+
+class HostConnection implements Runnable {
+
+    private final HostServer mServer;
+    private final InputStream mInStream;
+    private final OutputStream mOutStream;
+    private final Closeable mCloseable;
+    private final FrameParser mParser = new FrameParser();
+    private final FrameEncoder mEncoder = new FrameEncoder();
+    private final Frame mProgram = new Frame();
+    private FrameDecompressor mDecompressor;
+    private HostSession mSession;
+    private long mAcknowledged;
+    private boolean mUnflushed;
+
+    /**
+     * @param closeable Closes the connection, e.g. the socket the streams belong to.
+     */
+    HostConnection(HostServer server, InputStream in, OutputStream out, Closeable closeable) {
+        mServer = server;
+        mInStream = in;
+        mOutStream = new BufferedOutputStream(out, 4096);
+        mCloseable = closeable;
+    }
+
+    @Override
+    public void run() {
+        try {
+            registerHandlers();
+            while (mParser.readFrom(mInStream) >= 0) {
+                if (mSession != null && mSession.getLastSequence() > mAcknowledged) {
+                    mAcknowledged = mSession.getLastSequence();
+                    mEncoder.encodeAck(mAcknowledged);
+                    send();
+                }
+                if (mUnflushed) {
+                    mOutStream.flush();
+                    mUnflushed = false;
+                }
+            }
+        } catch (IOException e) {
+            // the phone went away or broke the protocol; the session waits for it either way
+        } finally {
+            if (mDecompressor != null) {
+                mDecompressor.end();
+            }
+            close();
+            mServer.onConnectionClosed(this, mSession);
+        }
+    }
+
+    void close() {
+        try {
+            mCloseable.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private void send() throws IOException {
+        mEncoder.writeTo(mOutStream);
+        mUnflushed = true;
+    }
+
+    private void registerHandlers() {
+        mParser.register(Opcodes.HELLO, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                int version = frame.readInt();
+                if (version != Protocol.VERSION || mSession != null) {
+                    throw new ProtocolException("Unexpected HELLO");
+                }
+                int flags = frame.readInt() & mServer.getFeatures();
+                long token = frame.readVarint();
+                mSession = mServer.attach((flags & Opcodes.HELLO_RESUME) != 0 ? token : 0,
+                        HostConnection.this);
+                if (mSession.getToken() != token) {
+                    flags &= ~Opcodes.HELLO_RESUME;
+                }
+                if ((flags & Opcodes.HELLO_COMPRESS) != 0) {
+                    mDecompressor = new FrameDecompressor();
+                    mParser.setDecompressor(mDecompressor);
+                }
+                mEncoder.begin(Opcodes.SESSION).putVarint(mSession.getToken()).finish();
+                send();
+                mEncoder.begin(Opcodes.FEATURES).putVarint(flags).finish();
+                send();
+                // let the phone drop what a resumed session handled already
+                mAcknowledged = mSession.getLastSequence();
+                if (mAcknowledged > 0) {
+                    mEncoder.encodeAck(mAcknowledged);
+                    send();
+                }
+            }
+        });
+        mParser.register(Opcodes.PING, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                mEncoder.encodePong(frame.readVarint());
+                send();
+            }
+        });
+        mParser.register(Opcodes.SEQUENCED, new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                long sequence = frame.readVarint();
+                if (session().accept(sequence)) {
+                    int opcode = frame.readByte();
+                    int length = frame.remaining();
+                    frame.set(opcode, frame.buffer(), frame.skipBytes(length), length);
+                    onInput(frame);
+                }
+            }
+        });
+        FrameHandler input = new FrameHandler() {
+            @Override
+            public void onFrame(Frame frame) throws IOException {
+                onInput(frame);
+            }
+        };
+        int[] inputOpcodes = {
+                Opcodes.KEY_DOWN, Opcodes.KEY_UP, Opcodes.TEXT, Opcodes.POINTER_MOVE,
+                Opcodes.BUTTON_DOWN, Opcodes.BUTTON_UP, Opcodes.SCROLL,
+                Opcodes.MACRO, Opcodes.MACRO_RUN, Opcodes.TRANSFER_OFFER};
+        for (int opcode : inputOpcodes) {
+            mParser.register(opcode, input);
+        }
+        // bulk data of refused transfers, and anything newer than this host
+        mParser.setDefaultHandler(null);
+    }
+
+    private void onInput(Frame frame) throws IOException {
+        HostSession session = session();
+        switch (frame.opcode()) {
+            case Opcodes.KEY_DOWN:
+            case Opcodes.KEY_UP:
+                session.onKey(frame.opcode() == Opcodes.KEY_DOWN, frame.readInt(), frame.readInt());
+                break;
+            case Opcodes.TEXT:
+                session.onText(frame.readString());
+                break;
+            case Opcodes.POINTER_MOVE:
+                session.onMove(frame.readSignedInt(), frame.readSignedInt());
+                break;
+            case Opcodes.SCROLL:
+                session.onScroll(frame.readSignedInt(), frame.readSignedInt());
+                break;
+            case Opcodes.BUTTON_DOWN:
+            case Opcodes.BUTTON_UP:
+                session.onButton(frame.opcode() == Opcodes.BUTTON_DOWN, frame.readInt());
+                break;
+            case Opcodes.MACRO: {
+                int slot = readSlot(frame);
+                int length = frame.remaining();
+                session.storeMacro(slot, frame.buffer(), frame.skipBytes(length), length);
+                runMacro(session, slot);
+                break;
+            }
+            case Opcodes.MACRO_RUN:
+                runMacro(session, readSlot(frame));
+                break;
+            case Opcodes.TRANSFER_OFFER:
+                // the reference host takes input only
+                mEncoder.encodeTransferCancel(frame.readInt(), Opcodes.CANCEL_REFUSED);
+                send();
+                break;
+            default:
+                // anything newer than this host
+                break;
+        }
+    }
+
+    private void runMacro(HostSession session, int slot) throws ProtocolException {
+        byte[] program = session.getMacro(slot);
+        if (program == null) {
+            // e.g. a run for a session this host no longer has; the phone sends the macro
+            // whole again once it learns the session is new
+            return;
+        }
+        mProgram.set(Opcodes.MACRO, program, 0, program.length);
+        runMacro(mServer, session, mProgram);
+    }
+
+    /**
+     * Run a program up to its next wait and schedule the rest after the wait.
+     */
+    private static void runMacro(final HostServer server, final HostSession session,
+                                 Frame program) throws ProtocolException {
+        int wait = MacroInterpreter.runToWait(program, session);
+        if (wait < 0 || program.remaining() == 0) {
+            return;
+        }
+        int length = program.remaining();
+        byte[] rest = new byte[length];
+        System.arraycopy(program.buffer(), program.skipBytes(length), rest, 0, length);
+        final Frame next = new Frame();
+        next.set(Opcodes.MACRO, rest, 0, length);
+        server.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (session.isReleased()) {
+                    return;
+                }
+                try {
+                    runMacro(server, session, next);
+                } catch (ProtocolException e) {
+                    // a malformed program stops where it broke, as it would have inline
+                }
+            }
+        }, wait);
+    }
+
+    private static int readSlot(Frame frame) throws ProtocolException {
+        int slot = frame.readInt();
+        if (slot < 0 || slot >= Opcodes.MACRO_SLOTS) {
+            throw new ProtocolException("Invalid macro slot " + slot);
+        }
+        return slot;
+    }
+
+    private HostSession session() throws ProtocolException {
+        if (mSession == null) {
+            throw new ProtocolException("Input before HELLO");
+        }
+        return mSession;
+    }
+}
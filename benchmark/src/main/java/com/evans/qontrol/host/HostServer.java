@@ -0,0 +1,324 @@
+package com.evans.qontrol.host;
+
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transport.TcpTransport;
+import com.evans.qontrol.transport.Transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by evans on 4/16/17.
+ *
+ * Reference implementation of the computer side of the protocol, listening on TCP the way
+ * the app's {@link TcpTransport} connects. Each connection gets a thread of its own and a
+ * {@link HostSession}; a session outlives its connection for the session timeout so a phone
+ * that reconnects in time resumes it, and when it expires every key and button it still
+ * holds is released. Input goes to a {@link Listener} instead of being injected, so the same
+ * code serves tests, load generation and a real host. Connections that arrive another way,
+ * e.g. the server end of a simulated link, are handed in with {@link #accept(Transport)}.
+ */
+
+public class HostServer {
+
+    /**
+     * Told about input events as they arrive, from the connection threads.
+     */
+    public interface Listener {
+        void onKey(long session, boolean down, int keyCode, int modifiers);
+
+        void onText(long session, String text);
+
+        void onMove(long session, int dx, int dy);
+
+        void onScroll(long session, int dx, int dy);
+
+        void onButton(long session, boolean down, int button);
+    }
+
+    public static final int DEFAULT_FEATURES = Opcodes.HELLO_RESUME | Opcodes.HELLO_COMPRESS
+            | Opcodes.HELLO_SEQUENCE | Opcodes.HELLO_MACRO;
+    public static final long DEFAULT_SESSION_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final int mPort;
+    private final Listener mListener;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService mSweeper = Executors.newSingleThreadScheduledExecutor();
+    private volatile int mFeatures = DEFAULT_FEATURES;
+    private volatile long mSessionTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SESSION_TIMEOUT);
+    private final AtomicLong mAccepted = new AtomicLong();
+
+    // guarded by this
+    private final Map<Long, HostSession> mSessions = new HashMap<>();
+    private final Set<HostConnection> mConnections = new HashSet<>();
+    private ServerSocket mServerSocket;
+
+    /**
+     * @param port The TCP port to listen on, or 0 for any free one.
+     */
+    public HostServer(int port, Listener listener) {
+        mPort = port;
+        mListener = listener;
+    }
+
+    /**
+     * @param features The HELLO_* flags to accept, {@link #DEFAULT_FEATURES} by default.
+     */
+    public void setFeatures(int features) {
+        mFeatures = features;
+    }
+
+    public int getFeatures() {
+        return mFeatures;
+    }
+
+    /**
+     * @param millis How long a session waits for its phone to reconnect.
+     */
+    public void setSessionTimeout(long millis) {
+        mSessionTimeout = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Listen on the loopback address and start accepting connections.
+     */
+    public void start() throws IOException {
+        start(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @param address The address to listen on, e.g. the wildcard address for a real host.
+     */
+    public synchronized void start(InetAddress address) throws IOException {
+        if (mServerSocket != null) {
+            throw new IllegalStateException("Already started");
+        }
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(address, mPort), 64);
+        mServerSocket = serverSocket;
+        mConnectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(serverSocket);
+            }
+        });
+        long period = Math.max(10, TimeUnit.NANOSECONDS.toMillis(mSessionTimeout) / 4);
+        mSweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireSessions(false);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The port listened on, or -1 before start().
+     */
+    public synchronized int getPort() {
+        return mServerSocket != null ? mServerSocket.getLocalPort() : -1;
+    }
+
+    public synchronized int getSessionCount() {
+        return mSessions.size();
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    public long getAcceptedCount() {
+        return mAccepted.get();
+    }
+
+    /**
+     * Close every connection and end every session, releasing what they hold.
+     */
+    public void stop() throws InterruptedException {
+        List<HostConnection> connections;
+        synchronized (this) {
+            if (mServerSocket != null) {
+                try {
+                    mServerSocket.close();
+                } catch (IOException e) {
+                    // closed anyway
+                }
+            }
+            connections = new ArrayList<>(mConnections);
+        }
+        for (HostConnection connection : connections) {
+            connection.close();
+        }
+        mSweeper.shutdownNow();
+        mConnectionExecutor.shutdown();
+        mConnectionExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        expireSessions(true);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // closed by stop()
+                break;
+            }
+            try {
+                socket.setTcpNoDelay(true);
+                serve(new HostConnection(this, socket.getInputStream(), socket.getOutputStream(),
+                        socket));
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // gone already
+                }
+            }
+        }
+    }
+
+    /**
+     * Serve a connection that did not come through the server socket.
+     * @param transport The server end of a connected Transport.
+     */
+    public void accept(Transport transport) throws IOException {
+        serve(new HostConnection(this, transport.getInputStream(), transport.getOutputStream(),
+                transport));
+    }
+
+    private void serve(HostConnection connection) {
+        synchronized (this) {
+            mConnections.add(connection);
+        }
+        mAccepted.incrementAndGet();
+        mConnectionExecutor.execute(connection);
+    }
+
+    /**
+     * Find the session a HELLO resumes, or start a new one, and attach the connection to it.
+     * A connection the session was still attached to is closed; the phone has moved on.
+     * @param token The token to resume, or 0.
+     */
+    HostSession attach(long token, HostConnection connection) {
+        HostSession session;
+        synchronized (this) {
+            session = token != 0 ? mSessions.get(token) : null;
+            if (session == null) {
+                long newToken;
+                do {
+                    newToken = mRandom.nextLong() & Long.MAX_VALUE;
+                } while (newToken == 0 || mSessions.containsKey(newToken));
+                session = new HostSession(newToken, mListener);
+                mSessions.put(newToken, session);
+            }
+        }
+        HostConnection previous = session.attach(connection);
+        if (previous != null && previous != connection) {
+            previous.close();
+        }
+        return session;
+    }
+
+    /**
+     * Run a task on the sweeper thread after a delay, e.g. the rest of a macro after a wait.
+     * Tasks still waiting when the server stops are dropped.
+     */
+    void schedule(Runnable task, long delayMillis) {
+        try {
+            mSweeper.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    void onConnectionClosed(HostConnection connection, HostSession session) {
+        synchronized (this) {
+            mConnections.remove(connection);
+        }
+        if (session != null) {
+            session.detach(connection, System.nanoTime());
+        }
+    }
+
+    private void expireSessions(boolean all) {
+        long now = System.nanoTime();
+        List<HostSession> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<HostSession> it = mSessions.values().iterator();
+            while (it.hasNext()) {
+                HostSession session = it.next();
+                if (all || session.isExpired(now, mSessionTimeout)) {
+                    it.remove();
+                    expired.add(session);
+                }
+            }
+        }
+        for (HostSession session : expired) {
+            session.release();
+        }
+    }
+
+    /**
+     * Run a host on the given port, {@link TcpTransport#DEFAULT_PORT} by default, and print
+     * how much input it takes every second.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : TcpTransport.DEFAULT_PORT;
+        final AtomicLong events = new AtomicLong();
+        HostServer server = new HostServer(port, new Listener() {
+            @Override
+            public void onKey(long session, boolean down, int keyCode, int modifiers) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void onText(long session, String text) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void onMove(long session, int dx, int dy) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void onScroll(long session, int dx, int dy) {
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void onButton(long session, boolean down, int button) {
+                events.incrementAndGet();
+            }
+        });
+        server.start(InetAddress.getByName("0.0.0.0"));
+        System.out.println("Listening on port " + server.getPort());
+        long last = 0;
+        while (true) {
+            Thread.sleep(1000);
+            long total = events.get();
+            System.out.println(String.format("%d connections, %d sessions, %d events/s",
+                    server.getConnectionCount(), server.getSessionCount(), total - last));
+            last = total;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.evans.qontrol.host;
+
+import com.evans.qontrol.macro.MacroInterpreter;
+import com.evans.qontrol.protocol.Opcodes;
+
+import java.util.Arrays;
+
+/**
+ * Created by evans on 4/16/17.
+ *
+ * What the host keeps of a session between connections: the highest sequence number
+ * handled, the macros stored in its slots, and the keys and buttons still held down, so they
+ * can be let go if the phone never comes back. Events of the session go through here on
+ * their way to the {@link HostServer.Listener}.
+ *
+ * Thread safe; events come from the attached connection, expiry from the server's sweeper.
+ */
+
+class HostSession implements MacroInterpreter.Handler {
+
+    private final long mToken;
+    private final HostServer.Listener mListener;
+    private final byte[][] mMacros = new byte[Opcodes.MACRO_SLOTS][];
+
+    private HostConnection mConnection;
+    private long mDetachedAt;
+    private long mLastSequence;
+    private boolean mReleased;
+
+    // held keys, key code in the high word and modifiers in the low one
+    private long[] mHeldKeys = new long[8];
+    private int mHeldKeyCount;
+    private int mHeldButtons;
+
+    HostSession(long token, HostServer.Listener listener) {
+        mToken = token;
+        mListener = listener;
+    }
+
+    long getToken() {
+        return mToken;
+    }
+
+    /**
+     * @return The connection the session was attached to before, or null.
+     */
+    synchronized HostConnection attach(HostConnection connection) {
+        HostConnection previous = mConnection;
+        mConnection = connection;
+        return previous;
+    }
+
+    synchronized void detach(HostConnection connection, long now) {
+        if (mConnection == connection) {
+            mConnection = null;
+            mDetachedAt = now;
+        }
+    }
+
+    /**
+     * @return true if no connection has been attached for the timeout.
+     */
+    synchronized boolean isExpired(long now, long timeoutNanos) {
+        return mConnection == null && now - mDetachedAt >= timeoutNanos;
+    }
+
+    synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * @return true if the frame is new and should be handled, false if it is a replay of one
+     * handled already.
+     */
+    synchronized boolean accept(long sequence) {
+        if (sequence <= mLastSequence) {
+            return false;
+        }
+        mLastSequence = sequence;
+        return true;
+    }
+
+    synchronized void storeMacro(int slot, byte[] program, int offset, int length) {
+        mMacros[slot] = Arrays.copyOfRange(program, offset, offset + length);
+    }
+
+    /**
+     * @return The program stored in the slot, or null.
+     */
+    synchronized byte[] getMacro(int slot) {
+        return mMacros[slot];
+    }
+
+    /**
+     * @return true once the session let go of its input, so a macro still waiting must not
+     * press anything again.
+     */
+    synchronized boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Let go of every key and button still held, e.g. once the session expired.
+     */
+    void release() {
+        long[] keys;
+        int buttons;
+        synchronized (this) {
+            mReleased = true;
+            keys = Arrays.copyOf(mHeldKeys, mHeldKeyCount);
+            buttons = mHeldButtons;
+            mHeldKeyCount = 0;
+            mHeldButtons = 0;
+        }
+        for (int i = keys.length - 1; i >= 0; i--) {
+            mListener.onKey(mToken, false, (int) (keys[i] >>> 32), (int) keys[i]);
+        }
+        for (int button = 0; buttons != 0; button++, buttons >>>= 1) {
+            if ((buttons & 1) != 0) {
+                mListener.onButton(mToken, false, button);
+            }
+        }
+    }
+
+    @Override
+    public void onKey(boolean down, int keyCode, int modifiers) {
+        synchronized (this) {
+            int index = indexOfKey(keyCode);
+            if (down && index < 0) {
+                if (mHeldKeyCount == mHeldKeys.length) {
+                    mHeldKeys = Arrays.copyOf(mHeldKeys, mHeldKeyCount * 2);
+                }
+                mHeldKeys[mHeldKeyCount++] = ((long) keyCode << 32) | (modifiers & 0xFFFFFFFFL);
+            } else if (!down && index >= 0) {
+                System.arraycopy(mHeldKeys, index + 1, mHeldKeys, index, mHeldKeyCount - index - 1);
+                mHeldKeyCount--;
+            }
+        }
+        mListener.onKey(mToken, down, keyCode, modifiers);
+    }
+
+    @Override
+    public void onText(String text) {
+        mListener.onText(mToken, text);
+    }
+
+    @Override
+    public void onMove(int dx, int dy) {
+        mListener.onMove(mToken, dx, dy);
+    }
+
+    @Override
+    public void onScroll(int dx, int dy) {
+        mListener.onScroll(mToken, dx, dy);
+    }
+
+    @Override
+    public void onButton(boolean down, int button) {
+        if (button >= 0 && button < 32) {
+            synchronized (this) {
+                if (down) {
+                    mHeldButtons |= 1 << button;
+                } else {
+                    mHeldButtons &= ~(1 << button);
+                }
+            }
+        }
+        mListener.onButton(mToken, down, button);
+    }
+
+    @Override
+    public void onWait(int millis) {
+        // never called: the connection schedules the rest of a macro instead of sleeping
+    }
+
+    private int indexOfKey(int keyCode) {
+        for (int i = 0; i < mHeldKeyCount; i++) {
+            if ((int) (mHeldKeys[i] >>> 32) == keyCode) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,144 @@
+package com.evans.qontrol.host;
+
+import com.evans.qontrol.link.QLinkService;
+import com.evans.qontrol.macro.Macro;
+import com.evans.qontrol.protocol.Frame;
+import com.evans.qontrol.protocol.FrameDecoder;
+import com.evans.qontrol.protocol.FrameEncoder;
+import com.evans.qontrol.protocol.Opcodes;
+import com.evans.qontrol.transport.LoopbackTransport;
+import com.evans.qontrol.transport.TcpTransport;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class HostServerTest {
+
+    /**
+     * Writes every event down in a line, e.g. "D30 U30 \"hi\" M2,-1 ".
+     */
+    private static class Log implements HostServer.Listener {
+        private final StringBuilder mmLog = new StringBuilder();
+
+        @Override
+        public synchronized void onKey(long session, boolean down, int keyCode, int modifiers) {
+            mmLog.append(down ? "D" : "U").append(keyCode).append(' ');
+        }
+
+        @Override
+        public synchronized void onText(long session, String text) {
+            mmLog.append('"').append(text).append("\" ");
+        }
+
+        @Override
+        public synchronized void onMove(long session, int dx, int dy) {
+            mmLog.append('M').append(dx).append(',').append(dy).append(' ');
+        }
+
+        @Override
+        public synchronized void onScroll(long session, int dx, int dy) {
+            mmLog.append('S').append(dx).append(',').append(dy).append(' ');
+        }
+
+        @Override
+        public synchronized void onButton(long session, boolean down, int button) {
+            mmLog.append(down ? "B" : "b").append(button).append(' ');
+        }
+
+        void await(String expected) throws InterruptedException {
+            while (!toString().equals(expected)) {
+                Thread.sleep(1);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mmLog.toString();
+        }
+    }
+
+    private static QLinkService connect(HostServer host) throws InterruptedException {
+        QLinkService service = new QLinkService();
+        service.connect(new TcpTransport("127.0.0.1", host.getPort(), 5000));
+        while (service.getState() != QLinkService.STATE_CONNECTED) {
+            Thread.sleep(1);
+        }
+        return service;
+    }
+
+    @Test(timeout = 10000)
+    public void handlesInputAndStoredMacros() throws Exception {
+        Log log = new Log();
+        HostServer host = new HostServer(0, log);
+        host.start();
+        QLinkService service = connect(host);
+
+        service.sendKey(true, 30, 0);
+        service.sendKey(false, 30, 0);
+        service.sendText("hi");
+        log.await("D30 U30 \"hi\" ");
+
+        Macro macro = new Macro.Builder().click(0).scroll(0, -3).build();
+        // false until the host's features arrived
+        while (!service.sendMacro(macro)) {
+            Thread.sleep(1);
+        }
+        assertTrue(service.sendMacro(macro));
+        log.await("D30 U30 \"hi\" B0 b0 S0,-3 B0 b0 S0,-3 ");
+        assertEquals(1, host.getSessionCount());
+
+        service.shutdown();
+        host.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void keepsAnsweringWhileMacroWaits() throws Exception {
+        Log log = new Log();
+        HostServer host = new HostServer(0, log);
+        LoopbackTransport[] pair = LoopbackTransport.pair(LoopbackTransport.DEFAULT_BUFFER_SIZE);
+        host.accept(pair[1]);
+        OutputStream out = pair[0].getOutputStream();
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.encodeHello(0, 0);
+        encoder.writeTo(out);
+        // a run for a slot never stored is ignored, not a protocol error
+        encoder.encodeMacroRun(3);
+        encoder.writeTo(out);
+        new Macro.Builder().click(0).delay(60000).click(1).build().encode(encoder, 0);
+        encoder.writeTo(out);
+        encoder.encodePing(7);
+        encoder.writeTo(out);
+        out.flush();
+
+        FrameDecoder decoder = new FrameDecoder(pair[0].getInputStream());
+        Frame frame = new Frame();
+        do {
+            assertTrue(decoder.readFrame(frame));
+        } while (frame.opcode() != Opcodes.PONG);
+        assertEquals(7, frame.readVarint());
+        log.await("B0 b0 ");
+        host.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void releasesHeldInputWhenSessionExpires() throws Exception {
+        Log log = new Log();
+        HostServer host = new HostServer(0, log);
+        host.setSessionTimeout(100);
+        host.start();
+        QLinkService service = connect(host);
+
+        service.sendKey(true, 42, 0);
+        service.sendButton(true, 1);
+        log.await("D42 B1 ");
+        service.shutdown();
+        log.await("D42 B1 U42 b1 ");
+        while (host.getSessionCount() > 0) {
+            Thread.sleep(1);
+        }
+        host.stop();
+    }
+}